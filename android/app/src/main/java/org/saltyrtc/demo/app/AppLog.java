@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging facade of the app, used like {@link android.util.Log}.
+ *
+ * A message is dropped early by two gates: levels below
+ * {@link #COMPILED_LEVEL} are removed at compile time, levels below the
+ * runtime level (see {@link #setLevel(int)}) are checked with a single
+ * volatile read. Message patterns may contain {@code {}} placeholders, which
+ * are replaced by the arguments only once the message is emitted. Callers
+ * therefore pass the parts of a message instead of concatenating them, and a
+ * disabled call does not allocate.
+ *
+ * Enabled messages are queued and formatted and emitted in batches on a
+ * writer thread, so the caller never waits for the sink. If the queue is
+ * full, messages are dropped and the number of dropped messages is reported
+ * later. High frequency events can be thinned out with a {@link Sampler}.
+ */
+@AnyThread
+final class AppLog {
+
+	// Same values as the priorities of android.util.Log
+	static final int VERBOSE = 2;
+	static final int DEBUG = 3;
+	static final int INFO = 4;
+	static final int WARN = 5;
+	static final int ERROR = 6;
+
+	// Messages below this level are compiled out. Raise to INFO to remove
+	// all debug logging from the app.
+	static final int COMPILED_LEVEL = DEBUG;
+
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * Receiver of the formatted messages. Only called on the writer thread.
+	 */
+	interface Sink {
+		void write(int level, String tag, String message, @Nullable Throwable throwable);
+
+		/**
+		 * Called after every batch of messages.
+		 */
+		void flush();
+	}
+
+	/**
+	 * Lets at most one event per interval pass, and counts the suppressed
+	 * events in between.
+	 */
+	static final class Sampler {
+		private final long intervalNanos;
+		private final AtomicLong next;
+		private final AtomicLong suppressed = new AtomicLong();
+
+		Sampler(long intervalMs) {
+			this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+			this.next = new AtomicLong(System.nanoTime());
+		}
+
+		/**
+		 * Return the number of events suppressed since the last event that
+		 * passed, or -1 if this event is suppressed.
+		 */
+		long sample() {
+			final long now = System.nanoTime();
+			final long next = this.next.get();
+			if (now - next >= 0 && this.next.compareAndSet(next, now + this.intervalNanos)) {
+				return this.suppressed.getAndSet(0);
+			}
+			this.suppressed.incrementAndGet();
+			return -1;
+		}
+	}
+
+	/**
+	 * A queued message. Arguments are either objects or longs, see {@link #NO_ARGUMENT}.
+	 */
+	private static final class Entry {
+		final int level;
+		final String tag;
+		final String pattern;
+		@Nullable final Object first;
+		final long firstLong;
+		@Nullable final Object second;
+		final long secondLong;
+		@Nullable final Throwable throwable;
+		final long suppressed;
+		@Nullable final CountDownLatch flushed;
+
+		Entry(int level, String tag, String pattern, @Nullable Object first, long firstLong,
+		      @Nullable Object second, long secondLong, @Nullable Throwable throwable, long suppressed,
+		      @Nullable CountDownLatch flushed) {
+			this.level = level;
+			this.tag = tag;
+			this.pattern = pattern;
+			this.first = first;
+			this.firstLong = firstLong;
+			this.second = second;
+			this.secondLong = secondLong;
+			this.throwable = throwable;
+			this.suppressed = suppressed;
+			this.flushed = flushed;
+		}
+	}
+
+	// Marks an argument that is passed as a long, or not passed at all
+	private static final Object LONG_ARGUMENT = new Object();
+	private static final Object NO_ARGUMENT = new Object();
+
+	private static volatile int level = DEBUG;
+	private static volatile Sink sink = new StandardErrorSink();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+	static {
+		final Thread writer = new Thread(AppLog::write, "AppLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private AppLog() { }
+
+	/**
+	 * Set the lowest level that is emitted.
+	 */
+	static void setLevel(int level) {
+		AppLog.level = level;
+	}
+
+	/**
+	 * Replace the sink. Messages already queued may still go to the previous sink.
+	 */
+	static void setSink(Sink sink) {
+		AppLog.sink = sink;
+	}
+
+	/**
+	 * Return whether messages of the given level are emitted. Use this to guard
+	 * messages that are expensive to build.
+	 */
+	static boolean isLoggable(int level) {
+		return level >= COMPILED_LEVEL && level >= AppLog.level;
+	}
+
+	static void d(String tag, String message) {
+		if (isLoggable(DEBUG)) {
+			enqueue(DEBUG, tag, message, NO_ARGUMENT, 0, NO_ARGUMENT, 0, null, 0);
+		}
+	}
+
+	static void d(String tag, String pattern, long argument) {
+		if (isLoggable(DEBUG)) {
+			enqueue(DEBUG, tag, pattern, LONG_ARGUMENT, argument, NO_ARGUMENT, 0, null, 0);
+		}
+	}
+
+	static void d(String tag, String pattern, long first, long second) {
+		if (isLoggable(DEBUG)) {
+			enqueue(DEBUG, tag, pattern, LONG_ARGUMENT, first, LONG_ARGUMENT, second, null, 0);
+		}
+	}
+
+	/**
+	 * Log with an object argument, which is converted to a string on the
+	 * writer thread. It must therefore not be modified afterwards.
+	 */
+	static void d(String tag, String pattern, @Nullable Object argument) {
+		if (isLoggable(DEBUG)) {
+			enqueue(DEBUG, tag, pattern, argument, 0, NO_ARGUMENT, 0, null, 0);
+		}
+	}
+
+	static void d(String tag, String pattern, @Nullable Object first, @Nullable Object second) {
+		if (isLoggable(DEBUG)) {
+			enqueue(DEBUG, tag, pattern, first, 0, second, 0, null, 0);
+		}
+	}
+
+	/**
+	 * Log a high frequency event, unless the sampler suppresses it. The
+	 * number of events suppressed before is appended to the message.
+	 */
+	static void d(Sampler sampler, String tag, String pattern, long argument) {
+		final long suppressed;
+		if (isLoggable(DEBUG) && (suppressed = sampler.sample()) >= 0) {
+			enqueue(DEBUG, tag, pattern, LONG_ARGUMENT, argument, NO_ARGUMENT, 0, null, suppressed);
+		}
+	}
+
+	static void d(Sampler sampler, String tag, String pattern, long first, long second) {
+		final long suppressed;
+		if (isLoggable(DEBUG) && (suppressed = sampler.sample()) >= 0) {
+			enqueue(DEBUG, tag, pattern, LONG_ARGUMENT, first, LONG_ARGUMENT, second, null, suppressed);
+		}
+	}
+
+	static void d(Sampler sampler, String tag, String pattern, @Nullable Object argument) {
+		final long suppressed;
+		if (isLoggable(DEBUG) && (suppressed = sampler.sample()) >= 0) {
+			enqueue(DEBUG, tag, pattern, argument, 0, NO_ARGUMENT, 0, null, suppressed);
+		}
+	}
+
+	static void i(String tag, String message) {
+		if (isLoggable(INFO)) {
+			enqueue(INFO, tag, message, NO_ARGUMENT, 0, NO_ARGUMENT, 0, null, 0);
+		}
+	}
+
+	static void w(String tag, String message) {
+		w(tag, message, null);
+	}
+
+	static void w(String tag, String message, @Nullable Throwable throwable) {
+		if (isLoggable(WARN)) {
+			enqueue(WARN, tag, message, NO_ARGUMENT, 0, NO_ARGUMENT, 0, throwable, 0);
+		}
+	}
+
+	static void e(String tag, String message) {
+		e(tag, message, null);
+	}
+
+	static void e(String tag, String message, @Nullable Throwable throwable) {
+		if (isLoggable(ERROR)) {
+			enqueue(ERROR, tag, message, NO_ARGUMENT, 0, NO_ARGUMENT, 0, throwable, 0);
+		}
+	}
+
+	/**
+	 * Wait until all messages queued so far have been emitted.
+	 *
+	 * @return false if the timeout elapsed first.
+	 */
+	static boolean flush(long timeoutMs) throws InterruptedException {
+		final CountDownLatch flushed = new CountDownLatch(1);
+		final Entry marker = new Entry(DEBUG, "", "", NO_ARGUMENT, 0, NO_ARGUMENT, 0, null, 0, flushed);
+		return queue.offer(marker, timeoutMs, TimeUnit.MILLISECONDS)
+				&& flushed.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	private static void enqueue(int level, String tag, String pattern, @Nullable Object first, long firstLong,
+	                            @Nullable Object second, long secondLong, @Nullable Throwable throwable,
+	                            long suppressed) {
+		final Entry entry = new Entry(level, tag, pattern, first, firstLong, second, secondLong,
+				throwable, suppressed, null);
+		if (!queue.offer(entry)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writer loop. Takes up to a batch of messages at a time.
+	 */
+	private static void write() {
+		final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+		final StringBuilder builder = new StringBuilder();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (final InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			final Sink sink = AppLog.sink;
+			final long dropped = AppLog.dropped.getAndSet(0);
+			if (dropped > 0) {
+				sink.write(WARN, AppLog.class.getSimpleName(), dropped + " log messages dropped", null);
+			}
+			for (final Entry entry : batch) {
+				if (entry.flushed == null) {
+					builder.setLength(0);
+					format(builder, entry);
+					sink.write(entry.level, entry.tag, builder.toString(), entry.throwable);
+				}
+			}
+			sink.flush();
+			for (final Entry entry : batch) {
+				if (entry.flushed != null) {
+					entry.flushed.countDown();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private static void format(StringBuilder builder, Entry entry) {
+		final String pattern = entry.pattern;
+		int argument = 0;
+		int start = 0;
+		int placeholder;
+		while (argument < 2 && (placeholder = pattern.indexOf("{}", start)) >= 0) {
+			final Object value = argument == 0 ? entry.first : entry.second;
+			if (value == NO_ARGUMENT) {
+				break;
+			}
+			builder.append(pattern, start, placeholder);
+			if (value == LONG_ARGUMENT) {
+				builder.append(argument == 0 ? entry.firstLong : entry.secondLong);
+			} else {
+				builder.append(value);
+			}
+			start = placeholder + 2;
+			argument++;
+		}
+		builder.append(pattern, start, pattern.length());
+		if (entry.suppressed > 0) {
+			builder.append(" (").append(entry.suppressed).append(" similar suppressed)");
+		}
+	}
+
+	/**
+	 * Writes to the standard error stream, for use outside of Android (unit
+	 * tests, benchmarks). The app installs a {@link LogcatSink} instead.
+	 */
+	static final class StandardErrorSink implements Sink {
+		private static final String LEVELS = "??VDIWE";
+
+		@Override
+		public void write(int level, String tag, String message, @Nullable Throwable throwable) {
+			System.err.println(LEVELS.charAt(Math.min(level, ERROR)) + "/" + tag + ": " + message);
+			if (throwable != null) {
+				throwable.printStackTrace();
+			}
+		}
+
+		@Override
+		public void flush() {
+			System.err.flush();
+		}
+	}
+
+}
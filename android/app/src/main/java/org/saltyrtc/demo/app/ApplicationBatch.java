@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Envelope carrying several application messages in one signaling message.
+ *
+ * Every application message is encrypted and relayed by the SaltyRTC server on
+ * its own. A sender in batching mode therefore coalesces small messages into
+ * one envelope: the magic bytes 0xff 0x42, followed by one entry per message,
+ * each consisting of the message length (u32, big endian) and the message
+ * bytes. The byte 0xff never occurs in UTF-8, so a plain chat message cannot
+ * be mistaken for an envelope.
+ */
+final class ApplicationBatch {
+
+	static final int HEADER_SIZE = 2;
+	static final int ENTRY_HEADER_SIZE = 4;
+
+	private static final byte MAGIC_0 = (byte) 0xff;
+	private static final byte MAGIC_1 = 0x42;
+
+	private ApplicationBatch() { }
+
+	/**
+	 * Return whether the remaining bytes of the buffer are an envelope.
+	 */
+	static boolean isBatch(ByteBuffer message) {
+		final int position = message.position();
+		return message.remaining() >= HEADER_SIZE
+				&& message.get(position) == MAGIC_0
+				&& message.get(position + 1) == MAGIC_1;
+	}
+
+	/**
+	 * Pack the remaining bytes of the messages into an envelope.
+	 *
+	 * The positions of the passed in buffers are not modified. The returned
+	 * buffer is flipped and ready to be sent.
+	 */
+	static ByteBuffer encode(List<ByteBuffer> messages) {
+		int size = HEADER_SIZE;
+		for (final ByteBuffer message : messages) {
+			size += ENTRY_HEADER_SIZE + message.remaining();
+		}
+		final ByteBuffer envelope = ByteBuffer.allocate(size);
+		envelope.put(MAGIC_0).put(MAGIC_1);
+		for (final ByteBuffer message : messages) {
+			envelope.putInt(message.remaining());
+			envelope.put(message.duplicate());
+		}
+		envelope.flip();
+		return envelope;
+	}
+
+	/**
+	 * Split an envelope into its messages.
+	 *
+	 * The returned buffers are slices of the envelope, nothing is copied. The
+	 * position of the passed in buffer is not modified.
+	 *
+	 * @throws IllegalArgumentException if the buffer is not a well formed envelope.
+	 */
+	static List<ByteBuffer> split(ByteBuffer envelope) {
+		if (!isBatch(envelope)) {
+			throw new IllegalArgumentException("Not an application message batch");
+		}
+		final ByteBuffer in = envelope.duplicate();
+		in.position(in.position() + HEADER_SIZE);
+		final List<ByteBuffer> messages = new ArrayList<>();
+		while (in.hasRemaining()) {
+			if (in.remaining() < ENTRY_HEADER_SIZE) {
+				throw new IllegalArgumentException("Truncated entry header");
+			}
+			final int length = in.getInt();
+			if (length < 0 || length > in.remaining()) {
+				throw new IllegalArgumentException("Invalid entry length " + length);
+			}
+			final ByteBuffer message = in.slice();
+			message.limit(length);
+			messages.add(message);
+			in.position(in.position() + length);
+		}
+		return messages;
+	}
+
+}
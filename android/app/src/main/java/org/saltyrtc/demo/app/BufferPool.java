@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded pool of equally sized direct byte buffers.
+ *
+ * Requests larger than the pooled buffer size are served with a one-off buffer
+ * which is simply dropped on release. The pool itself never allocates once it
+ * has been filled, so a steady-state send loop does not produce garbage.
+ */
+@AnyThread
+class BufferPool {
+
+	private final int bufferSize;
+	private final ByteBuffer[] buffers;
+	private int count = 0;
+
+	BufferPool(int bufferSize, int maxBuffers) {
+		if (bufferSize <= 0 || maxBuffers <= 0) {
+			throw new IllegalArgumentException("Buffer size and count must be positive");
+		}
+		this.bufferSize = bufferSize;
+		this.buffers = new ByteBuffer[maxBuffers];
+	}
+
+	int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Return a cleared buffer with at least the requested capacity.
+	 */
+	ByteBuffer acquire(int capacity) {
+		if (capacity > this.bufferSize) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		synchronized (this) {
+			if (this.count > 0) {
+				final ByteBuffer buffer = this.buffers[--this.count];
+				this.buffers[this.count] = null;
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(this.bufferSize);
+	}
+
+	/**
+	 * Hand a buffer back to the pool.
+	 *
+	 * The buffer must not be used by the caller afterwards. Only call this once
+	 * the consumer (e.g. the native data channel) is done with its contents.
+	 */
+	void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != this.bufferSize) {
+			return;
+		}
+		synchronized (this) {
+			if (this.count < this.buffers.length) {
+				this.buffers[this.count++] = buffer;
+			}
+		}
+	}
+
+	/**
+	 * Return the number of idle buffers in the pool.
+	 */
+	synchronized int available() {
+		return this.count;
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.os.Build;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.tasks.webrtc.SecureDataChannel;
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Chunked, flow controlled transfer of a large payload over a secure data channel.
+ *
+ * The payload is split into chunks which are sent as separate messages. Sending
+ * pauses once the buffered amount of the channel reaches the high water mark and
+ * resumes once it has dropped to the low water mark again. This keeps the SCTP
+ * send buffer from overflowing, which would otherwise close the channel.
+ *
+ * Every chunk is sent in a separate task on the executor, so that other work
+ * queued on the same executor (e.g. interactive messages) can run in between.
+ *
+ * The payload is framed as a stream (see {@link StreamFrames}), so the receiver
+ * can process it incrementally and verify its checksum.
+ */
+class BulkTransfer {
+
+	private static final String LOG_TAG = BulkTransfer.class.getName();
+
+	static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	static final long DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+	static final long DEFAULT_LOW_WATER_MARK = 256 * 1024;
+
+	/**
+	 * Progress listener. Called from the executor thread.
+	 */
+	interface Listener {
+		void onProgress(long sent, long total, double megabytesPerSecond);
+		void onComplete(long total, double megabytesPerSecond);
+		void onError(long sent, long total, String reason);
+	}
+
+	private final SecureDataChannel sdc;
+	private final ByteBuffer payload;
+	private final byte kind;
+	private final Executor executor;
+	private final Listener listener;
+	@Nullable private final ChannelMetrics metrics;
+	private final int chunkSize;
+	private final long highWaterMark;
+	private final long lowWaterMark;
+
+	private final long offset;
+	private final BufferPool framePool;
+	private final CRC32 crc = new CRC32();
+	// Only needed to checksum direct payloads below API level 26
+	@Nullable private final byte[] scratch;
+
+	private final AtomicBoolean paused = new AtomicBoolean(false);
+	private final Runnable pumpStep = this::pump;
+	private volatile boolean done = false;
+	private boolean started = false;
+	private long startedAt;
+
+	/**
+	 * @param kind the kind of the stream, see {@link StreamFrames}.
+	 */
+	BulkTransfer(SecureDataChannel sdc, ByteBuffer payload, byte kind, Executor executor, Listener listener,
+	             @Nullable ChannelMetrics metrics) {
+		this(sdc, payload, kind, executor, listener, metrics,
+				DEFAULT_CHUNK_SIZE, DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK);
+	}
+
+	BulkTransfer(SecureDataChannel sdc, ByteBuffer payload, byte kind, Executor executor, Listener listener,
+	             @Nullable ChannelMetrics metrics, int chunkSize, long highWaterMark, long lowWaterMark) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		if (lowWaterMark >= highWaterMark) {
+			throw new IllegalArgumentException("Low water mark must be below high water mark");
+		}
+		this.sdc = sdc;
+		this.payload = payload.duplicate();
+		this.offset = this.payload.position();
+		this.kind = kind;
+		this.executor = executor;
+		this.listener = listener;
+		this.metrics = metrics;
+		this.chunkSize = chunkSize;
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = lowWaterMark;
+		this.framePool = new BufferPool(StreamFrames.DATA_HEADER_SIZE + chunkSize, 4);
+		this.scratch = payload.hasArray() || Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+				? null : new byte[chunkSize];
+	}
+
+	/**
+	 * Start sending.
+	 */
+	@AnyThread
+	void start() {
+		this.executor.execute(() -> {
+			this.startedAt = System.nanoTime();
+			this.pump();
+		});
+	}
+
+	/**
+	 * Return whether all chunks have been handed to the data channel.
+	 */
+	boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * Stop sending. Chunks already handed to the data channel are not revoked.
+	 */
+	@AnyThread
+	void cancel() {
+		this.done = true;
+	}
+
+	/**
+	 * Must be called from the data channel observer whenever the buffered
+	 * amount changes. Resumes sending once the low water mark is reached.
+	 */
+	@AnyThread
+	void onBufferedAmountChange() {
+		if (this.done) {
+			return;
+		}
+		if (this.sdc.bufferedAmount() <= this.lowWaterMark && this.paused.compareAndSet(true, false)) {
+			this.executor.execute(this.pumpStep);
+		}
+	}
+
+	/**
+	 * Send the next frame and schedule the following one, unless the payload
+	 * is exhausted or the high water mark has been reached.
+	 */
+	private void pump() {
+		if (this.done) {
+			return;
+		}
+		final long total = this.payload.limit();
+		if (!this.started) {
+			final ByteBuffer start = this.framePool.acquire(StreamFrames.START_SIZE);
+			StreamFrames.putStart(start, this.kind, total, this.offset);
+			start.flip();
+			if (!this.sendFrame(start, total)) {
+				return;
+			}
+			this.started = true;
+		}
+		if (this.payload.hasRemaining()) {
+			if (this.sdc.bufferedAmount() >= this.highWaterMark) {
+				this.paused.set(true);
+				// The buffer may have drained between the check and setting the flag,
+				// in which case no further change notification would wake us up.
+				if (this.sdc.bufferedAmount() > this.lowWaterMark || !this.paused.compareAndSet(true, false)) {
+					return;
+				}
+			}
+
+			final int length = Math.min(this.chunkSize, this.payload.remaining());
+			final ByteBuffer frame = this.framePool.acquire(StreamFrames.DATA_HEADER_SIZE + length);
+			StreamFrames.putDataHeader(frame);
+			this.copyChunk(frame, length);
+			frame.flip();
+			if (!this.sendFrame(frame, total)) {
+				return;
+			}
+			this.listener.onProgress(this.payload.position(), total, this.throughput(this.payload.position()));
+		}
+		if (this.payload.hasRemaining()) {
+			this.executor.execute(this.pumpStep);
+		} else {
+			final ByteBuffer end = this.framePool.acquire(StreamFrames.END_SIZE);
+			StreamFrames.putEnd(end, this.crc.getValue());
+			end.flip();
+			if (!this.sendFrame(end, total)) {
+				return;
+			}
+			this.done = true;
+			this.listener.onComplete(total, this.throughput(total));
+		}
+	}
+
+	/**
+	 * Copy the next chunk of the payload into the frame, updating the checksum.
+	 *
+	 * A direct or memory mapped payload is copied straight into the frame.
+	 * Only its checksum needs a heap copy, and only below API level 26.
+	 */
+	private void copyChunk(ByteBuffer frame, int length) {
+		if (this.payload.hasArray()) {
+			final int position = this.payload.arrayOffset() + this.payload.position();
+			this.crc.update(this.payload.array(), position, length);
+			frame.put(this.payload.array(), position, length);
+			this.payload.position(this.payload.position() + length);
+			return;
+		}
+		final ByteBuffer chunk = this.payload.duplicate();
+		chunk.limit(chunk.position() + length);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			this.crc.update(chunk.duplicate());
+		} else {
+			chunk.duplicate().get(this.scratch, 0, length);
+			this.crc.update(this.scratch, 0, length);
+		}
+		frame.put(chunk);
+		this.payload.position(this.payload.position() + length);
+	}
+
+	/**
+	 * Send a frame and release it to the pool. Fails the transfer if the
+	 * channel does not accept the frame.
+	 */
+	private boolean sendFrame(ByteBuffer frame, long total) {
+		final long sendAt = System.nanoTime();
+		final int length = frame.remaining();
+		boolean sent = false;
+		try {
+			sent = this.sdc.send(new DataChannel.Buffer(frame, true));
+		} finally {
+			// The data has been copied by the native layer once send returns
+			this.framePool.release(frame);
+			if (this.metrics != null) {
+				this.metrics.onSent(length, sent, sendAt);
+			}
+		}
+		if (sent) {
+			return true;
+		}
+		AppLog.e(LOG_TAG, "Could not send frame at offset " + this.payload.position());
+		this.done = true;
+		this.listener.onError(this.payload.position(), total, "Data channel rejected frame");
+		return false;
+	}
+
+	/**
+	 * Return the sustained throughput since the start of the transfer in MB/s.
+	 */
+	private double throughput(long bytes) {
+		final long elapsed = System.nanoTime() - this.startedAt;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return (bytes / 1e6) / (elapsed / 1e9);
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Capabilities announced by each peer when the interactive channel opens.
+ *
+ * The hello is 0xff 0x48 ('H') followed by a bit set of capabilities (u8).
+ * Plain messages are UTF-8, which never contains the byte 0xff, so a peer
+ * that does not know the hello simply shows it as an odd message. A peer may
+ * only use a capability once the other peer announced it.
+ */
+final class Capabilities {
+
+	// Messages may be compressed, see PayloadCompression
+	static final int DEFLATE = 0x01;
+	// Messages may be record frames, see RecordCodec
+	static final int RECORDS = 0x02;
+
+	static final int HELLO_SIZE = 3;
+	private static final byte HELLO_MAGIC_0 = (byte) 0xff;
+	private static final byte HELLO_MAGIC_1 = 0x48;
+
+	private Capabilities() { }
+
+	/**
+	 * Return the capabilities enabled in the {@link Config}.
+	 */
+	static int local() {
+		return (Config.COMPRESSION ? DEFLATE : 0) | (Config.RECORDS ? RECORDS : 0);
+	}
+
+	/**
+	 * Return a hello announcing the given capabilities, ready to be sent.
+	 */
+	static ByteBuffer hello(int capabilities) {
+		final ByteBuffer hello = ByteBuffer.allocateDirect(HELLO_SIZE);
+		hello.put(HELLO_MAGIC_0).put(HELLO_MAGIC_1).put((byte) capabilities);
+		hello.flip();
+		return hello;
+	}
+
+	/**
+	 * Return whether the message is a hello.
+	 */
+	static boolean isHello(ByteBuffer message) {
+		return message.remaining() == HELLO_SIZE
+				&& message.get(message.position()) == HELLO_MAGIC_0
+				&& message.get(message.position() + 1) == HELLO_MAGIC_1;
+	}
+
+	/**
+	 * Return the capabilities announced by a hello.
+	 */
+	static int parse(ByteBuffer hello) {
+		if (!isHello(hello)) {
+			throw new IllegalArgumentException("Not a hello");
+		}
+		return hello.get(hello.position() + 2) & 0xff;
+	}
+
+}
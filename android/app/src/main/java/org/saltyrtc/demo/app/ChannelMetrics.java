@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import java.util.Locale;
+
+/**
+ * The metrics of one lane of a {@link ChannelScheduler}, labelled with the lane.
+ *
+ * The metrics are looked up once, so recording on the message path is a few
+ * atomic operations.
+ */
+@AnyThread
+final class ChannelMetrics {
+
+	private final MetricsRegistry.Counter messagesSent;
+	private final MetricsRegistry.Counter bytesSent;
+	private final MetricsRegistry.Counter sendFailures;
+	private final LatencyHistogram sendLatency;
+	private final MetricsRegistry.Counter messagesReceived;
+	private final MetricsRegistry.Counter bytesReceived;
+	private final MetricsRegistry.Gauge bufferedAmount;
+
+	ChannelMetrics(MetricsRegistry registry, ChannelScheduler.Lane lane) {
+		final String name = lane.name().toLowerCase(Locale.US);
+		this.messagesSent = registry.counter("dc_messages_sent_total", "lane", name);
+		this.bytesSent = registry.counter("dc_bytes_sent_total", "lane", name);
+		this.sendFailures = registry.counter("dc_send_failures_total", "lane", name);
+		this.sendLatency = registry.histogram("dc_send_latency_us", "lane", name);
+		this.messagesReceived = registry.counter("dc_messages_received_total", "lane", name);
+		this.bytesReceived = registry.counter("dc_bytes_received_total", "lane", name);
+		this.bufferedAmount = registry.gauge("dc_buffered_amount_bytes", "lane", name);
+	}
+
+	/**
+	 * Record a send that was queued at the given monotonic timestamp. The
+	 * latency includes the time spent in the queue and in the send call.
+	 */
+	void onSent(int bytes, boolean sent, long queuedAtNanos) {
+		if (sent) {
+			this.messagesSent.increment();
+			this.bytesSent.add(bytes);
+		} else {
+			this.sendFailures.increment();
+		}
+		this.sendLatency.record((System.nanoTime() - queuedAtNanos) / 1000);
+	}
+
+	void onReceived(int bytes) {
+		this.messagesReceived.increment();
+		this.bytesReceived.add(bytes);
+	}
+
+	void onBufferedAmountChange(long bufferedAmount) {
+		this.bufferedAmount.set(bufferedAmount);
+	}
+
+}
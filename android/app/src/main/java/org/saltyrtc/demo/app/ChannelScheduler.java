@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.tasks.webrtc.SecureDataChannel;
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Spreads outbound traffic over several secure data channels.
+ *
+ * Every lane is bound to its own secure data channel (and thereby to its own
+ * SCTP stream). All sends happen on a single sender thread, which always runs
+ * pending work of a higher priority lane first. Bulk transfers are sent chunk
+ * by chunk, so a small interactive message waits for at most one chunk, never
+ * for a whole transfer.
+ */
+@AnyThread
+class ChannelScheduler {
+
+	private static final String LOG_TAG = ChannelScheduler.class.getName();
+
+	/**
+	 * Priority lanes, highest priority first.
+	 */
+	enum Lane {
+		INTERACTIVE,
+		BULK,
+	}
+
+	private static final Lane[] LANES = Lane.values();
+	private static final long SENDER_JOIN_TIMEOUT_MS = 1000;
+
+	private final AtomicReferenceArray<SecureDataChannel> channels = new AtomicReferenceArray<>(LANES.length);
+	private final AtomicReferenceArray<BulkTransfer> transfers = new AtomicReferenceArray<>(LANES.length);
+	private final int interactiveMaxSize;
+
+	private final Object lock = new Object();
+	private final List<ArrayDeque<Runnable>> queues = new ArrayList<>(LANES.length);
+	private final Executor[] executors = new Executor[LANES.length];
+	private final ChannelMetrics[] metrics = new ChannelMetrics[LANES.length];
+	private final Thread sender;
+	private boolean closed = false;
+	// Message streams waiting for the bulk transfer, only accessed on the sender thread
+	private final ArrayDeque<MessageTransfer> deferredStreams = new ArrayDeque<>();
+
+	/**
+	 * Create a scheduler. Messages up to the given size go to the interactive
+	 * lane. The metrics of every lane are registered in the given registry.
+	 */
+	ChannelScheduler(int interactiveMaxSize, MetricsRegistry registry) {
+		this.interactiveMaxSize = interactiveMaxSize;
+		for (final Lane lane : LANES) {
+			this.queues.add(new ArrayDeque<>());
+			this.executors[lane.ordinal()] = runnable -> this.enqueue(lane, runnable);
+			this.metrics[lane.ordinal()] = new ChannelMetrics(registry, lane);
+		}
+		this.sender = new Thread(this::run, "ChannelScheduler");
+		this.sender.start();
+	}
+
+	/**
+	 * Bind a secure data channel to a lane.
+	 */
+	void setChannel(Lane lane, SecureDataChannel sdc) {
+		this.channels.set(lane.ordinal(), sdc);
+	}
+
+	/**
+	 * Return the channel of a lane. Falls back to the channel of the next
+	 * higher priority lane if the peer did not open a channel for it.
+	 */
+	@Nullable
+	SecureDataChannel getChannel(Lane lane) {
+		for (int i = lane.ordinal(); i >= 0; i--) {
+			final SecureDataChannel sdc = this.channels.get(i);
+			if (sdc != null) {
+				return sdc;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the number of bytes buffered by the channels of all lanes.
+	 */
+	long getBufferedAmount() {
+		long amount = 0;
+		for (int i = 0; i < LANES.length; i++) {
+			final SecureDataChannel sdc = this.channels.get(i);
+			if (sdc != null) {
+				amount += sdc.bufferedAmount();
+			}
+		}
+		return amount;
+	}
+
+	/**
+	 * Return the metrics of a lane.
+	 */
+	ChannelMetrics getMetrics(Lane lane) {
+		return this.metrics[lane.ordinal()];
+	}
+
+	/**
+	 * Return an executor that runs tasks on the sender thread in the given lane.
+	 */
+	Executor getExecutor(Lane lane) {
+		return this.executors[lane.ordinal()];
+	}
+
+	/**
+	 * Send a message. Small messages go to the interactive lane, larger ones to
+	 * the bulk lane, as a flow controlled bulk transfer of a message stream.
+	 * Such a transfer starts once the bulk transfer in progress, if any, is
+	 * done. If a pool is given, the buffer is released to it once sent.
+	 */
+	void send(final ByteBuffer message, @Nullable final BufferPool pool) {
+		final Lane lane = message.remaining() <= this.interactiveMaxSize ? Lane.INTERACTIVE : Lane.BULK;
+		final long queuedAt = System.nanoTime();
+		if (lane == Lane.BULK && this.channels.get(Lane.BULK.ordinal()) != null) {
+			this.enqueue(lane, () -> this.runAfterBulkTransfer(new MessageTransfer(message, pool)));
+			return;
+		}
+		this.enqueue(lane, () -> {
+			try {
+				final SecureDataChannel sdc = this.getChannel(lane);
+				final int length = message.remaining();
+				final boolean sent = sdc != null && sdc.send(new DataChannel.Buffer(message, true));
+				this.metrics[lane.ordinal()].onSent(length, sent, queuedAt);
+				if (!sent) {
+					AppLog.e(LOG_TAG, "Could not send message on " + lane + " lane");
+				}
+			} finally {
+				// The data has been copied by the native layer once send returns
+				if (pool != null) {
+					pool.release(message);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue a message stream and start the queued ones, one after another, as
+	 * long as no bulk transfer is in progress. The receiver handles one stream
+	 * at a time, so the frames of two streams must not interleave. Only called
+	 * on the sender thread.
+	 */
+	private void runAfterBulkTransfer(@Nullable MessageTransfer stream) {
+		if (stream != null) {
+			this.deferredStreams.add(stream);
+		}
+		MessageTransfer next;
+		while (!this.isBulkTransferActive() && (next = this.deferredStreams.poll()) != null) {
+			if (!next.start() && this.isBulkTransferActive()) {
+				// Another transfer was started in between, try again once it is done
+				this.deferredStreams.addFirst(next);
+			}
+		}
+	}
+
+	private boolean isBulkTransferActive() {
+		final BulkTransfer transfer = this.transfers.get(Lane.BULK.ordinal());
+		return transfer != null && !transfer.isDone();
+	}
+
+	/**
+	 * A message sent as a bulk transfer. The buffer is released to the pool,
+	 * if any, once the transfer is done.
+	 */
+	private final class MessageTransfer implements BulkTransfer.Listener {
+		private final ByteBuffer message;
+		@Nullable private final BufferPool pool;
+
+		MessageTransfer(ByteBuffer message, @Nullable BufferPool pool) {
+			this.message = message;
+			this.pool = pool;
+		}
+
+		/**
+		 * Start the transfer.
+		 *
+		 * @return false if it could not be started.
+		 */
+		boolean start() {
+			if (ChannelScheduler.this.sendBulk(this.message, StreamFrames.KIND_MESSAGE, this) != null) {
+				return true;
+			}
+			if (!ChannelScheduler.this.isBulkTransferActive()) {
+				AppLog.e(LOG_TAG, "Could not send message on " + Lane.BULK + " lane");
+				this.release();
+			}
+			return false;
+		}
+
+		@Override
+		public void onProgress(long sent, long total, double megabytesPerSecond) { }
+
+		@Override
+		public void onComplete(long total, double megabytesPerSecond) {
+			this.release();
+		}
+
+		@Override
+		public void onError(long sent, long total, String reason) {
+			AppLog.e(LOG_TAG, "Could not send message on " + Lane.BULK + " lane: " + reason);
+			this.release();
+		}
+
+		private void release() {
+			if (this.pool != null) {
+				this.pool.release(this.message);
+			}
+		}
+	}
+
+	/**
+	 * Send a single frame unchanged on the given lane.
+	 */
+	void sendFrame(final Lane lane, final ByteBuffer frame) {
+		final long queuedAt = System.nanoTime();
+		this.enqueue(lane, () -> {
+			final SecureDataChannel sdc = this.getChannel(lane);
+			final int length = frame.remaining();
+			final boolean sent = sdc != null && sdc.send(new DataChannel.Buffer(frame, true));
+			this.metrics[lane.ordinal()].onSent(length, sent, queuedAt);
+			if (!sent) {
+				AppLog.e(LOG_TAG, "Could not send frame on " + lane + " lane");
+			}
+		});
+	}
+
+	/**
+	 * Start a flow controlled bulk transfer of the given stream kind on the
+	 * bulk lane. Only one transfer runs at a time: while one is in progress,
+	 * another one is refused.
+	 *
+	 * @return null if there is no channel or a transfer is in progress.
+	 */
+	@Nullable
+	BulkTransfer sendBulk(ByteBuffer payload, byte kind, BulkTransfer.Listener listener) {
+		final SecureDataChannel sdc = this.getChannel(Lane.BULK);
+		if (sdc == null) {
+			AppLog.w(LOG_TAG, "No channel for bulk transfer");
+			return null;
+		}
+		final BulkTransfer previous = this.transfers.get(Lane.BULK.ordinal());
+		if (previous != null && !previous.isDone()) {
+			AppLog.w(LOG_TAG, "Bulk transfer already in progress");
+			return null;
+		}
+		// Both completion callbacks run on the sender thread
+		final BulkTransfer transfer = new BulkTransfer(sdc, payload, kind, this.getExecutor(Lane.BULK), new BulkTransfer.Listener() {
+			@Override
+			public void onProgress(long sent, long total, double megabytesPerSecond) {
+				listener.onProgress(sent, total, megabytesPerSecond);
+			}
+
+			@Override
+			public void onComplete(long total, double megabytesPerSecond) {
+				listener.onComplete(total, megabytesPerSecond);
+				ChannelScheduler.this.runAfterBulkTransfer(null);
+			}
+
+			@Override
+			public void onError(long sent, long total, String reason) {
+				listener.onError(sent, total, reason);
+				ChannelScheduler.this.runAfterBulkTransfer(null);
+			}
+		}, this.getMetrics(Lane.BULK));
+		if (!this.transfers.compareAndSet(Lane.BULK.ordinal(), previous, transfer)) {
+			AppLog.w(LOG_TAG, "Bulk transfer already in progress");
+			return null;
+		}
+		transfer.start();
+		return transfer;
+	}
+
+	/**
+	 * Must be called whenever the buffered amount of the channel of a lane changes.
+	 */
+	void onBufferedAmountChange(Lane lane) {
+		// A lane's transfer may run on the channel of a higher priority lane (fallback)
+		for (int i = lane.ordinal(); i < LANES.length; i++) {
+			final BulkTransfer transfer = this.transfers.get(i);
+			if (transfer != null) {
+				transfer.onBufferedAmountChange();
+			}
+		}
+	}
+
+	private void enqueue(Lane lane, Runnable runnable) {
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+			this.queues.get(lane.ordinal()).add(runnable);
+			this.lock.notify();
+		}
+	}
+
+	/**
+	 * Sender loop. Always picks the first task of the highest priority lane.
+	 */
+	private void run() {
+		while (true) {
+			Runnable next = null;
+			synchronized (this.lock) {
+				while (!this.closed && next == null) {
+					for (final ArrayDeque<Runnable> queue : this.queues) {
+						next = queue.poll();
+						if (next != null) {
+							break;
+						}
+					}
+					if (next == null) {
+						try {
+							this.lock.wait();
+						} catch (final InterruptedException e) {
+							return;
+						}
+					}
+				}
+				if (this.closed) {
+					return;
+				}
+			}
+			try {
+				next.run();
+			} catch (final RuntimeException e) {
+				AppLog.e(LOG_TAG, "Send task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Cancel transfers, drop queued work, then close and dispose all channels.
+	 */
+	void close() {
+		for (int i = 0; i < LANES.length; i++) {
+			final BulkTransfer transfer = this.transfers.getAndSet(i, null);
+			if (transfer != null) {
+				transfer.cancel();
+			}
+		}
+		synchronized (this.lock) {
+			this.closed = true;
+			for (final ArrayDeque<Runnable> queue : this.queues) {
+				queue.clear();
+			}
+			this.lock.notify();
+		}
+		// Let a send in progress finish before the channels are disposed
+		try {
+			this.sender.join(SENDER_JOIN_TIMEOUT_MS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (int i = 0; i < LANES.length; i++) {
+			final SecureDataChannel sdc = this.channels.getAndSet(i, null);
+			if (sdc != null) {
+				AppLog.d(LOG_TAG, "Closing secure data channel {}...", sdc.label());
+				sdc.close();
+				sdc.dispose();
+			}
+		}
+	}
+
+}
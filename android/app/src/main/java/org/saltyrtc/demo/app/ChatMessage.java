@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+/**
+ * A chat message shown in the message log.
+ */
+final class ChatMessage {
+	final boolean outgoing;
+	final String text;
+
+	ChatMessage(boolean outgoing, String text) {
+		this.outgoing = outgoing;
+		this.text = text;
+	}
+}
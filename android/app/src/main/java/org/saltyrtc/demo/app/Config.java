@@ -7,15 +7,70 @@
  */
 package org.saltyrtc.demo.app;
 
+/**
+ * Settings of the built-in connection profile, see {@link ConnectionProfile},
+ * and app wide tuning knobs.
+ */
 public class Config {
 	public static String HOST = "server.saltyrtc.org";
 	public static int PORT = 443;
 
+	// Name of a PEM certificate in the app assets. If set, only this
+	// certificate is trusted for the signaling server (e.g. the one of the
+	// loopback server, see the loopback module).
+	public static String SERVER_CERTIFICATE_ASSET = null;
+
+	// Signaling keep alive and connect timeout
+	public static int PING_INTERVAL_S = 30;
+	public static int CONNECT_TIMEOUT_MS = 15000;
+
 	public static String STUN_SERVER = "stun.l.google.com:19302";
 	public static String TURN_SERVER = null;
 	public static String TURN_USER = null;
 	public static String TURN_PASS = null;
 
+	// Local ICE candidates are sent in batches of up to this many candidates,
+	// or after this many milliseconds, whichever comes first.
+	public static int ICE_CANDIDATE_BATCH_SIZE = 8;
+	public static long ICE_CANDIDATE_BATCH_WINDOW_MS = 20;
+
+	// Interval in which the stats of a connected peer connection are polled,
+	// see StatsCollector.
+	public static long STATS_INTERVAL_MS = 2000;
+
+	// Lowest level logged by the app, see AppLog. Debug logging can also be
+	// compiled out by raising AppLog.COMPILED_LEVEL.
+	public static int LOG_LEVEL = AppLog.DEBUG;
+
+	// Port on the loopback interface on which debug builds serve the metrics,
+	// see MetricsExporter. 0 disables the endpoint. Release builds never serve
+	// them, since any app on the device could read them.
+	public static int METRICS_PORT = 9464;
+
+	// Labels of the secure data channels opened by the peer. Messages up to
+	// DC_INTERACTIVE_MAX_SIZE bytes are sent on the interactive channel, larger
+	// messages and bulk transfers on the bulk channel.
+	public static String DC_LABEL_INTERACTIVE = "much-secure";
+	public static String DC_LABEL_BULK = "much-secure-bulk";
+	public static int DC_INTERACTIVE_MAX_SIZE = 16 * 1024;
+
+	// Messages of at least COMPRESSION_MIN_SIZE bytes are compressed if the
+	// peer supports it, see PayloadCompression. Smaller messages rarely shrink.
+	public static boolean COMPRESSION = true;
+	public static int COMPRESSION_MIN_SIZE = 128;
+
+	// Send chat messages as binary records if the peer supports it, see RecordCodec.
+	public static boolean RECORDS = true;
+
+	// Streams on the bulk channel up to STREAM_MEMORY_MAX_SIZE bytes are
+	// received in memory and shown as text, larger ones are written to a file.
+	public static int STREAM_MEMORY_MAX_SIZE = 256 * 1024;
+
+	// Reconnect backoff after a dropped session, see ReconnectPolicy.
+	public static long RECONNECT_BASE_DELAY_MS = 500;
+	public static long RECONNECT_MAX_DELAY_MS = 30000;
+	public static int RECONNECT_MAX_ATTEMPTS = 8;
+
 	public static String PRIVATE_KEY = "c41df741435bb144edcd429d1d8e86c5e0e24ccceff87ec5e6647525c2d52077";
 	public static String TRUSTED_KEY = "424280166304526b4a2874a2270d091071fcc5c98959f7d4718715626df26204";
 	public static String SERVER_KEY = "f77fe623b6977d470ac8c7bf7011c4ad08a1d126896795db9d2b4b7a49ae1045";
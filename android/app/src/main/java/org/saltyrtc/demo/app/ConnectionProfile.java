@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Everything needed to connect a session: signaling server, keys, timeouts
+ * and ICE servers.
+ *
+ * Profiles are immutable and validated on creation. The built-in profile is
+ * made from {@link Config}, other profiles are parsed from JSON, see
+ * {@link ConnectionProfiles}. Fields missing from the JSON are taken from a
+ * base profile:
+ *
+ * <pre>
+ * {
+ *   "name": "lan",
+ *   "host": "10.0.2.2",
+ *   "port": 8765,
+ *   "server_certificate_asset": "loopback.pem",
+ *   "private_key": "...", "trusted_key": "...", "server_key": "...",
+ *   "ping_interval_s": 10,
+ *   "connect_timeout_ms": 5000,
+ *   "ice": "auto",
+ *   "ice_server_sets": [
+ *     {"name": "google", "servers": [{"url": "stun:stun.l.google.com:19302"}]},
+ *     {"name": "turn", "servers": [{"url": "turn:turn.example.org", "username": "u", "password": "p"}]}
+ *   ]
+ * }
+ * </pre>
+ *
+ * With "ice" set to "auto", the ICE server sets are raced against each other
+ * and the fastest one is used for the next session, see {@link IceServerRace}.
+ * Otherwise the first set is used.
+ */
+final class ConnectionProfile {
+
+	static final String DEFAULT_NAME = "default";
+
+	private static final int KEY_HEX_LENGTH = 64;
+
+	private final String name;
+	private final String host;
+	private final int port;
+	@Nullable private final String serverCertificateAsset;
+	private final String privateKey;
+	private final String trustedKey;
+	private final String serverKey;
+	private final int pingIntervalS;
+	private final int connectTimeoutMs;
+	private final boolean autoIce;
+	private final List<IceServerSet> iceServerSets;
+
+	/**
+	 * A single STUN or TURN server.
+	 */
+	static final class IceServer {
+		final String url;
+		@Nullable final String username;
+		@Nullable final String password;
+
+		IceServer(String url, @Nullable String username, @Nullable String password) {
+			if (!url.matches("(stun|stuns|turn|turns):.+")) {
+				throw new IllegalArgumentException("Invalid ICE server URL: " + url);
+			}
+			if (url.startsWith("turn") && (username == null || password == null)) {
+				throw new IllegalArgumentException("TURN server without credentials: " + url);
+			}
+			this.url = url;
+			this.username = username;
+			this.password = password;
+		}
+	}
+
+	/**
+	 * A named set of ICE servers used together.
+	 */
+	static final class IceServerSet {
+		final String name;
+		final List<IceServer> servers;
+
+		IceServerSet(String name, List<IceServer> servers) {
+			if (servers.isEmpty()) {
+				throw new IllegalArgumentException("ICE server set " + name + " is empty");
+			}
+			this.name = name;
+			this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+		}
+
+		/**
+		 * Return whether the set contains a TURN server.
+		 */
+		boolean hasRelay() {
+			for (final IceServer server : this.servers) {
+				if (server.url.startsWith("turn")) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	ConnectionProfile(String name, String host, int port, @Nullable String serverCertificateAsset,
+	                  String privateKey, String trustedKey, String serverKey,
+	                  int pingIntervalS, int connectTimeoutMs, boolean autoIce, List<IceServerSet> iceServerSets) {
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("Profile name is empty");
+		}
+		if (host.isEmpty()) {
+			throw new IllegalArgumentException("Host is empty");
+		}
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port " + port);
+		}
+		checkKey("private_key", privateKey);
+		checkKey("trusted_key", trustedKey);
+		checkKey("server_key", serverKey);
+		if (pingIntervalS < 0) {
+			throw new IllegalArgumentException("Negative ping interval");
+		}
+		if (connectTimeoutMs <= 0) {
+			throw new IllegalArgumentException("Connect timeout must be positive");
+		}
+		if (iceServerSets.isEmpty()) {
+			throw new IllegalArgumentException("No ICE server set");
+		}
+		final Set<String> names = new HashSet<>();
+		for (final IceServerSet set : iceServerSets) {
+			if (!names.add(set.name)) {
+				throw new IllegalArgumentException("Duplicate ICE server set " + set.name);
+			}
+		}
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.serverCertificateAsset = serverCertificateAsset;
+		this.privateKey = privateKey;
+		this.trustedKey = trustedKey;
+		this.serverKey = serverKey;
+		this.pingIntervalS = pingIntervalS;
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.autoIce = autoIce;
+		this.iceServerSets = Collections.unmodifiableList(new ArrayList<>(iceServerSets));
+	}
+
+	private static void checkKey(String field, String hex) {
+		if (hex.length() != KEY_HEX_LENGTH || !hex.matches("[0-9a-fA-F]+")) {
+			throw new IllegalArgumentException(field + " must be " + KEY_HEX_LENGTH + " hex characters");
+		}
+	}
+
+	/**
+	 * Return the built-in profile, made from {@link Config}.
+	 */
+	static ConnectionProfile fromConfig() {
+		final List<IceServer> servers = new ArrayList<>();
+		servers.add(new IceServer("stun:" + Config.STUN_SERVER, null, null));
+		if (Config.TURN_SERVER != null) {
+			servers.add(new IceServer("turn:" + Config.TURN_SERVER, Config.TURN_USER, Config.TURN_PASS));
+		}
+		return new ConnectionProfile(DEFAULT_NAME, Config.HOST, Config.PORT, Config.SERVER_CERTIFICATE_ASSET,
+				Config.PRIVATE_KEY, Config.TRUSTED_KEY, Config.SERVER_KEY,
+				Config.PING_INTERVAL_S, Config.CONNECT_TIMEOUT_MS, false,
+				Collections.singletonList(new IceServerSet(DEFAULT_NAME, servers)));
+	}
+
+	/**
+	 * Parse a profile. Missing fields are taken from the base profile.
+	 *
+	 * @throws JSONException if a field has the wrong type.
+	 * @throws IllegalArgumentException if a value is invalid.
+	 */
+	static ConnectionProfile fromJson(JSONObject json, ConnectionProfile base) throws JSONException {
+		final List<IceServerSet> iceServerSets;
+		final JSONArray sets = json.optJSONArray("ice_server_sets");
+		if (sets == null) {
+			iceServerSets = base.iceServerSets;
+		} else {
+			iceServerSets = new ArrayList<>();
+			for (int i = 0; i < sets.length(); i++) {
+				final JSONObject set = sets.getJSONObject(i);
+				final JSONArray servers = set.getJSONArray("servers");
+				final List<IceServer> parsed = new ArrayList<>();
+				for (int j = 0; j < servers.length(); j++) {
+					final JSONObject server = servers.getJSONObject(j);
+					parsed.add(new IceServer(server.getString("url"),
+							optString(server, "username", null), optString(server, "password", null)));
+				}
+				iceServerSets.add(new IceServerSet(set.getString("name"), parsed));
+			}
+		}
+		final String ice = json.has("ice") ? json.getString("ice") : (base.autoIce ? "auto" : "first");
+		if (!ice.equals("auto") && !ice.equals("first")) {
+			throw new IllegalArgumentException("ice must be auto or first");
+		}
+		return new ConnectionProfile(
+				json.getString("name"),
+				optString(json, "host", base.host),
+				json.has("port") ? json.getInt("port") : base.port,
+				optString(json, "server_certificate_asset", base.serverCertificateAsset),
+				optString(json, "private_key", base.privateKey),
+				optString(json, "trusted_key", base.trustedKey),
+				optString(json, "server_key", base.serverKey),
+				json.has("ping_interval_s") ? json.getInt("ping_interval_s") : base.pingIntervalS,
+				json.has("connect_timeout_ms") ? json.getInt("connect_timeout_ms") : base.connectTimeoutMs,
+				ice.equals("auto"),
+				iceServerSets);
+	}
+
+	/**
+	 * Like {@link JSONObject#optString(String, String)}, but a JSON null yields
+	 * the fallback instead of the string "null".
+	 */
+	@Nullable
+	private static String optString(JSONObject json, String field, @Nullable String fallback) throws JSONException {
+		return json.isNull(field) ? fallback : json.getString(field);
+	}
+
+	String getName() {
+		return this.name;
+	}
+
+	String getHost() {
+		return this.host;
+	}
+
+	int getPort() {
+		return this.port;
+	}
+
+	@Nullable
+	String getServerCertificateAsset() {
+		return this.serverCertificateAsset;
+	}
+
+	String getPrivateKey() {
+		return this.privateKey;
+	}
+
+	String getTrustedKey() {
+		return this.trustedKey;
+	}
+
+	String getServerKey() {
+		return this.serverKey;
+	}
+
+	int getPingIntervalS() {
+		return this.pingIntervalS;
+	}
+
+	int getConnectTimeoutMs() {
+		return this.connectTimeoutMs;
+	}
+
+	boolean isAutoIce() {
+		return this.autoIce;
+	}
+
+	List<IceServerSet> getIceServerSets() {
+		return this.iceServerSets;
+	}
+
+	/**
+	 * Return the ICE server set with the given name, or the first set if
+	 * there is none.
+	 */
+	IceServerSet getIceServerSet(@Nullable String name) {
+		for (final IceServerSet set : this.iceServerSets) {
+			if (set.name.equals(name)) {
+				return set;
+			}
+		}
+		return this.iceServerSets.get(0);
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " (" + this.host + ":" + this.port + ")";
+	}
+
+}
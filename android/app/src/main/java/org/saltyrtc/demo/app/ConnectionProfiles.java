@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The named connection profiles available to the app.
+ *
+ * Besides the built-in profile made from {@link Config}, profiles are read
+ * from the optional asset file connection-profiles.json:
+ *
+ * <pre>
+ * {"default": "lan", "profiles": [{"name": "lan", ...}, ...]}
+ * </pre>
+ *
+ * Each profile is based on the built-in one, see {@link ConnectionProfile}.
+ * The activity can be started with the extra "profile" to select a profile
+ * by name, for example:
+ *
+ * <pre>
+ * adb shell am start -n org.saltyrtc.demo.app/.MainActivity --es profile lan
+ * </pre>
+ *
+ * Debug builds also accept "profile_json" to pass a whole profile. Release
+ * builds ignore it: the activity is exported, so any app could otherwise
+ * point the signaling connection at its own server and keys.
+ */
+final class ConnectionProfiles {
+
+	private static final String LOG_TAG = ConnectionProfiles.class.getName();
+
+	static final String ASSET = "connection-profiles.json";
+	static final String EXTRA_PROFILE = "profile";
+	static final String EXTRA_PROFILE_JSON = "profile_json";
+
+	private final Map<String, ConnectionProfile> profiles;
+	private final String defaultName;
+
+	private ConnectionProfiles(Map<String, ConnectionProfile> profiles, String defaultName) {
+		this.profiles = Collections.unmodifiableMap(profiles);
+		this.defaultName = defaultName;
+	}
+
+	/**
+	 * Parse a profiles file. The built-in profile is always available.
+	 *
+	 * @throws JSONException if the file is malformed.
+	 * @throws IllegalArgumentException if a profile is invalid.
+	 */
+	static ConnectionProfiles parse(String json, ConnectionProfile builtIn) throws JSONException {
+		final JSONObject root = new JSONObject(json);
+		final Map<String, ConnectionProfile> profiles = new LinkedHashMap<>();
+		profiles.put(builtIn.getName(), builtIn);
+		final JSONArray list = root.optJSONArray("profiles");
+		if (list != null) {
+			for (int i = 0; i < list.length(); i++) {
+				final ConnectionProfile profile = ConnectionProfile.fromJson(list.getJSONObject(i), builtIn);
+				if (profiles.put(profile.getName(), profile) != null) {
+					throw new IllegalArgumentException("Duplicate profile " + profile.getName());
+				}
+			}
+		}
+		final String defaultName = root.isNull("default") ? builtIn.getName() : root.getString("default");
+		if (!profiles.containsKey(defaultName)) {
+			throw new IllegalArgumentException("Unknown default profile " + defaultName);
+		}
+		return new ConnectionProfiles(profiles, defaultName);
+	}
+
+	/**
+	 * Return the profiles with only the built-in one.
+	 */
+	static ConnectionProfiles builtIn(ConnectionProfile builtIn) {
+		return new ConnectionProfiles(Collections.singletonMap(builtIn.getName(), builtIn), builtIn.getName());
+	}
+
+	ConnectionProfile getDefault() {
+		return this.profiles.get(this.defaultName);
+	}
+
+	@Nullable
+	ConnectionProfile get(String name) {
+		return this.profiles.get(name);
+	}
+
+	/**
+	 * Load the profiles and select the one requested by the intent, falling
+	 * back to the default profile if the request is invalid.
+	 */
+	static ConnectionProfile load(Context context, @Nullable Intent intent) {
+		final ConnectionProfile builtIn = ConnectionProfile.fromConfig();
+		ConnectionProfiles profiles;
+		try (InputStream in = context.getAssets().open(ASSET)) {
+			profiles = parse(readFully(in), builtIn);
+		} catch (final FileNotFoundException e) {
+			profiles = builtIn(builtIn);
+		} catch (final IOException | JSONException | IllegalArgumentException e) {
+			AppLog.e(LOG_TAG, "Ignoring invalid " + ASSET, e);
+			profiles = builtIn(builtIn);
+		}
+
+		final ConnectionProfile fallback = profiles.getDefault();
+		if (intent != null && intent.hasExtra(EXTRA_PROFILE_JSON)) {
+			if (!BuildConfig.DEBUG) {
+				AppLog.w(LOG_TAG, "Ignoring profile passed by intent in a release build");
+				return fallback;
+			}
+			try {
+				return ConnectionProfile.fromJson(new JSONObject(intent.getStringExtra(EXTRA_PROFILE_JSON)), fallback);
+			} catch (final JSONException | IllegalArgumentException e) {
+				AppLog.e(LOG_TAG, "Ignoring invalid profile passed by intent", e);
+				return fallback;
+			}
+		}
+		if (intent != null && intent.hasExtra(EXTRA_PROFILE)) {
+			final ConnectionProfile profile = profiles.get(intent.getStringExtra(EXTRA_PROFILE));
+			if (profile != null) {
+				return profile;
+			}
+			AppLog.e(LOG_TAG, "Unknown profile " + intent.getStringExtra(EXTRA_PROFILE));
+		}
+		return fallback;
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
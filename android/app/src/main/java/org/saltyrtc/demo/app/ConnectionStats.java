@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.Nullable;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the statistics of a peer connection.
+ *
+ * Made from a stats report: the selected candidate pair with its candidate
+ * types and round trip time, the bytes on the transport, the messages on the
+ * data channels and the amount of data buffered by SCTP. Values missing from
+ * the report are 0, or -1 for the round trip time.
+ */
+final class ConnectionStats {
+
+	static final String CANDIDATE_HOST = "host";
+	static final String CANDIDATE_RELAY = "relay";
+
+	// libwebrtc reports the timestamp as a double
+	final double timestampUs;
+	@Nullable final String localCandidateType;
+	@Nullable final String remoteCandidateType;
+	@Nullable final String protocol;
+	final double roundTripTimeMs;
+	final long bytesSent;
+	final long bytesReceived;
+	final long messagesSent;
+	final long messagesReceived;
+	final long bufferedAmount;
+
+	ConnectionStats(double timestampUs, @Nullable String localCandidateType, @Nullable String remoteCandidateType,
+	                @Nullable String protocol, double roundTripTimeMs, long bytesSent, long bytesReceived,
+	                long messagesSent, long messagesReceived, long bufferedAmount) {
+		this.timestampUs = timestampUs;
+		this.localCandidateType = localCandidateType;
+		this.remoteCandidateType = remoteCandidateType;
+		this.protocol = protocol;
+		this.roundTripTimeMs = roundTripTimeMs;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.messagesSent = messagesSent;
+		this.messagesReceived = messagesReceived;
+		this.bufferedAmount = bufferedAmount;
+	}
+
+	/**
+	 * Extract the snapshot from a stats report.
+	 *
+	 * The selected pair is the one referenced by the transport. Older
+	 * WebRTC builds do not report it, then the nominated pair that succeeded
+	 * is used.
+	 *
+	 * @param bufferedAmount Bytes buffered by the data channels, which is not
+	 *                       part of the report.
+	 */
+	static ConnectionStats fromReport(RTCStatsReport report, long bufferedAmount) {
+		final Map<String, RTCStats> all = report.getStatsMap();
+		RTCStats pair = null;
+		for (final RTCStats stats : all.values()) {
+			if ("transport".equals(stats.getType())) {
+				final Object id = stats.getMembers().get("selectedCandidatePairId");
+				if (id != null) {
+					pair = all.get(id.toString());
+				}
+			}
+		}
+		long messagesSent = 0;
+		long messagesReceived = 0;
+		for (final RTCStats stats : all.values()) {
+			final Map<String, Object> members = stats.getMembers();
+			if (pair == null && "candidate-pair".equals(stats.getType())
+					&& Boolean.TRUE.equals(members.get("nominated"))
+					&& "succeeded".equals(getString(members, "state"))) {
+				pair = stats;
+			} else if ("data-channel".equals(stats.getType())) {
+				messagesSent += getLong(members, "messagesSent");
+				messagesReceived += getLong(members, "messagesReceived");
+			}
+		}
+		if (pair == null) {
+			return new ConnectionStats(report.getTimestampUs(), null, null, null, -1, 0, 0,
+					messagesSent, messagesReceived, bufferedAmount);
+		}
+
+		final Map<String, Object> members = pair.getMembers();
+		final RTCStats local = all.get(getString(members, "localCandidateId"));
+		final RTCStats remote = all.get(getString(members, "remoteCandidateId"));
+		final Object roundTripTime = members.get("currentRoundTripTime");
+		return new ConnectionStats(
+				report.getTimestampUs(),
+				local == null ? null : getString(local.getMembers(), "candidateType"),
+				remote == null ? null : getString(remote.getMembers(), "candidateType"),
+				local == null ? null : getString(local.getMembers(), "protocol"),
+				roundTripTime instanceof Number ? ((Number) roundTripTime).doubleValue() * 1000 : -1,
+				getLong(members, "bytesSent"),
+				getLong(members, "bytesReceived"),
+				messagesSent,
+				messagesReceived,
+				bufferedAmount);
+	}
+
+	@Nullable
+	private static String getString(Map<String, Object> members, String name) {
+		final Object value = members.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Counters are reported as Long or BigInteger, depending on their type.
+	 */
+	private static long getLong(Map<String, Object> members, String name) {
+		final Object value = members.get(name);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	/**
+	 * Return whether a candidate pair has been selected.
+	 */
+	boolean hasPair() {
+		return this.localCandidateType != null && this.remoteCandidateType != null;
+	}
+
+	/**
+	 * Return whether the selected pair goes through a TURN server.
+	 */
+	boolean isRelayed() {
+		return CANDIDATE_RELAY.equals(this.localCandidateType) || CANDIDATE_RELAY.equals(this.remoteCandidateType);
+	}
+
+	/**
+	 * Return whether both candidates of the selected pair are host candidates.
+	 */
+	boolean isHostPair() {
+		return CANDIDATE_HOST.equals(this.localCandidateType) && CANDIDATE_HOST.equals(this.remoteCandidateType);
+	}
+
+	/**
+	 * Return a short summary for the UI, e.g. "rtt 12 ms, host/srflx udp".
+	 */
+	String summary() {
+		if (!this.hasPair()) {
+			return "no pair";
+		}
+		return String.format(Locale.US, "rtt %.0f ms, %s/%s %s",
+				this.roundTripTimeMs, this.localCandidateType, this.remoteCandidateType, this.protocol);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%s, sent %d B, received %d B, messages %d/%d, buffered %d B",
+				this.summary(), this.bytesSent, this.bytesReceived,
+				this.messagesSent, this.messagesReceived, this.bufferedAmount);
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Answers the pings of a load test, see {@link Records.Ping}.
+ *
+ * Every ping is answered with a pong right away, from the receiving thread.
+ * The responder keeps no state per ping: the round trip time, loss and
+ * reordering are measured by the peer that sent the pings. It only counts the
+ * pings, and the pings that arrived after a ping with a higher sequence
+ * number. Not thread safe, use one responder per {@link RecordDispatcher}.
+ */
+final class EchoResponder {
+
+	interface Sender {
+		/**
+		 * Send an encoded frame. The frame was acquired from the responder's
+		 * pool and must be released to it once sent.
+		 */
+		void send(ByteBuffer frame);
+	}
+
+	private final BufferPool pool;
+	private final Sender sender;
+	private final Records.Pong pong = new Records.Pong();
+	private final MetricsRegistry.Counter pings;
+	private final MetricsRegistry.Counter pingBytes;
+	private final MetricsRegistry.Counter reordered;
+	private long highestSequence = -1;
+
+	EchoResponder(MetricsRegistry registry, BufferPool pool, Sender sender) {
+		this.pool = pool;
+		this.sender = sender;
+		this.pings = registry.counter("echo_pings_total");
+		this.pingBytes = registry.counter("echo_ping_bytes_total");
+		this.reordered = registry.counter("echo_pings_reordered_total");
+	}
+
+	/**
+	 * Register the handler for pings.
+	 */
+	void register(RecordDispatcher records) {
+		records.register(new Records.Ping(), this::onPing);
+	}
+
+	private void onPing(Records.Ping ping) {
+		this.pings.increment();
+		this.pingBytes.add(ping.getSize());
+		if (ping.sequence < this.highestSequence) {
+			this.reordered.increment();
+		} else {
+			this.highestSequence = ping.sequence;
+		}
+		this.sender.send(RecordCodec.encode(this.pong.set(ping), this.pool));
+	}
+
+}
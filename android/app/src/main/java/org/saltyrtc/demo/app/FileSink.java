@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream sink writing to a file through a {@link FileChannel}.
+ *
+ * Data is written at its offset within the payload, so a resumed stream
+ * continues where the previous one stopped. A stream starting at offset 0
+ * replaces the previous contents of the file.
+ */
+class FileSink implements StreamReceiver.Sink {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private long position;
+
+	FileSink(File file, long totalLength, long offset) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.position = offset;
+		if (offset == 0) {
+			try {
+				this.file.setLength(totalLength);
+			} catch (final IOException e) {
+				this.file.close();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			this.position += this.channel.write(data, this.position);
+		}
+	}
+
+	@Override
+	public void close(boolean complete) throws IOException {
+		try {
+			if (complete) {
+				this.channel.force(false);
+			}
+		} finally {
+			this.file.close();
+		}
+	}
+
+}
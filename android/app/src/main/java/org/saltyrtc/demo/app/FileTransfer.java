@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File transfers over the bulk channel, in both directions.
+ *
+ * Outgoing files are memory mapped and sent slice by slice as a stream, so the
+ * file is never copied onto the heap. Incoming streams are written into a
+ * pre-sized mapped file via {@link MappedFileSink}. Streams too large to be
+ * mapped fall back to a {@link FileSink} and cannot be resumed.
+ *
+ * Files are sent as streams of the file kind, which are the only ones that
+ * are acknowledged and resumed. Interrupted transfers are resumed: when a new
+ * bulk channel is attached and an incoming file is incomplete, a resume
+ * request is sent to the peer. When the peer requests a resume, the last
+ * outgoing file is sent again from the requested offset. The end-to-end
+ * throughput is measured from the start of a stream until the peer
+ * acknowledges it.
+ */
+@AnyThread
+class FileTransfer implements StreamReceiver.SinkFactory {
+
+	private static final String LOG_TAG = FileTransfer.class.getName();
+
+	/**
+	 * Progress listener. Called from the sender or data channel thread.
+	 */
+	interface Listener {
+		/**
+		 * An outgoing file has been acknowledged by the peer.
+		 */
+		void onAcknowledged(long bytes, boolean checksumValid, double megabytesPerSecond);
+
+		/**
+		 * An outgoing transfer failed.
+		 */
+		void onError(String reason);
+	}
+
+	private final File incomingFile;
+	private final Listener listener;
+
+	@Nullable private volatile ChannelScheduler scheduler;
+
+	// Outgoing
+	@Nullable private volatile MappedByteBuffer outgoing;
+	@Nullable private volatile BulkTransfer transfer;
+	private volatile long outgoingOffset;
+	private volatile long outgoingStartedAt;
+
+	// Incoming
+	@Nullable private volatile MappedFileSink incoming;
+	private volatile long incomingTotal;
+
+	FileTransfer(File incomingFile, Listener listener) {
+		this.incomingFile = incomingFile;
+		this.listener = listener;
+	}
+
+	/**
+	 * Map a file for sending. Files larger than 2 GiB cannot be mapped at once.
+	 */
+	static MappedByteBuffer map(FileChannel channel) throws IOException {
+		final long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("File too large to be mapped: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Attach to the scheduler of a session once its bulk channel is available.
+	 * Requests the remainder of an interrupted incoming file.
+	 */
+	void attach(ChannelScheduler scheduler) {
+		this.scheduler = scheduler;
+		final MappedFileSink incoming = this.incoming;
+		if (incoming != null && !incoming.isComplete()) {
+			final long offset = incoming.getWritten();
+			AppLog.d(LOG_TAG, "Requesting resume of incoming file at offset {}/{}", offset, this.incomingTotal);
+			final ByteBuffer frame = ByteBuffer.allocateDirect(StreamFrames.RESUME_SIZE);
+			StreamFrames.putResume(frame, offset);
+			frame.flip();
+			scheduler.sendFrame(ChannelScheduler.Lane.BULK, frame);
+		}
+	}
+
+	/**
+	 * Detach from the session's scheduler. An outgoing transfer can be resumed
+	 * once the peer requests it on the next session.
+	 */
+	void detach() {
+		this.scheduler = null;
+		final BulkTransfer transfer = this.transfer;
+		if (transfer != null) {
+			transfer.cancel();
+		}
+	}
+
+	/**
+	 * Send a mapped file, starting at the given offset.
+	 */
+	boolean send(MappedByteBuffer file, long offset) {
+		final ChannelScheduler scheduler = this.scheduler;
+		if (scheduler == null || offset > file.capacity()) {
+			return false;
+		}
+		final BulkTransfer previous = this.transfer;
+		if (previous != null && !previous.isDone()) {
+			AppLog.w(LOG_TAG, "File transfer already in progress");
+			return false;
+		}
+		final ByteBuffer payload = file.duplicate();
+		payload.position((int) offset);
+		this.outgoing = file;
+		this.outgoingOffset = offset;
+		this.outgoingStartedAt = System.nanoTime();
+		this.transfer = scheduler.sendBulk(payload, StreamFrames.KIND_FILE, new BulkTransfer.Listener() {
+			@Override
+			public void onProgress(long sent, long total, double megabytesPerSecond) {
+				// The end-to-end throughput is reported once acknowledged
+			}
+
+			@Override
+			public void onComplete(long total, double megabytesPerSecond) {
+				AppLog.d(LOG_TAG, "Handed {} bytes to the data channel, {} MB/s", total, megabytesPerSecond);
+			}
+
+			@Override
+			public void onError(long sent, long total, String reason) {
+				FileTransfer.this.listener.onError(reason + " at " + sent + "/" + total + " bytes");
+			}
+		});
+		return this.transfer != null;
+	}
+
+	/**
+	 * Handle a control frame sent by the peer in response to an outgoing stream.
+	 */
+	void onControlFrame(ByteBuffer frame) {
+		final ByteBuffer in = frame.duplicate();
+		final byte type = in.get();
+		if (type == StreamFrames.TYPE_ACK && in.remaining() >= StreamFrames.ACK_SIZE - 1) {
+			if (this.outgoing == null) {
+				AppLog.w(LOG_TAG, "Acknowledgement without outgoing file");
+				return;
+			}
+			final long received = in.getLong();
+			final boolean checksumValid = in.get() != 0;
+			final long elapsed = System.nanoTime() - this.outgoingStartedAt;
+			final long bytes = received - this.outgoingOffset;
+			final double megabytesPerSecond = elapsed <= 0 ? 0 : (bytes / 1e6) / (elapsed / 1e9);
+			this.listener.onAcknowledged(bytes, checksumValid, megabytesPerSecond);
+		} else if (type == StreamFrames.TYPE_RESUME && in.remaining() >= StreamFrames.RESUME_SIZE - 1) {
+			final long offset = in.getLong();
+			final MappedByteBuffer outgoing = this.outgoing;
+			if (outgoing == null || !this.send(outgoing, offset)) {
+				AppLog.w(LOG_TAG, "Cannot resume outgoing file at offset " + offset);
+			}
+		} else {
+			AppLog.w(LOG_TAG, "Invalid control frame");
+		}
+	}
+
+	/**
+	 * Create a mapped sink for an incoming file. A stream with a non-zero
+	 * offset continues the previous incoming file.
+	 */
+	@Override
+	public StreamReceiver.Sink create(byte kind, long totalLength, long offset) throws IOException {
+		if (kind != StreamFrames.KIND_FILE) {
+			throw new IOException("Not a file stream: kind " + kind);
+		}
+		if (offset > 0 && totalLength != this.incomingTotal) {
+			throw new IOException("Resumed stream does not match the incomplete file");
+		}
+		this.incomingTotal = totalLength;
+		if (totalLength - offset > Integer.MAX_VALUE) {
+			this.incoming = null;
+			return new FileSink(this.incomingFile, totalLength, offset);
+		}
+		final MappedFileSink sink = new MappedFileSink(this.incomingFile, totalLength, offset);
+		this.incoming = sink;
+		return sink;
+	}
+
+	/**
+	 * Acknowledge a completed incoming file to the peer.
+	 */
+	void acknowledge(long received, boolean checksumValid) {
+		final ChannelScheduler scheduler = this.scheduler;
+		if (scheduler == null) {
+			return;
+		}
+		final ByteBuffer frame = ByteBuffer.allocateDirect(StreamFrames.ACK_SIZE);
+		StreamFrames.putAck(frame, received, checksumValid);
+		frame.flip();
+		scheduler.sendFrame(ChannelScheduler.Lane.BULK, frame);
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects locally gathered ICE candidates and sends them in batches.
+ *
+ * Every candidate message is a separate encrypted signaling message relayed by
+ * the SaltyRTC server. Candidates are therefore held back until either the
+ * batching window has elapsed or the maximum batch size is reached. Call
+ * {@link #flush()} once gathering is complete to send the rest immediately.
+ * Once closed, further candidates are ignored.
+ */
+@AnyThread
+class IceCandidateBatcher {
+
+	/**
+	 * Sends a batch of candidates to the peer.
+	 */
+	interface Sender {
+		void send(IceCandidate[] candidates);
+	}
+
+	private final Sender sender;
+	private final long windowMs;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private final List<IceCandidate> pending = new ArrayList<>();
+	private ScheduledFuture<?> scheduledFlush;
+	private boolean closed = false;
+
+	IceCandidateBatcher(Sender sender, long windowMs, int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		this.sender = sender;
+		this.windowMs = windowMs;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Add a candidate to the current batch.
+	 */
+	synchronized void add(IceCandidate candidate) {
+		if (this.closed) {
+			return;
+		}
+		this.pending.add(candidate);
+		if (this.pending.size() >= this.maxBatchSize || this.windowMs <= 0) {
+			this.flush();
+		} else if (this.scheduledFlush == null) {
+			this.scheduledFlush = this.scheduler.schedule(this::flush, this.windowMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Send all pending candidates now.
+	 *
+	 * Sending happens while holding the lock so that batches go out in order.
+	 */
+	synchronized void flush() {
+		if (this.scheduledFlush != null) {
+			this.scheduledFlush.cancel(false);
+			this.scheduledFlush = null;
+		}
+		if (this.closed || this.pending.isEmpty()) {
+			return;
+		}
+		final IceCandidate[] batch = this.pending.toArray(new IceCandidate[0]);
+		this.pending.clear();
+		this.sender.send(batch);
+	}
+
+	/**
+	 * Drop pending candidates and stop the scheduler.
+	 */
+	synchronized void close() {
+		this.closed = true;
+		this.pending.clear();
+		this.scheduledFlush = null;
+		this.scheduler.shutdownNow();
+	}
+
+}
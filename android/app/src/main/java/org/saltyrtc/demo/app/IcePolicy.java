@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Decides which ICE candidates the next session gathers, based on the
+ * outcome of the previous sessions of a profile.
+ *
+ * After every session that attempted ICE, the selected candidate pair and its
+ * median round trip time are recorded. Round trip times are kept as moving
+ * averages, separately for direct and relayed pairs. The next session then
+ * uses one of these modes:
+ *
+ * - {@link Mode#RELAY} gathers relay candidates only. Chosen if direct
+ *   connections failed repeatedly, or if relayed pairs were clearly faster.
+ * - {@link Mode#HOST} gathers host candidates only and skips the STUN and
+ *   TURN servers. Chosen if the last sessions all ran over fast host pairs,
+ *   e.g. within a LAN.
+ * - {@link Mode#ALL} gathers all candidates. Used otherwise, after a session
+ *   in a restricted mode failed, and every few sessions to re-measure.
+ *
+ * The state is persisted per profile, see {@link #load(Context, ConnectionProfile)}.
+ */
+@AnyThread
+final class IcePolicy {
+
+	private static final String LOG_TAG = IcePolicy.class.getName();
+
+	private static final String PREFERENCES = "ice-policy";
+
+	// Weight of a new sample in the moving averages
+	static final double AVERAGE_WEIGHT = 0.3;
+	// Relayed pairs must be at least this much faster than direct ones
+	static final double RELAY_ADVANTAGE = 0.7;
+	static final int DIRECT_FAILURES_FOR_RELAY = 2;
+	static final double HOST_MAX_RTT_MS = 20;
+	static final int HOST_SESSIONS_FOR_HOST = 3;
+	// Every n-th session gathers all candidates
+	static final int EXPLORE_INTERVAL = 5;
+
+	enum Mode {
+		ALL,
+		RELAY,
+		HOST,
+	}
+
+	@Nullable private final SharedPreferences preferences;
+	@Nullable private final String key;
+
+	// Guarded by this
+	private double directRttMs = -1;
+	private double relayRttMs = -1;
+	private int directFailures = 0;
+	private int hostSessions = 0;
+	private int sessions = 0;
+	private boolean restrictedFailed = false;
+
+	/**
+	 * Create a policy that is not persisted.
+	 */
+	IcePolicy() {
+		this(null, null);
+	}
+
+	private IcePolicy(@Nullable SharedPreferences preferences, @Nullable String key) {
+		this.preferences = preferences;
+		this.key = key;
+	}
+
+	/**
+	 * Load the policy of a profile.
+	 */
+	static IcePolicy load(Context context, ConnectionProfile profile) {
+		final SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+		final IcePolicy policy = new IcePolicy(preferences, profile.getName());
+		final String state = preferences.getString(profile.getName(), null);
+		if (state != null) {
+			try {
+				policy.restore(state);
+			} catch (final IllegalArgumentException e) {
+				AppLog.w(LOG_TAG, "Ignoring invalid ICE policy state: " + e.getMessage());
+			}
+		}
+		return policy;
+	}
+
+	/**
+	 * Return the mode of the next session.
+	 *
+	 * @param relayAvailable Whether the ICE server set contains a TURN server.
+	 */
+	synchronized Mode next(boolean relayAvailable) {
+		if (this.restrictedFailed || (this.sessions + 1) % EXPLORE_INTERVAL == 0) {
+			return Mode.ALL;
+		}
+		if (relayAvailable && this.directFailures >= DIRECT_FAILURES_FOR_RELAY) {
+			return Mode.RELAY;
+		}
+		if (relayAvailable && this.relayRttMs >= 0 && this.directRttMs >= 0
+				&& this.relayRttMs < RELAY_ADVANTAGE * this.directRttMs) {
+			return Mode.RELAY;
+		}
+		if (this.hostSessions >= HOST_SESSIONS_FOR_HOST) {
+			return Mode.HOST;
+		}
+		return Mode.ALL;
+	}
+
+	/**
+	 * Record the outcome of a session that attempted ICE.
+	 *
+	 * @param mode The mode the session used.
+	 * @param stats The latest stats of the session, or null if there were none.
+	 * @param medianRttMs The median round trip time of the session, or -1.
+	 * @param connected Whether ICE connected.
+	 */
+	synchronized void record(Mode mode, @Nullable ConnectionStats stats, double medianRttMs, boolean connected) {
+		this.sessions++;
+		this.restrictedFailed = !connected && mode != Mode.ALL;
+		if (!connected) {
+			if (mode == Mode.ALL) {
+				this.directFailures++;
+			}
+			this.hostSessions = 0;
+		} else if (stats != null && stats.hasPair()) {
+			if (stats.isRelayed()) {
+				this.relayRttMs = average(this.relayRttMs, medianRttMs);
+				this.hostSessions = 0;
+			} else {
+				this.directRttMs = average(this.directRttMs, medianRttMs);
+				this.directFailures = 0;
+				final boolean fastHost = stats.isHostPair() && medianRttMs >= 0 && medianRttMs <= HOST_MAX_RTT_MS;
+				this.hostSessions = fastHost ? this.hostSessions + 1 : 0;
+			}
+		}
+		this.save();
+	}
+
+	private static double average(double average, double sample) {
+		if (sample < 0) {
+			return average;
+		}
+		return average < 0 ? sample : average + AVERAGE_WEIGHT * (sample - average);
+	}
+
+	/**
+	 * Persist the state, if the policy belongs to a profile.
+	 */
+	private void save() {
+		if (this.preferences != null) {
+			this.preferences.edit().putString(this.key, this.toString()).apply();
+		}
+	}
+
+	private synchronized void restore(String state) {
+		final String[] fields = state.split(";");
+		if (fields.length != 6) {
+			throw new IllegalArgumentException("Expected 6 fields, got " + fields.length);
+		}
+		final double directRttMs;
+		final double relayRttMs;
+		final int directFailures;
+		final int hostSessions;
+		final int sessions;
+		try {
+			directRttMs = Double.parseDouble(fields[0]);
+			relayRttMs = Double.parseDouble(fields[1]);
+			directFailures = Integer.parseInt(fields[2]);
+			hostSessions = Integer.parseInt(fields[3]);
+			sessions = Integer.parseInt(fields[4]);
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		this.directRttMs = directRttMs;
+		this.relayRttMs = relayRttMs;
+		this.directFailures = directFailures;
+		this.hostSessions = hostSessions;
+		this.sessions = sessions;
+		this.restrictedFailed = Boolean.parseBoolean(fields[5]);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "%.3f;%.3f;%d;%d;%d;%b",
+				this.directRttMs, this.relayRttMs, this.directFailures, this.hostSessions,
+				this.sessions, this.restrictedFailed);
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races the ICE server sets of a profile against each other.
+ *
+ * For every set, a throwaway peer connection gathers candidates for an offer
+ * with a single data channel. The first set to yield a server reflexive or
+ * relay candidate wins. Its name is stored per profile and picked up by the
+ * next session, see {@link #getWinner(Context, ConnectionProfile)}. If no set
+ * yields such a candidate before the timeout, the stored winner is kept.
+ */
+@AnyThread
+final class IceServerRace {
+
+	private static final String LOG_TAG = IceServerRace.class.getName();
+
+	private static final String PREFERENCES = "ice-server-race";
+	private static final long TIMEOUT_MS = 5000;
+
+	private final Context context;
+	private final ConnectionProfile profile;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+			runnable -> new Thread(runnable, "IceServerRace"));
+
+	// Guarded by this
+	private final List<PeerConnection> connections = new ArrayList<>();
+	private final List<DataChannel> channels = new ArrayList<>();
+	private int gathering;
+	private boolean finished = false;
+	private long startedAt;
+
+	private IceServerRace(Context context, ConnectionProfile profile) {
+		this.context = context.getApplicationContext();
+		this.profile = profile;
+	}
+
+	/**
+	 * Return the name of the ICE server set that won the last race of the
+	 * profile, or null if there was none yet.
+	 */
+	@Nullable
+	static String getWinner(Context context, ConnectionProfile profile) {
+		return preferences(context).getString(profile.getName(), null);
+	}
+
+	/**
+	 * Race the ICE server sets of the profile in the background.
+	 */
+	static void start(Context context, ConnectionProfile profile) {
+		final IceServerRace race = new IceServerRace(context, profile);
+		race.executor.execute(race::run);
+	}
+
+	private static SharedPreferences preferences(Context context) {
+		return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	private void run() {
+		final PeerConnectionFactory factory = PeerConnectionFactoryHolder.acquire(this.context);
+		final List<ConnectionProfile.IceServerSet> sets = this.profile.getIceServerSets();
+		synchronized (this) {
+			this.startedAt = System.nanoTime();
+			this.gathering = sets.size();
+		}
+		this.executor.schedule(() -> this.finish(null), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+		// Do not hold the lock while calling into WebRTC, its callbacks take it
+		for (final ConnectionProfile.IceServerSet set : sets) {
+			final PeerConnection pc = factory.createPeerConnection(
+					WebRTC.createIceServers(set), new RaceObserver(set));
+			final DataChannel dc = pc.createDataChannel("ice-server-race", new DataChannel.Init());
+			synchronized (this) {
+				this.connections.add(pc);
+				this.channels.add(dc);
+				if (this.finished) {
+					break;
+				}
+			}
+			pc.createOffer(new OfferObserver(pc), new MediaConstraints());
+		}
+	}
+
+	private synchronized void onCandidate(ConnectionProfile.IceServerSet set, IceCandidate candidate) {
+		if (candidate.sdp.contains(" typ srflx") || candidate.sdp.contains(" typ relay")) {
+			this.finish(set);
+		}
+	}
+
+	private synchronized void onGatheringComplete() {
+		if (--this.gathering == 0) {
+			this.finish(null);
+		}
+	}
+
+	/**
+	 * End the race. Called with the winner, or with null on timeout or if no
+	 * set yielded a usable candidate.
+	 */
+	private synchronized void finish(@Nullable ConnectionProfile.IceServerSet winner) {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+		if (winner != null) {
+			AppLog.i(LOG_TAG, "ICE server set " + winner.name + " of profile " + this.profile.getName() + " won after "
+					+ (System.nanoTime() - this.startedAt) / 1000000 + " ms");
+			preferences(this.context).edit().putString(this.profile.getName(), winner.name).apply();
+		} else {
+			AppLog.w(LOG_TAG, "No ICE server set of profile " + this.profile.getName() + " yielded a usable candidate");
+		}
+
+		// Peer connections must not be disposed from within their own callbacks.
+		// This also runs after a race that is still creating connections.
+		this.executor.execute(() -> {
+			final List<DataChannel> channels;
+			final List<PeerConnection> connections;
+			synchronized (this) {
+				channels = new ArrayList<>(this.channels);
+				connections = new ArrayList<>(this.connections);
+			}
+			for (final DataChannel dc : channels) {
+				dc.dispose();
+			}
+			for (final PeerConnection pc : connections) {
+				pc.close();
+				pc.dispose();
+			}
+			PeerConnectionFactoryHolder.release();
+			this.executor.shutdownNow();
+		});
+	}
+
+	private class OfferObserver implements SdpObserver {
+		private final PeerConnection pc;
+
+		OfferObserver(PeerConnection pc) {
+			this.pc = pc;
+		}
+
+		@Override
+		public void onCreateSuccess(SessionDescription description) {
+			this.pc.setLocalDescription(this, description);
+		}
+
+		@Override
+		public void onSetSuccess() {
+			// Gathering starts now
+		}
+
+		@Override
+		public void onCreateFailure(String error) {
+			AppLog.e(LOG_TAG, "Could not create offer: " + error);
+			IceServerRace.this.onGatheringComplete();
+		}
+
+		@Override
+		public void onSetFailure(String error) {
+			AppLog.e(LOG_TAG, "Could not set offer: " + error);
+			IceServerRace.this.onGatheringComplete();
+		}
+	}
+
+	private class RaceObserver implements PeerConnection.Observer {
+		private final ConnectionProfile.IceServerSet set;
+
+		RaceObserver(ConnectionProfile.IceServerSet set) {
+			this.set = set;
+		}
+
+		@Override
+		public void onIceCandidate(IceCandidate candidate) {
+			IceServerRace.this.onCandidate(this.set, candidate);
+		}
+
+		@Override
+		public void onIceGatheringChange(PeerConnection.IceGatheringState state) {
+			if (state == PeerConnection.IceGatheringState.COMPLETE) {
+				IceServerRace.this.onGatheringComplete();
+			}
+		}
+
+		@Override
+		public void onSignalingChange(PeerConnection.SignalingState state) { }
+
+		@Override
+		public void onIceConnectionChange(PeerConnection.IceConnectionState state) { }
+
+		@Override
+		public void onIceConnectionReceivingChange(boolean receiving) { }
+
+		@Override
+		public void onIceCandidatesRemoved(IceCandidate[] candidates) { }
+
+		@Override
+		public void onAddStream(MediaStream stream) { }
+
+		@Override
+		public void onRemoveStream(MediaStream stream) { }
+
+		@Override
+		public void onDataChannel(DataChannel dc) { }
+
+		@Override
+		public void onRenegotiationNeeded() { }
+
+		@Override
+		public void onAddTrack(RtpReceiver receiver, MediaStream[] streams) { }
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.client.exceptions.InvalidKeyException;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Process wide cache of the {@link KeyMaterial} of a {@link ConnectionProfile}.
+ *
+ * The key material is derived once per process and shared by all sessions,
+ * unless a session uses a profile with different keys.
+ */
+final class KeyCache {
+
+	private static final String LOG_TAG = KeyCache.class.getName();
+
+	@Nullable private static KeyMaterial material;
+	@Nullable private static ConnectionProfile materialProfile;
+
+	private KeyCache() { }
+
+	/**
+	 * Return the key material, deriving it if necessary.
+	 *
+	 * The first call may take a while, so call {@link #warmUp(ConnectionProfile, Executor)}
+	 * early to have it done in the background.
+	 */
+	@AnyThread
+	static synchronized KeyMaterial get(ConnectionProfile profile) throws InvalidKeyException {
+		if (material == null || !sameKeys(materialProfile, profile)) {
+			final long start = System.nanoTime();
+			material = KeyMaterial.derive(profile.getPrivateKey(), profile.getServerKey(), profile.getTrustedKey());
+			AppLog.d(LOG_TAG, "Derived key material in {} us", (System.nanoTime() - start) / 1000);
+			materialProfile = profile;
+		}
+		return material;
+	}
+
+	private static boolean sameKeys(@Nullable ConnectionProfile a, ConnectionProfile b) {
+		return a != null
+				&& a.getPrivateKey().equals(b.getPrivateKey())
+				&& a.getServerKey().equals(b.getServerKey())
+				&& a.getTrustedKey().equals(b.getTrustedKey());
+	}
+
+	/**
+	 * Derive the key material on the given executor, unless already done.
+	 */
+	@AnyThread
+	static void warmUp(ConnectionProfile profile, Executor executor) {
+		executor.execute(() -> {
+			try {
+				get(profile);
+			} catch (final InvalidKeyException e) {
+				AppLog.e(LOG_TAG, "Invalid key in profile " + profile.getName(), e);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.saltyrtc.client.exceptions.InvalidKeyException;
+import org.saltyrtc.client.keystore.KeyStore;
+
+/**
+ * Parsed and derived key material: the permanent key store, the public key of
+ * the server and the public key of the trusted peer.
+ *
+ * Parsing the hex strings and deriving the public key from the private key
+ * happens once, on construction. Instances are immutable and shared by all
+ * sessions of the process.
+ */
+final class KeyMaterial {
+
+	private static final int KEY_LENGTH = 32;
+
+	private final KeyStore keyStore;
+	private final String publicKeyHex;
+	private final byte[] serverKey;
+	private final byte[] trustedKey;
+
+	private KeyMaterial(KeyStore keyStore, byte[] serverKey, byte[] trustedKey) {
+		this.keyStore = keyStore;
+		this.publicKeyHex = keyStore.getPublicKeyHex();
+		this.serverKey = serverKey;
+		this.trustedKey = trustedKey;
+	}
+
+	/**
+	 * Parse all keys and derive the public key from the private key.
+	 */
+	static KeyMaterial derive(String privateKeyHex, String serverKeyHex, String trustedKeyHex)
+			throws InvalidKeyException {
+		return new KeyMaterial(new KeyStore(privateKeyHex), fromHex(serverKeyHex), fromHex(trustedKeyHex));
+	}
+
+	KeyStore getKeyStore() {
+		return this.keyStore;
+	}
+
+	String getPublicKeyHex() {
+		return this.publicKeyHex;
+	}
+
+	/**
+	 * Return a copy of the server's public key.
+	 */
+	byte[] getServerKey() {
+		return this.serverKey.clone();
+	}
+
+	/**
+	 * Return a copy of the trusted peer's public key.
+	 */
+	byte[] getTrustedKey() {
+		return this.trustedKey.clone();
+	}
+
+	/**
+	 * Decode a 32 byte key from its hex representation.
+	 */
+	static byte[] fromHex(String hex) throws InvalidKeyException {
+		if (hex.length() != KEY_LENGTH * 2) {
+			throw new InvalidKeyException("Key must be " + KEY_LENGTH * 2 + " hex characters");
+		}
+		final byte[] bytes = new byte[KEY_LENGTH];
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			final int high = Character.digit(hex.charAt(2 * i), 16);
+			final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new InvalidKeyException("Key contains invalid hex characters");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram with log-linear buckets.
+ *
+ * Values below 16 are counted exactly. Above that, every power of two range is
+ * split into 16 buckets, so the relative error of a reported percentile is at
+ * most 1/16. Recording is a couple of atomic increments and never allocates.
+ */
+@AnyThread
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		this.counts.incrementAndGet(bucketIndex(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long currentMax;
+		while (value > (currentMax = this.max.get())) {
+			if (this.max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Return the sum of all recorded values.
+	 */
+	long getSum() {
+		return this.sum.get();
+	}
+
+	long getMax() {
+		return this.max.get();
+	}
+
+	double getMean() {
+		final long count = this.count.get();
+		return count == 0 ? 0 : (double) this.sum.get() / count;
+	}
+
+	/**
+	 * Return the value below which the given percentage (0-100) of the
+	 * recorded values fall, or 0 if nothing has been recorded.
+	 */
+	long getPercentile(double percentile) {
+		final long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		final long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Reset all counts. Not atomic with respect to concurrent recording.
+	 */
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Return the highest value that falls into the bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		final long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		final long lower = (SUB_BUCKETS + subBucket) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + this.getCount()
+				+ " p50=" + this.getPercentile(50)
+				+ " p90=" + this.getPercentile(90)
+				+ " p99=" + this.getPercentile(99)
+				+ " max=" + this.getMax();
+	}
+
+}
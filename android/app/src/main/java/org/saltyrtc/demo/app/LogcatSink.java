@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Writes the messages of {@link AppLog} to logcat.
+ *
+ * Consecutive messages of a batch with the same level and tag are joined into
+ * a single logcat entry, one line per message, which saves a logcat write per
+ * message when many messages are logged at once.
+ */
+final class LogcatSink implements AppLog.Sink {
+
+	// Logcat truncates longer entries
+	private static final int MAX_ENTRY_LENGTH = 4000;
+
+	private final StringBuilder pending = new StringBuilder();
+	private int pendingLevel;
+	@Nullable private String pendingTag;
+
+	@Override
+	public void write(int level, String tag, String message, @Nullable Throwable throwable) {
+		final String text = throwable == null ? message : message + '\n' + Log.getStackTraceString(throwable);
+		if (this.pendingTag != null && (level != this.pendingLevel || !tag.equals(this.pendingTag)
+				|| this.pending.length() + 1 + text.length() > MAX_ENTRY_LENGTH)) {
+			this.flush();
+		}
+		if (this.pendingTag == null) {
+			this.pendingLevel = level;
+			this.pendingTag = tag;
+		} else {
+			this.pending.append('\n');
+		}
+		this.pending.append(text);
+	}
+
+	@Override
+	public void flush() {
+		if (this.pendingTag != null) {
+			Log.println(this.pendingLevel, this.pendingTag, this.pending.toString());
+			this.pending.setLength(0);
+			this.pendingTag = null;
+		}
+	}
+
+}
@@ -10,17 +10,18 @@ package org.saltyrtc.demo.app;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
-import android.util.Log;
-import android.util.TypedValue;
+import android.support.annotation.WorkerThread;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.LinearLayout;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import org.saltyrtc.client.SaltyRTC;
@@ -33,7 +34,6 @@ import org.saltyrtc.client.events.SignalingConnectionLostEvent;
 import org.saltyrtc.client.events.SignalingStateChangedEvent;
 import org.saltyrtc.client.exceptions.ConnectionException;
 import org.saltyrtc.client.exceptions.InvalidKeyException;
-import org.saltyrtc.client.keystore.KeyStore;
 import org.saltyrtc.client.signaling.CloseCode;
 import org.saltyrtc.client.signaling.state.SignalingState;
 import org.saltyrtc.client.tasks.Task;
@@ -41,21 +41,82 @@ import org.saltyrtc.tasks.webrtc.SecureDataChannel;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.webrtc.DataChannel;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
+import java.nio.MappedByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
 
-public class MainActivity extends Activity {
+public class MainActivity extends Activity implements UiDispatcher.Sink {
 
 	private static final String LOG_TAG = MainActivity.class.getName();
 
-	private SaltyRTC client;
-	private WebRTCTask task;
-	private WebRTC webrtc;
-	private SecureDataChannel sdc;
+	// Size of the random payload sent by the "Send data" button
+	private static final int BULK_PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+	// Number of messages kept in the message log
+	private static final int MESSAGE_LOG_CAPACITY = 500;
+
+	private static final int REQUEST_SEND_FILE = 1;
+
+	// High frequency events are logged at most once per interval, see AppLog.Sampler
+	private static final long LOG_SAMPLE_INTERVAL_MS = 1000;
+
+	// Snapshot of the metrics of the last closed session, in the files directory
+	private static final String METRICS_FILE_NAME = "metrics.prom";
+
+	private volatile Session session;
+	private volatile BulkTransfer transfer;
+	private final BufferPool sendPool = new BufferPool(16 * 1024, 4);
+	// Samples the decoded text of incoming messages
+	private final AppLog.Sampler messageLogSampler = new AppLog.Sampler(LOG_SAMPLE_INTERVAL_MS);
+	// Reused for every chat message sent, only accessed on the UI thread
+	private final Records.Chat outgoingChat = new Records.Chat();
+	private UiDispatcher dispatcher;
+	private FileTransfer fileTransfer;
+	// Selected once in onCreate
+	private ConnectionProfile profile;
+	private IcePolicy icePolicy;
+
+	// Metrics of the app across sessions, see also Session.metrics
+	private final MetricsRegistry appMetrics = new MetricsRegistry();
+	private final MetricsRegistry.Counter sessionsStarted = this.appMetrics.counter("sessions_started_total");
+	private final MetricsRegistry.Counter reconnects = this.appMetrics.counter("reconnects_total");
+	@Nullable private MetricsExporter metricsExporter;
+
+	// Prepares sessions in the background
+	private ScheduledExecutorService sessionExecutor;
+	// Tears down sessions in the background, one after another
+	private ExecutorService teardownExecutor;
+	@Nullable private Future<?> pendingTeardown;
+	// The session prepared for a reconnect and the task that connects it once
+	// the backoff delay elapsed, only accessed from the UI thread
+	@Nullable private Future<Session> preparedSession;
+	@Nullable private Future<?> pendingReconnect;
+	private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy(
+			Config.RECONNECT_BASE_DELAY_MS, Config.RECONNECT_MAX_DELAY_MS, Config.RECONNECT_MAX_ATTEMPTS
+	);
+	// Only accessed from the UI thread
+	private boolean stopped = true;
+	private boolean reconnecting = false;
 
 	private Button startButton;
 	private Button stopButton;
@@ -64,15 +125,18 @@ public class MainActivity extends Activity {
 	private TextView rtcIceConnectionStateView;
 	private TextView rtcIceGatheringStateView;
 	private TextView saltyHandoverStateView;
-	private LinearLayout messagesLayout;
-	private ScrollView messagesScrollView;
+	private MessageLogAdapter messageLog;
 	private EditText textInput;
 	private Button sendButton;
+	private Button sendDataButton;
+	private Button sendFileButton;
 
 	@SuppressLint("SetTextI18n")
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		AppLog.setSink(new LogcatSink());
+		AppLog.setLevel(Config.LOG_LEVEL);
 		setContentView(R.layout.activity_main);
 
 		// Get button views
@@ -87,10 +151,55 @@ public class MainActivity extends Activity {
 		this.saltyHandoverStateView = findViewById(R.id.salty_handover_state);
 
 		// Get other views
-		this.messagesLayout = findViewById(R.id.messages);
-		this.messagesScrollView = findViewById(R.id.messagesScroll);
+		final ListView messagesView = findViewById(R.id.messages);
+		this.messageLog = new MessageLogAdapter(this, MESSAGE_LOG_CAPACITY);
+		messagesView.setAdapter(this.messageLog);
 		this.textInput = findViewById(R.id.chat_input);
 		this.sendButton = findViewById(R.id.send_button);
+		this.sendDataButton = findViewById(R.id.send_data_button);
+		this.sendFileButton = findViewById(R.id.send_file_button);
+
+		// Initialize file transfers, received files are kept until overwritten
+		this.fileTransfer = new FileTransfer(new File(this.getCacheDir(), "incoming.bin"), new FileTransfer.Listener() {
+			@Override
+			public void onAcknowledged(long bytes, boolean checksumValid, double megabytesPerSecond) {
+				final String text = String.format(Locale.US, "[sent file, %d KiB, %s, %.2f MB/s end-to-end]",
+						bytes / 1024, checksumValid ? "crc ok" : "crc mismatch", megabytesPerSecond);
+				MainActivity.this.dispatcher.postMessage(new ChatMessage(true, text));
+			}
+
+			@Override
+			public void onError(String reason) {
+				AppLog.e(LOG_TAG, "File transfer failed: " + reason);
+			}
+		});
+
+		// Initialize dispatcher between event handlers and UI
+		this.dispatcher = new UiDispatcher(this);
+		this.sessionExecutor = Executors.newScheduledThreadPool(2);
+		this.teardownExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "SessionTeardown"));
+
+		// Select the connection profile, see ConnectionProfiles for the intent extras
+		this.profile = ConnectionProfiles.load(this, this.getIntent());
+		AppLog.i(LOG_TAG, "Using connection profile " + this.profile);
+		if (this.profile.isAutoIce()) {
+			IceServerRace.start(this, this.profile);
+		}
+
+		this.icePolicy = IcePolicy.load(this, this.profile);
+
+		// Serve the metrics on the loopback interface in debug builds, see MetricsExporter
+		if (BuildConfig.DEBUG && Config.METRICS_PORT > 0) {
+			try {
+				this.metricsExporter = MetricsExporter.start(
+						out -> this.writeMetricsTo(out, this.session), Config.METRICS_PORT);
+			} catch (final IOException e) {
+				AppLog.w(LOG_TAG, "Could not serve metrics on port " + Config.METRICS_PORT + ": " + e.getMessage());
+			}
+		}
+
+		// Derive the keys in the background before the first start
+		KeyCache.warmUp(this.profile, this.sessionExecutor);
 
 		// Initialize states
 		this.resetStates();
@@ -107,31 +216,74 @@ public class MainActivity extends Activity {
 		this.setState(StateType.SALTY_HANDOVER, "Unknown");
 	}
 
-	private SSLContext getSslContext() throws NoSuchAlgorithmException {
-		return SSLContext.getDefault();
-	}
+	private SSLContext getSslContext(ConnectionProfile profile) throws GeneralSecurityException, IOException {
+		final String certificateAsset = profile.getServerCertificateAsset();
+		if (certificateAsset == null) {
+			return SSLContext.getDefault();
+		}
 
-	private void init() throws NoSuchAlgorithmException, InvalidKeyException {
-		this.resetStates();
+		// Trust only the configured certificate
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		try (InputStream in = this.getAssets().open(certificateAsset)) {
+			keyStore.setCertificateEntry("server", CertificateFactory.getInstance("X.509").generateCertificate(in));
+		}
+		final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		final SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, trustManagers.getTrustManagers(), null);
+		return sslContext;
+	}
 
-		final KeyStore permanentKey = new KeyStore(Config.PRIVATE_KEY);
-		this.task = new WebRTCTask();
-		this.client = new SaltyRTCBuilder()
-				.connectTo(Config.HOST, Config.PORT, this.getSslContext())
-				.withServerKey(Config.SERVER_KEY)
-				.withKeyStore(permanentKey)
-				.withTrustedPeerKey(Config.TRUSTED_KEY)
-				.withPingInterval(30)
-				.withWebsocketConnectTimeout(15000)
-				.usingTasks(new Task[]{this.task})
+	/**
+	 * Build a new session without connecting it.
+	 *
+	 * Deriving the keys and creating the peer connection take a while, so this
+	 * may be called from a background thread to prepare the next session.
+	 */
+	@AnyThread
+	private Session createSession() throws GeneralSecurityException, IOException, InvalidKeyException {
+		final ConnectionProfile profile = this.profile;
+		final KeyMaterial keys = KeyCache.get(profile);
+		final WebRTCTask task = new WebRTCTask();
+		final SaltyRTC client = new SaltyRTCBuilder()
+				.connectTo(profile.getHost(), profile.getPort(), this.getSslContext(profile))
+				.withServerKey(keys.getServerKey())
+				.withKeyStore(keys.getKeyStore())
+				.withTrustedPeerKey(keys.getTrustedKey())
+				.withPingInterval(profile.getPingIntervalS())
+				.withWebsocketConnectTimeout(profile.getConnectTimeoutMs())
+				.usingTasks(new Task[]{task})
 				.asResponder();
 
 		// On signaling
-		this.client.events.signalingStateChanged.register(this.onSignalingStateChanged);
-		this.client.events.handover.register(this.onHandover);
-		this.client.events.applicationData.register(this.onApplicationData);
-		this.client.events.close.register(this.onClose);
-		this.client.events.signalingConnectionLost.register(this.onSignalingConnectionLost);
+		client.events.signalingStateChanged.register(this.onSignalingStateChanged);
+		client.events.handover.register(this.onHandover);
+		client.events.applicationData.register(this.onApplicationData);
+		client.events.close.register(this.onClose);
+		client.events.signalingConnectionLost.register(this.onSignalingConnectionLost);
+
+		final SessionTimings timings = new SessionTimings();
+		final ConnectionProfile.IceServerSet iceServers = profile.getIceServerSet(
+				profile.isAutoIce() ? IceServerRace.getWinner(this, profile) : null);
+		final IcePolicy.Mode iceMode = this.icePolicy.next(iceServers.hasRelay());
+		AppLog.d(LOG_TAG, "Using ICE server set {}, gathering {} candidates", iceServers.name, iceMode);
+		final MetricsRegistry metrics = new MetricsRegistry();
+		final ChannelScheduler scheduler = new ChannelScheduler(Config.DC_INTERACTIVE_MAX_SIZE, metrics);
+		final WebRTC webrtc = new WebRTC(task, this, timings, iceServers, scheduler, this.icePolicy, iceMode, metrics);
+		return new Session(client, task, webrtc, scheduler, timings, metrics);
+	}
+
+	/**
+	 * Make a prepared session the current one and connect it.
+	 */
+	@UiThread
+	private void activate(Session session) throws ConnectionException {
+		this.resetStates();
+		this.session = session;
+		this.sessionsStarted.increment();
+		session.connect();
+		this.setState(StateType.SALTY_HANDOVER, "NO");
 	}
 
 	/**
@@ -143,10 +295,15 @@ public class MainActivity extends Activity {
 		public boolean handle(final SignalingStateChangedEvent event) {
 			MainActivity.this.setState(StateType.SALTY_SIGNALING, event.getState().name());
 			if (SignalingState.TASK == event.getState()) {
-				MainActivity.this.webrtc.handover();
+				final Session session = MainActivity.this.session;
+				if (session != null) {
+					MainActivity.this.dispatcher.execute(session.webrtc::handover);
+				}
 				runOnUiThread(() -> {
 					MainActivity.this.textInput.setVisibility(View.VISIBLE);
 					MainActivity.this.sendButton.setVisibility(View.VISIBLE);
+					MainActivity.this.sendDataButton.setVisibility(View.VISIBLE);
+					MainActivity.this.sendFileButton.setVisibility(View.VISIBLE);
 				});
 			}
 			return false;
@@ -161,7 +318,10 @@ public class MainActivity extends Activity {
 		@Override
 		public boolean handle(final HandoverEvent event) {
 			runOnUiThread(() -> {
+				MainActivity.this.reconnectPolicy.reset();
 				MainActivity.this.sendButton.setEnabled(true);
+				MainActivity.this.sendDataButton.setEnabled(true);
+				MainActivity.this.sendFileButton.setEnabled(true);
 				MainActivity.this.setState(StateType.SALTY_HANDOVER, "YES");
 			});
 			return false;
@@ -179,15 +339,35 @@ public class MainActivity extends Activity {
 		@Override
 		public boolean handle(ApplicationDataEvent event) {
 			final byte[] bytes = (byte[]) event.getData();
-			Log.d(LOG_TAG, "New incoming application message: " + bytes.length + " bytes");
-			try {
-				final String message = msgBytesToString(bytes);
-				Log.d(LOG_TAG, "Message is: " + message);
-				MainActivity.this.onMessage(message);
-			} catch (final UnsupportedEncodingException e) {
-				e.printStackTrace();
+			AppLog.d(LOG_TAG, "New incoming application message: {} bytes", bytes.length);
+			final Session session = MainActivity.this.session;
+			if (session != null) {
+				session.signalingMessagesReceived.increment();
+				session.signalingBytesReceived.add(bytes.length);
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (ApplicationBatch.isBatch(buffer)) {
+				// Sent in batching mode, see ApplicationBatch
+				final List<ByteBuffer> messages;
+				try {
+					messages = ApplicationBatch.split(buffer);
+				} catch (IllegalArgumentException e) {
+					AppLog.e(LOG_TAG, "Dropping malformed application message batch", e);
+					return false;
+				}
+				AppLog.d(LOG_TAG, "Message is a batch of {} messages", messages.size());
+				MainActivity.this.dispatcher.execute(() -> {
+					for (final ByteBuffer message : messages) {
+						MainActivity.this.onMessage(MessageCodec.decode(message));
+					}
+				});
 				return false;
 			}
+			MainActivity.this.dispatcher.execute(() -> {
+				final String message = MessageCodec.decode(buffer);
+				AppLog.d(MainActivity.this.messageLogSampler, LOG_TAG, "Message is: {}", message);
+				MainActivity.this.onMessage(message);
+			});
 			return false;
 		}
 	};
@@ -199,7 +379,18 @@ public class MainActivity extends Activity {
 	private final EventHandler<CloseEvent> onClose = new EventHandler<CloseEvent>() {
 		@Override
 		public boolean handle(final CloseEvent event) {
-			runOnUiThread(() -> MainActivity.this.stop(null));
+			final int reason = event.getReason();
+			runOnUiThread(() -> {
+				if (reason == CloseCode.HANDOVER) {
+					// The signaling channel has been replaced by the data channel
+					return;
+				}
+				if (isRecoverable(reason)) {
+					MainActivity.this.reconnect("Closed with code " + reason);
+				} else {
+					MainActivity.this.stop(null);
+				}
+			});
 			return false;
 		}
 	};
@@ -211,31 +402,87 @@ public class MainActivity extends Activity {
 	private final EventHandler<SignalingConnectionLostEvent> onSignalingConnectionLost = new EventHandler<SignalingConnectionLostEvent>() {
 		@Override
 		public boolean handle(final SignalingConnectionLostEvent event) {
+			runOnUiThread(() -> MainActivity.this.reconnect("Signaling connection lost"));
 			return false;
 		}
 	};
 
-	private static String msgBytesToString(byte[] bytes) throws UnsupportedEncodingException {
-		if (bytes.length < 255) {
-			return new String(bytes, "UTF-8");
-		} else {
-			return "[Large message, " + bytes.length + " bytes]";
+	/**
+	 * Return whether a session closed with the given code may be replaced
+	 * by reconnecting. Closes that would just repeat themselves are not.
+	 */
+	private static boolean isRecoverable(int closeCode) {
+		switch (closeCode) {
+			case CloseCode.CLOSING_NORMAL:
+			case CloseCode.HANDOVER:
+			case CloseCode.NO_SHARED_SUBPROTOCOL:
+			case CloseCode.NO_SHARED_TASK:
+			case CloseCode.INVALID_KEY:
+				return false;
+			default:
+				return true;
 		}
 	}
 
 	/**
-	 * A new secure data channel was created.
+	 * The peer connection of a session failed. Ignored unless it belongs to
+	 * the current session.
 	 */
-	void onNewSdc(final SecureDataChannel sdc) {
+	@AnyThread
+	void onPeerConnectionFailed(final WebRTC owner) {
+		runOnUiThread(() -> {
+			final Session session = this.session;
+			if (session == null || session.webrtc != owner) {
+				AppLog.d(LOG_TAG, "Ignoring failure of a stale peer connection");
+				return;
+			}
+			this.reconnect("Peer connection failed");
+		});
+	}
+
+	/**
+	 * A new secure data channel was created for the given lane. Closed right
+	 * away unless it belongs to the current session.
+	 */
+	void onNewSdc(final WebRTC owner, final SecureDataChannel sdc, final ChannelScheduler.Lane lane) {
+		final Session session = this.session;
+		if (session == null || session.webrtc != owner) {
+			AppLog.d(LOG_TAG, "Closing data channel of a stale peer connection");
+			sdc.close();
+			sdc.dispose();
+			return;
+		}
+		final ChannelScheduler scheduler = session.scheduler;
+		final SessionTimings timings = session.timings;
+		final ChannelMetrics metrics = scheduler.getMetrics(lane);
+		timings.mark(StateType.DATA_CHANNEL, "WRAPPED");
+		final AtomicBoolean helloSent = new AtomicBoolean(false);
 		sdc.registerObserver(new DataChannel.Observer() {
+			// Only accessed from the data channel's callback thread
+			private boolean firstMessage = true;
+			private final AppLog.Sampler bufferedAmountLogSampler = new AppLog.Sampler(LOG_SAMPLE_INTERVAL_MS);
+			private final AppLog.Sampler incomingLogSampler = new AppLog.Sampler(LOG_SAMPLE_INTERVAL_MS);
+			private final RecordDispatcher records = MainActivity.this.createRecordDispatcher(session);
+			private final StreamReceiver streamReceiver = lane == ChannelScheduler.Lane.BULK
+					? MainActivity.this.createStreamReceiver(this.records) : null;
+
 			@Override
 			public void onBufferedAmountChange(long l) {
-				Log.d(LOG_TAG, "Buffered amount changed: " + l);
+				AppLog.d(this.bufferedAmountLogSampler, LOG_TAG, "Buffered amount changed: {}", l);
+				metrics.onBufferedAmountChange(l);
+				scheduler.onBufferedAmountChange(lane);
 			}
 
 			@Override
 			public void onStateChange() {
-				Log.d(LOG_TAG, "State changed: " + sdc.state());
+				AppLog.d(LOG_TAG, "State changed: {}", sdc.state());
+				if (lane == ChannelScheduler.Lane.INTERACTIVE) {
+					sendHello(scheduler, sdc, helloSent);
+				}
+				if (this.streamReceiver != null && sdc.state() == DataChannel.State.CLOSED) {
+					// Keeps a partially received file, so that it can be resumed
+					this.streamReceiver.abort();
+				}
 			}
 
 			/**
@@ -246,18 +493,170 @@ public class MainActivity extends Activity {
 			 */
 			@Override
 			public void onMessage(DataChannel.Buffer buffer) {
-				final byte[] bytes = buffer.data.array();
-				Log.d(LOG_TAG, "New incoming datachannel message: " + bytes.length + " bytes");
-				try {
-					final String message = msgBytesToString(bytes);
-					Log.d(LOG_TAG, "Message is: " + message);
-					MainActivity.this.onMessage(message);
-				} catch (final UnsupportedEncodingException e) {
-					e.printStackTrace();
+				if (this.firstMessage) {
+					this.firstMessage = false;
+					timings.mark(StateType.DATA_CHANNEL, "FIRST_MESSAGE");
+				}
+				final ByteBuffer data = buffer.data;
+				metrics.onReceived(data.remaining());
+				if (this.streamReceiver != null) {
+					if (StreamFrames.isControl(data)) {
+						MainActivity.this.fileTransfer.onControlFrame(data);
+					} else {
+						this.streamReceiver.onFrame(data);
+					}
+					return;
+				}
+				if (Capabilities.isHello(data)) {
+					session.peerCapabilities = Capabilities.parse(data);
+					AppLog.d(LOG_TAG, "Peer capabilities: {}", session.peerCapabilities);
+					return;
 				}
+				AppLog.d(this.incomingLogSampler, LOG_TAG, "New incoming datachannel message: {} bytes", data.remaining());
+				MainActivity.this.onPayload(data, this.records);
 			}
 		});
-		this.sdc = sdc;
+		scheduler.setChannel(lane, sdc);
+		if (lane == ChannelScheduler.Lane.INTERACTIVE) {
+			sendHello(scheduler, sdc, helloSent);
+		} else if (lane == ChannelScheduler.Lane.BULK) {
+			this.fileTransfer.attach(scheduler);
+		}
+	}
+
+	/**
+	 * Announce our capabilities on the interactive channel once it is open,
+	 * see {@link Capabilities}.
+	 */
+	@AnyThread
+	private static void sendHello(ChannelScheduler scheduler, SecureDataChannel sdc, AtomicBoolean sent) {
+		if (sdc.state() == DataChannel.State.OPEN && sent.compareAndSet(false, true)) {
+			scheduler.sendFrame(ChannelScheduler.Lane.INTERACTIVE, Capabilities.hello(Capabilities.local()));
+		}
+	}
+
+	/**
+	 * Handle an incoming message: decompress it if needed, then dispatch its
+	 * records or show it as text.
+	 */
+	private void onPayload(ByteBuffer data, RecordDispatcher records) {
+		ByteBuffer payload = data;
+		try {
+			if (PayloadCompression.isCompressed(payload)) {
+				payload = PayloadCompression.decompress(payload, MessageCodec.MAX_DECODED_SIZE);
+			}
+			if (RecordCodec.isFrame(payload)) {
+				records.dispatch(payload);
+				return;
+			}
+		} catch (final IllegalArgumentException e) {
+			AppLog.e(LOG_TAG, "Dropping invalid message of " + data.remaining() + " bytes: " + e.getMessage());
+			return;
+		}
+		final String message = MessageCodec.decode(payload);
+		AppLog.d(this.messageLogSampler, LOG_TAG, "Message is: {}", message);
+		this.onMessage(message);
+	}
+
+	/**
+	 * Create the handlers for incoming records. Every chat record is shown and
+	 * acknowledged with a receipt, every ping of a load test is answered.
+	 */
+	private RecordDispatcher createRecordDispatcher(final Session session) {
+		final RecordDispatcher records = new RecordDispatcher();
+		final Records.Receipt receipt = new Records.Receipt();
+		records.register(new Records.Chat(), chat -> {
+			this.onMessage(chat.getText());
+			session.scheduler.send(RecordCodec.encode(receipt.set(chat.sequence), this.sendPool), this.sendPool);
+		});
+		records.register(new Records.Receipt(), received ->
+				AppLog.d(LOG_TAG, "Peer received message {}", received.sequence));
+		new EchoResponder(session.metrics, this.sendPool, frame -> session.scheduler.send(frame, this.sendPool))
+				.register(records);
+		return records;
+	}
+
+	/**
+	 * Create a receiver for streams on the bulk channel, see {@link IncomingStreams}.
+	 */
+	private StreamReceiver createStreamReceiver(final RecordDispatcher records) {
+		final IncomingStreams streams = new IncomingStreams(records);
+		return new StreamReceiver(streams, streams);
+	}
+
+	/**
+	 * Handles the streams on the bulk channel, one at a time.
+	 *
+	 * Messages are collected in memory and handled like messages on the
+	 * interactive channel, files are stored and acknowledged, test data is
+	 * only checksummed. Only accessed from the data channel's callback thread.
+	 */
+	private final class IncomingStreams implements StreamReceiver.SinkFactory, StreamReceiver.Listener {
+		private final RecordDispatcher records;
+
+		// The stream being received
+		private byte kind;
+		@Nullable private MemorySink memorySink;
+		private long lastLogged = 0;
+
+		IncomingStreams(RecordDispatcher records) {
+			this.records = records;
+		}
+
+		@Override
+		public StreamReceiver.Sink create(byte kind, long totalLength, long offset) throws IOException {
+			this.kind = kind;
+			this.memorySink = null;
+			switch (kind) {
+				case StreamFrames.KIND_MESSAGE:
+					if (totalLength > Config.STREAM_MEMORY_MAX_SIZE) {
+						throw new IOException("Message of " + totalLength + " bytes too large");
+					}
+					this.memorySink = new MemorySink((int) totalLength);
+					return this.memorySink;
+				case StreamFrames.KIND_FILE:
+					AppLog.d(LOG_TAG, "Receiving file of {} bytes from offset {}", totalLength, offset);
+					return MainActivity.this.fileTransfer.create(kind, totalLength, offset);
+				default:
+					return StreamReceiver.DISCARD;
+			}
+		}
+
+		@Override
+		public void onProgress(long received, long total) {
+			// Log roughly every MiB, not every chunk
+			if (received - this.lastLogged >= 1024 * 1024 || received == total) {
+				this.lastLogged = received;
+				AppLog.d(LOG_TAG, "Received {}/{} bytes", received, total);
+			}
+		}
+
+		@Override
+		public void onComplete(long total, boolean checksumValid, double megabytesPerSecond) {
+			final MemorySink memorySink = this.memorySink;
+			this.memorySink = null;
+			this.lastLogged = 0;
+			if (this.kind == StreamFrames.KIND_FILE) {
+				MainActivity.this.fileTransfer.acknowledge(total, checksumValid);
+			}
+			final String text;
+			if (!checksumValid) {
+				text = "[received " + total + " bytes, checksum mismatch]";
+			} else if (memorySink != null) {
+				MainActivity.this.onPayload(memorySink.getData(), this.records);
+				return;
+			} else {
+				text = String.format(Locale.US, "[received %d KiB, crc ok, %.2f MB/s]", total / 1024, megabytesPerSecond);
+			}
+			MainActivity.this.onMessage(text);
+		}
+
+		@Override
+		public void onError(String reason) {
+			this.memorySink = null;
+			this.lastLogged = 0;
+			AppLog.e(LOG_TAG, "Stream failed: " + reason);
+		}
 	}
 
 	/**
@@ -265,101 +664,288 @@ public class MainActivity extends Activity {
 	 */
 	@UiThread
 	public void start(View view) {
-		Log.d(LOG_TAG, "Starting SaltyRTC client...");
+		AppLog.d(LOG_TAG, "Starting SaltyRTC client...");
+		if (this.pendingTeardown != null && !this.pendingTeardown.isDone()) {
+			// Safe: the new session shares nothing with the old one but the
+			// reference counted peer connection factory.
+			AppLog.d(LOG_TAG, "Previous session is still being torn down");
+		}
+		this.stopped = false;
+		this.reconnectPolicy.reset();
 		try {
-			this.init();
-			this.webrtc = new WebRTC(this.task, this);
-			this.client.connect();
+			this.activate(this.createSession());
 			this.startButton.setEnabled(false);
 			this.stopButton.setEnabled(true);
-			this.messagesLayout.removeAllViewsInLayout();
-			this.setState(StateType.SALTY_HANDOVER, "NO");
-		} catch (NoSuchAlgorithmException | InvalidKeyException | ConnectionException e) {
+			this.messageLog.clear();
+		} catch (GeneralSecurityException | IOException | InvalidKeyException | ConnectionException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Stop SaltyRTC client.
+	 * Stop SaltyRTC client. No reconnect is attempted afterwards.
 	 */
 	@UiThread
-	public synchronized void stop(View view) {
-		if (this.sdc != null) {
-			Log.d(LOG_TAG, "Closing secure data channel...");
-			this.sdc.close();
-			this.sdc.dispose();
-		}
-
-		Log.d(LOG_TAG, "Stopping WebRTC task...");
-		this.task.close(CloseCode.CLOSING_NORMAL);
-
-		Log.d(LOG_TAG, "Stopping SaltyRTC client...");
-		this.client.disconnect();
-		this.client.events.clearAll();
-		this.client = null;
+	public void stop(View view) {
+		this.pendingTeardown = this.stopSession();
+	}
 
-		Log.d(LOG_TAG, "Stopping WebRTC connection...");
-		this.webrtc.dispose();
-		this.webrtc = null;
+	/**
+	 * Stop the current session without blocking.
+	 *
+	 * The UI is reset immediately while the session is torn down on the
+	 * teardown executor. A pending reconnect is cancelled and the session it
+	 * prepared is closed as well. A new session may be started right away;
+	 * teardowns run one after another, so they never overlap each other.
+	 *
+	 * @return a future that completes once the session has been torn down
+	 */
+	@UiThread
+	private Future<?> stopSession() {
+		this.stopped = true;
+		this.cancelReconnect();
+		this.transfer = null;
+		this.fileTransfer.detach();
+		final Session session = this.session;
+		this.session = null;
 
 		this.startButton.setEnabled(true);
 		this.stopButton.setEnabled(false);
 		this.textInput.setVisibility(View.INVISIBLE);
 		this.sendButton.setVisibility(View.INVISIBLE);
+		this.sendDataButton.setVisibility(View.INVISIBLE);
+		this.sendFileButton.setVisibility(View.INVISIBLE);
+
+		if (session == null) {
+			return this.teardown(() -> { });
+		}
+		return this.teardown(() -> {
+			this.closeSession(session);
+			AppLog.i(LOG_TAG, "Setup percentiles across sessions:\n" + SessionTimings.summary());
+		});
 	}
 
 	/**
-	 * Set a state field.
-	 *
-	 * This method may be called from a background thread.
+	 * Cancel a pending reconnect, if any, and close the session it prepared.
 	 */
-	public void setState(final StateType type, final String state) {
-		runOnUiThread(() -> {
-			switch (type) {
-				case SALTY_SIGNALING:
-					MainActivity.this.saltySignalingStateView.setText(state);
-					break;
-				case RTC_SIGNALING:
-					MainActivity.this.rtcSignalingStateView.setText(state);
-					break;
-				case RTC_ICE_CONNECTION:
-					MainActivity.this.rtcIceConnectionStateView.setText(state);
-					break;
-				case RTC_ICE_GATHERING:
-					MainActivity.this.rtcIceGatheringStateView.setText(state);
-					break;
-				case SALTY_HANDOVER:
-					MainActivity.this.saltyHandoverStateView.setText(state);
-					break;
+	@UiThread
+	private void cancelReconnect() {
+		final Future<Session> prepared = this.preparedSession;
+		this.preparedSession = null;
+		this.reconnecting = false;
+		if (this.pendingReconnect != null) {
+			this.pendingReconnect.cancel(false);
+			this.pendingReconnect = null;
+		}
+		if (prepared == null) {
+			return;
+		}
+		this.teardown(() -> {
+			try {
+				prepared.get().close();
+			} catch (final ExecutionException e) {
+				// Nothing to close
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		});
+	}
+
+	/**
+	 * Run a teardown task on the teardown executor. Once the activity has
+	 * been destroyed and the executor shut down, late teardowns (e.g. of a
+	 * session whose close event was still pending) run on a thread of their
+	 * own instead, and release the peer connection factory afterwards.
+	 */
+	@UiThread
+	private Future<?> teardown(Runnable task) {
+		if (!this.teardownExecutor.isShutdown()) {
+			return this.teardownExecutor.submit(task);
+		}
+		final boolean finishing = this.isFinishing();
+		final FutureTask<?> future = new FutureTask<>(() -> {
+			task.run();
+			if (finishing) {
+				PeerConnectionFactoryHolder.disposeIfUnused();
+			}
+		}, null);
+		new Thread(future, "SessionTeardown").start();
+		return future;
+	}
+
+	/**
+	 * Replace a dropped session.
+	 *
+	 * The old session is torn down in the background while the next one is
+	 * prepared in parallel. The prepared session is connected after a jittered
+	 * backoff delay, so most of the setup cost is hidden behind the delay.
+	 */
+	@UiThread
+	private void reconnect(String reason) {
+		if (this.stopped || this.reconnecting) {
+			return;
+		}
+		final long delayMs = this.reconnectPolicy.nextDelayMs();
+		if (delayMs < 0) {
+			AppLog.w(LOG_TAG, reason + ", giving up after " + this.reconnectPolicy.getAttempt() + " reconnect attempts");
+			this.stop(null);
+			return;
+		}
+		this.reconnecting = true;
+		this.reconnects.increment();
+		final int attempt = this.reconnectPolicy.getAttempt();
+		AppLog.i(LOG_TAG, reason + ", reconnecting in " + delayMs + " ms (attempt " + attempt + ")");
 
+		this.transfer = null;
+		this.fileTransfer.detach();
+		final Session old = this.session;
+		this.session = null;
+		this.sendButton.setEnabled(false);
+		this.sendDataButton.setEnabled(false);
+		this.sendFileButton.setEnabled(false);
+		this.setState(StateType.SALTY_SIGNALING, "RECONNECTING", "attempt " + attempt);
+
+		final Future<Session> next = this.sessionExecutor.submit(this::createSession);
+		this.preparedSession = next;
+		if (old != null) {
+			this.teardown(() -> this.closeSession(old));
+		}
+		this.pendingReconnect = this.sessionExecutor.schedule(() -> {
+			Session prepared = null;
+			try {
+				prepared = next.get();
+			} catch (final ExecutionException e) {
+				AppLog.e(LOG_TAG, "Could not prepare session", e.getCause());
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			final Session session = prepared;
+			runOnUiThread(() -> this.onReconnectDue(next, session));
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Connect the session prepared by {@link #reconnect(String)}.
+	 *
+	 * @param prepared the future that prepared the session
+	 */
+	@UiThread
+	private void onReconnectDue(Future<Session> prepared, @Nullable Session session) {
+		if (this.preparedSession != prepared) {
+			// The reconnect has been cancelled, which closes the session
+			return;
+		}
+		this.preparedSession = null;
+		this.pendingReconnect = null;
+		this.reconnecting = false;
+		if (session == null) {
+			this.reconnect("Session preparation failed");
+			return;
+		}
+		try {
+			this.activate(session);
+		} catch (final ConnectionException e) {
+			AppLog.e(LOG_TAG, "Could not connect", e);
+			this.session = null;
+			this.teardown(session::close);
+			this.reconnect("Connect failed");
+		}
+	}
+
+	/**
+	 * Tear down a session that has been connected and keep a snapshot of
+	 * its metrics in the app's files directory.
+	 */
+	@WorkerThread
+	private void closeSession(Session session) {
+		session.close();
+		final File file = new File(this.getFilesDir(), METRICS_FILE_NAME);
+		try {
+			MetricsExporter.dump(out -> this.writeMetricsTo(out, session), file);
+		} catch (final IOException e) {
+			AppLog.w(LOG_TAG, "Could not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the app metrics, the setup timings across sessions and the
+	 * metrics of the given session, if any.
+	 */
+	@AnyThread
+	private void writeMetricsTo(StringBuilder out, @Nullable Session session) {
+		this.appMetrics.writeTo(out);
+		SessionTimings.writeHistogramsTo(out);
+		if (session != null) {
+			session.writeMetricsTo(out);
+		}
+	}
+
+	/**
+	 * Set a state field.
+	 *
+	 * This method may be called from a background thread. Updates are
+	 * coalesced and applied once per frame. During a session, the transition
+	 * is recorded in the session timings.
+	 */
+	@AnyThread
+	public void setState(final StateType type, final String state) {
+		this.setState(type, state, null);
 	}
 
-	private TextView getMessageTextView(int colorResource, String text) {
-		// Create text view
-		final TextView view = new TextView(this);
-		view.setText(text);
-		view.setBackgroundColor(getResources().getColor(colorResource));
+	/**
+	 * Set a state field, showing an additional detail next to the state.
+	 */
+	@AnyThread
+	public void setState(final StateType type, final String state, final String detail) {
+		final Session session = this.session;
+		if (session != null) {
+			session.timings.mark(type, state);
+		}
+		this.dispatcher.postState(type, detail == null ? state : state + " (" + detail + ")");
+	}
 
-		// Set layout parameters
-		final LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
-				ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-		final int spacing = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 8, this.getResources().getDisplayMetrics());
-		params.setMargins(spacing, spacing, spacing, 0);
-		view.setPadding(spacing, spacing, spacing, spacing);
-		view.setLayoutParams(params);
+	/**
+	 * Show the stats of the selected candidate pair next to the ICE
+	 * connection state. Not recorded in the session timings.
+	 */
+	@AnyThread
+	void onConnectionStats(final String iceState, final ConnectionStats stats) {
+		this.dispatcher.postState(StateType.RTC_ICE_CONNECTION, iceState + " (" + stats.summary() + ")");
+	}
 
-		return view;
+	@UiThread
+	@Override
+	public void applyState(StateType type, String state) {
+		switch (type) {
+			case SALTY_SIGNALING:
+				this.saltySignalingStateView.setText(state);
+				break;
+			case RTC_SIGNALING:
+				this.rtcSignalingStateView.setText(state);
+				break;
+			case RTC_ICE_CONNECTION:
+				this.rtcIceConnectionStateView.setText(state);
+				break;
+			case RTC_ICE_GATHERING:
+				this.rtcIceGatheringStateView.setText(state);
+				break;
+			case SALTY_HANDOVER:
+				this.saltyHandoverStateView.setText(state);
+				break;
+			case DATA_CHANNEL:
+				// Not shown, only recorded in the session timings
+				break;
+		}
 	}
 
 	/**
-	 * Show message and scroll to bottom.
+	 * Show a batch of messages. The list view scrolls to the bottom by itself.
 	 */
 	@UiThread
-	private void showMessage(final View view) {
-		MainActivity.this.messagesLayout.addView(view);
-		MainActivity.this.messagesScrollView.post(() -> MainActivity.this.messagesScrollView.fullScroll(ScrollView.FOCUS_DOWN));
+	@Override
+	public void showMessages(List<ChatMessage> messages) {
+		this.messageLog.addAll(messages);
 	}
 
 	/**
@@ -367,8 +953,7 @@ public class MainActivity extends Activity {
 	 */
 	@AnyThread
 	public void onMessage(String message) {
-		final View view = this.getMessageTextView(R.color.colorMessageIn, message);
-		runOnUiThread(() -> MainActivity.this.showMessage(view));
+		this.dispatcher.postMessage(new ChatMessage(false, message));
 	}
 
 	/**
@@ -376,15 +961,109 @@ public class MainActivity extends Activity {
 	 */
 	@UiThread
 	public void sendDc(View view) {
-		Log.d(LOG_TAG, "Sending message...");
+		AppLog.d(LOG_TAG, "Sending message...");
 		final String text = this.textInput.getText().toString();
-		final ByteBuffer bytes = StandardCharsets.UTF_8.encode(text);
-		this.sdc.send(new DataChannel.Buffer(bytes, true));
-		final View msgView = this.getMessageTextView(R.color.colorMessageOut, text);
-		runOnUiThread(() -> MainActivity.this.showMessage(msgView));
+		final Session session = this.session;
+		if (session == null) {
+			return;
+		}
+		final int capabilities = session.peerCapabilities & Capabilities.local();
+		ByteBuffer bytes = MessageCodec.encode(text, this.sendPool);
+		if ((capabilities & Capabilities.RECORDS) != 0) {
+			final Records.Chat chat = this.outgoingChat.set(
+					session.chatSequence.incrementAndGet(), System.currentTimeMillis(), bytes);
+			final ByteBuffer frame = RecordCodec.encode(chat, this.sendPool);
+			this.sendPool.release(bytes);
+			bytes = frame;
+		}
+		if ((capabilities & Capabilities.DEFLATE) != 0) {
+			bytes = PayloadCompression.compress(bytes, Config.COMPRESSION_MIN_SIZE, this.sendPool);
+		}
+		session.scheduler.send(bytes, this.sendPool);
+		this.dispatcher.postMessage(new ChatMessage(true, text));
 		this.textInput.setText("");
 	}
 
+	/**
+	 * Send a large random payload via DC using a flow controlled bulk transfer.
+	 */
+	@UiThread
+	public void sendData(View view) {
+		if (this.transfer != null && !this.transfer.isDone()) {
+			AppLog.w(LOG_TAG, "Bulk transfer already in progress");
+			return;
+		}
+		final Session session = this.session;
+		if (session == null) {
+			return;
+		}
+		final byte[] data = new byte[BULK_PAYLOAD_SIZE];
+		new Random().nextBytes(data);
+		AppLog.d(LOG_TAG, "Sending {} bytes...", data.length);
+		this.transfer = session.scheduler.sendBulk(ByteBuffer.wrap(data), StreamFrames.KIND_DATA, new BulkTransfer.Listener() {
+			// Called for every chunk, the throughput is shown on completion
+			private final AppLog.Sampler progressLogSampler = new AppLog.Sampler(LOG_SAMPLE_INTERVAL_MS);
+
+			@Override
+			public void onProgress(long sent, long total, double megabytesPerSecond) {
+				AppLog.d(this.progressLogSampler, LOG_TAG, "Sent {}/{} bytes", sent, total);
+			}
+
+			@Override
+			public void onComplete(long total, double megabytesPerSecond) {
+				final String text = String.format(Locale.US, "[sent %d KiB random data, %.2f MB/s]", total / 1024, megabytesPerSecond);
+				MainActivity.this.dispatcher.postMessage(new ChatMessage(true, text));
+			}
+
+			@Override
+			public void onError(long sent, long total, String reason) {
+				AppLog.e(LOG_TAG, "Bulk transfer failed after " + sent + "/" + total + " bytes: " + reason);
+			}
+		});
+		if (this.transfer == null) {
+			AppLog.e(LOG_TAG, "Could not start bulk transfer");
+		}
+	}
+
+	/**
+	 * Pick a file and send it memory mapped via DC.
+	 */
+	@UiThread
+	public void sendFile(View view) {
+		final Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT)
+				.addCategory(Intent.CATEGORY_OPENABLE)
+				.setType("*/*");
+		this.startActivityForResult(intent, REQUEST_SEND_FILE);
+	}
+
+	@Override
+	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+		super.onActivityResult(requestCode, resultCode, data);
+		if (requestCode != REQUEST_SEND_FILE || resultCode != RESULT_OK || data == null || data.getData() == null) {
+			return;
+		}
+		final Uri uri = data.getData();
+		this.dispatcher.execute(() -> {
+			try (ParcelFileDescriptor descriptor = this.getContentResolver().openFileDescriptor(uri, "r")) {
+				if (descriptor == null) {
+					AppLog.e(LOG_TAG, "Could not open file " + uri);
+					return;
+				}
+				// The mapping stays valid after the descriptor has been closed
+				final MappedByteBuffer file;
+				try (FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor())) {
+					file = FileTransfer.map(stream.getChannel());
+				}
+				AppLog.d(LOG_TAG, "Sending file of {} bytes...", file.capacity());
+				if (!this.fileTransfer.send(file, 0)) {
+					AppLog.e(LOG_TAG, "Could not start file transfer");
+				}
+			} catch (final IOException e) {
+				AppLog.e(LOG_TAG, "Could not map file " + uri, e);
+			}
+		});
+	}
+
 
 	/**
 	 * Show key info.
@@ -393,21 +1072,51 @@ public class MainActivity extends Activity {
 		final AlertDialog.Builder builder = new AlertDialog.Builder(this);
 		builder.setCancelable(true);
 		builder.setTitle("Key Info");
-		final String msg = "Public key: " +
-				new KeyStore(Config.PRIVATE_KEY).getPublicKeyHex() +
+		String publicKey;
+		try {
+			publicKey = KeyCache.get(this.profile).getPublicKeyHex();
+		} catch (InvalidKeyException e) {
+			publicKey = "Invalid: " + e.getMessage();
+		}
+		final String msg = "Profile: " +
+				this.profile +
+				"\n\n" +
+				"Public key: " +
+				publicKey +
 				"\n\n" +
 				"Private key: " +
-				Config.PRIVATE_KEY +
+				this.profile.getPrivateKey() +
 				"\n\n" +
 				"Trusted key: " +
-				Config.TRUSTED_KEY +
+				this.profile.getTrustedKey() +
 				"\n\n" +
 				"Server public key: " +
-				Config.SERVER_KEY +
+				this.profile.getServerKey() +
 				"\n\n";
 		builder.setMessage(msg);
 		builder.setPositiveButton("OK", (dialogInterface, i) -> dialogInterface.dismiss());
 		builder.create().show();
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		this.dispatcher.shutdown();
+
+		// Tear down the current session and a session prepared for a pending
+		// reconnect. Both run before the factory is disposed below.
+		this.pendingTeardown = this.stopSession();
+		// Lets a session that is being prepared complete, so that it can be closed
+		this.sessionExecutor.shutdown();
+		if (this.isFinishing()) {
+			// Runs after all pending teardowns have released the factory
+			this.teardownExecutor.execute(PeerConnectionFactoryHolder::disposeIfUnused);
+		}
+		this.teardownExecutor.shutdown();
+		if (this.metricsExporter != null) {
+			this.metricsExporter.close();
+			this.metricsExporter = null;
+		}
+	}
+
 }
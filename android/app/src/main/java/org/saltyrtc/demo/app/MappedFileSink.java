@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream sink writing into a memory mapped file.
+ *
+ * The file is pre-sized to the total length of the stream and the remaining
+ * region from the start offset on is mapped, so incoming chunks are copied
+ * straight into the page cache without any system call per chunk. A mapping
+ * is limited to 2 GiB.
+ */
+class MappedFileSink implements StreamReceiver.Sink {
+
+	private final long offset;
+	private final MappedByteBuffer buffer;
+	private volatile boolean complete = false;
+
+	MappedFileSink(File file, long totalLength, long offset) throws IOException {
+		if (totalLength - offset > Integer.MAX_VALUE) {
+			throw new IOException("Stream too large to be mapped: " + totalLength + " bytes");
+		}
+		this.offset = offset;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(totalLength);
+			// The mapping stays valid after the file has been closed
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, totalLength - offset);
+		}
+	}
+
+	/**
+	 * Return the offset within the payload up to which data has been written.
+	 */
+	long getWritten() {
+		return this.offset + this.buffer.position();
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		if (data.remaining() > this.buffer.remaining()) {
+			throw new IOException("Stream exceeds the mapped file");
+		}
+		this.buffer.put(data);
+	}
+
+	/**
+	 * Return whether the stream has been received completely and verified.
+	 */
+	boolean isComplete() {
+		return this.complete;
+	}
+
+	@Override
+	public void close(boolean complete) {
+		// Flush partial data as well, so that an interrupted stream can be resumed
+		this.buffer.force();
+		this.complete = complete;
+	}
+
+}
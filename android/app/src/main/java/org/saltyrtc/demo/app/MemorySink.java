@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream sink collecting the payload in memory, up to a fixed maximum size.
+ *
+ * Streams exceeding the maximum size are rejected.
+ */
+class MemorySink implements StreamReceiver.Sink {
+
+	private final ByteBuffer buffer;
+	private boolean complete = false;
+
+	MemorySink(int maxSize) {
+		this.buffer = ByteBuffer.allocate(maxSize);
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		if (data.remaining() > this.buffer.remaining()) {
+			throw new IOException("Stream exceeds " + this.buffer.capacity() + " bytes");
+		}
+		this.buffer.put(data);
+	}
+
+	@Override
+	public void close(boolean complete) {
+		this.complete = complete;
+	}
+
+	boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * Return a read-only view of the collected bytes.
+	 */
+	ByteBuffer getData() {
+		final ByteBuffer data = this.buffer.asReadOnlyBuffer();
+		data.flip();
+		return data;
+	}
+
+}
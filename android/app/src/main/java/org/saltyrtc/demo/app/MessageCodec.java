@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 codec for chat messages.
+ *
+ * Decoding works directly on the incoming buffer, no matter whether it is a
+ * direct or a heap buffer. The decoder and its output buffer are kept per
+ * thread and reused, so the only allocation per message is the resulting string.
+ *
+ * Encoding writes into buffers taken from a {@link BufferPool}, using a per
+ * thread encoder and input buffer. Once the pool is warm, encoding does not
+ * allocate at all.
+ *
+ * Only buffers up to {@link #MAX_RETAINED_SIZE} are kept. A larger message
+ * gets a buffer of its own, so that it does not pin memory on every thread
+ * that ever handled one.
+ */
+final class MessageCodec {
+
+	/**
+	 * Messages of this size or larger are not decoded but replaced by a placeholder.
+	 * Large payloads are streamed instead, see {@link StreamReceiver}.
+	 */
+	static final int MAX_DECODED_SIZE = 1024 * 1024;
+
+	/**
+	 * Per thread scratch buffers are kept up to this size (in chars or bytes).
+	 */
+	static final int MAX_RETAINED_SIZE = 16 * 1024;
+
+	private static final int INITIAL_CHAR_CAPACITY = 256;
+
+	private static final ThreadLocal<DecoderState> decoderState = new ThreadLocal<DecoderState>() {
+		@Override
+		protected DecoderState initialValue() {
+			return new DecoderState();
+		}
+	};
+
+	private static final ThreadLocal<EncoderState> encoderState = new ThreadLocal<EncoderState>() {
+		@Override
+		protected EncoderState initialValue() {
+			return new EncoderState();
+		}
+	};
+
+	private MessageCodec() { }
+
+	/**
+	 * Per thread decoding state.
+	 */
+	private static final class DecoderState {
+		final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(INITIAL_CHAR_CAPACITY);
+	}
+
+	/**
+	 * Per thread encoding state.
+	 */
+	private static final class EncoderState {
+		final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(INITIAL_CHAR_CAPACITY);
+	}
+
+	/**
+	 * Encode the text as UTF-8 into a buffer acquired from the pool.
+	 *
+	 * The returned buffer is flipped and ready to be sent. Hand it back to the
+	 * pool via {@link BufferPool#release(ByteBuffer)} once it has been consumed.
+	 */
+	static ByteBuffer encode(String text, BufferPool pool) {
+		final EncoderState state = encoderState.get();
+		final CharsetEncoder encoder = state.encoder;
+
+		// Copy the text into the reusable input buffer instead of wrapping it,
+		// which would allocate a new CharBuffer for every message.
+		final int length = text.length();
+		final CharBuffer chars = scratch(state.chars, length);
+		if (length <= MAX_RETAINED_SIZE) {
+			state.chars = chars;
+		}
+		chars.clear();
+		chars.put(text);
+		chars.flip();
+
+		final ByteBuffer out = pool.acquire((int) Math.ceil(length * (double) encoder.maxBytesPerChar()));
+		encoder.reset();
+		encoder.encode(chars, out, true);
+		encoder.flush(out);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decode the remaining bytes of the buffer as UTF-8.
+	 *
+	 * The position of the passed in buffer is not modified.
+	 */
+	static String decode(ByteBuffer buffer) {
+		final int length = buffer.remaining();
+		if (length >= MAX_DECODED_SIZE) {
+			return "[Large message, " + length + " bytes]";
+		}
+
+		final DecoderState state = decoderState.get();
+		final CharsetDecoder decoder = state.decoder;
+
+		// UTF-8 never decodes to more chars than there are input bytes
+		final CharBuffer chars = scratch(state.chars, length);
+		if (length <= MAX_RETAINED_SIZE) {
+			state.chars = chars;
+		}
+		chars.clear();
+
+		final ByteBuffer in = buffer.duplicate();
+		decoder.reset();
+		CoderResult result = decoder.decode(in, chars, true);
+		if (!result.isError()) {
+			result = decoder.flush(chars);
+		}
+		if (result.isError()) {
+			// Cannot happen with the REPLACE action, but be defensive
+			return "[Invalid message, " + length + " bytes]";
+		}
+		chars.flip();
+		return chars.toString();
+	}
+
+	/**
+	 * Return the given buffer if it holds at least the given number of chars,
+	 * otherwise a new one.
+	 */
+	private static CharBuffer scratch(CharBuffer chars, int capacity) {
+		return chars.capacity() < capacity ? CharBuffer.allocate(capacity) : chars;
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.content.Context;
+import android.support.annotation.UiThread;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.List;
+
+/**
+ * List adapter for the message log.
+ *
+ * Only the most recent messages are kept in a bounded ring buffer and item
+ * views are recycled by the list view, so memory use and the cost per message
+ * stay constant no matter how long the session runs.
+ */
+@UiThread
+class MessageLogAdapter extends BaseAdapter {
+
+	private final LayoutInflater inflater;
+	private final MessageRing<ChatMessage> messages;
+	private final int colorIn;
+	private final int colorOut;
+
+	MessageLogAdapter(Context context, int capacity) {
+		this.inflater = LayoutInflater.from(context);
+		this.messages = new MessageRing<>(capacity);
+		this.colorIn = context.getResources().getColor(R.color.colorMessageIn);
+		this.colorOut = context.getResources().getColor(R.color.colorMessageOut);
+	}
+
+	/**
+	 * Append a batch of messages.
+	 */
+	void addAll(List<ChatMessage> batch) {
+		for (final ChatMessage message : batch) {
+			this.messages.add(message);
+		}
+		this.notifyDataSetChanged();
+	}
+
+	void clear() {
+		this.messages.clear();
+		this.notifyDataSetChanged();
+	}
+
+	@Override
+	public int getCount() {
+		return this.messages.size();
+	}
+
+	@Override
+	public ChatMessage getItem(int position) {
+		return this.messages.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		final View view = convertView != null
+				? convertView
+				: this.inflater.inflate(R.layout.message_item, parent, false);
+		final TextView textView = view.findViewById(R.id.message_text);
+		final ChatMessage message = this.getItem(position);
+		textView.setText(message.text);
+		textView.setBackgroundColor(message.outgoing ? this.colorOut : this.colorIn);
+		return view;
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+/**
+ * A bounded ring buffer. Once full, adding an element drops the oldest one.
+ *
+ * Not thread safe.
+ */
+class MessageRing<T> {
+
+	private final Object[] elements;
+	private int head = 0; // Index of the oldest element
+	private int size = 0;
+
+	MessageRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.elements = new Object[capacity];
+	}
+
+	int capacity() {
+		return this.elements.length;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Append an element, dropping the oldest element if the ring is full.
+	 */
+	void add(T element) {
+		final int capacity = this.elements.length;
+		if (this.size < capacity) {
+			this.elements[(this.head + this.size) % capacity] = element;
+			this.size++;
+		} else {
+			this.elements[this.head] = element;
+			this.head = (this.head + 1) % capacity;
+		}
+	}
+
+	/**
+	 * Return the element at the given index, where 0 is the oldest element.
+	 */
+	@SuppressWarnings("unchecked")
+	T get(int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+		}
+		return (T) this.elements[(this.head + index) % this.elements.length];
+	}
+
+	void clear() {
+		for (int i = 0; i < this.elements.length; i++) {
+			this.elements[i] = null;
+		}
+		this.head = 0;
+		this.size = 0;
+	}
+
+}
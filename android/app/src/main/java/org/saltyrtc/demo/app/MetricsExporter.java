@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+
+/**
+ * Makes metrics snapshots available outside of the app.
+ *
+ * Snapshots are served over plain HTTP on a port of the loopback interface, so
+ * they can be scraped through adb (debug builds only, see {@link Config#METRICS_PORT}):
+ *
+ *     adb forward tcp:9464 tcp:9464
+ *     curl http://localhost:9464/metrics
+ *
+ * Every request is answered with a fresh snapshot, whatever its path. Requests
+ * are handled one after another on the exporter thread. Snapshots can also be
+ * written to a file.
+ */
+@AnyThread
+final class MetricsExporter {
+
+	private static final String LOG_TAG = MetricsExporter.class.getName();
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int READ_TIMEOUT_MS = 2000;
+	private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+	interface Source {
+		/**
+		 * Write a snapshot in the Prometheus text format.
+		 */
+		void writeTo(StringBuilder out);
+	}
+
+	private final Source source;
+	private final ServerSocket serverSocket;
+	private final Thread thread;
+
+	private MetricsExporter(Source source, ServerSocket serverSocket) {
+		this.source = source;
+		this.serverSocket = serverSocket;
+		this.thread = new Thread(this::run, "MetricsExporter");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Serve snapshots of the source on the given port of the loopback interface.
+	 */
+	static MetricsExporter start(Source source, int port) throws IOException {
+		final MetricsExporter exporter = new MetricsExporter(
+				source, new ServerSocket(port, 1, InetAddress.getByName(null)));
+		exporter.thread.start();
+		return exporter;
+	}
+
+	/**
+	 * Write a snapshot of the source to a file, replacing it atomically.
+	 */
+	@WorkerThread
+	static void dump(Source source, File file) throws IOException {
+		final StringBuilder builder = new StringBuilder();
+		source.writeTo(builder);
+		final File temporary = new File(file.getPath() + ".tmp");
+		try (final FileOutputStream out = new FileOutputStream(temporary)) {
+			out.write(builder.toString().getBytes(UTF_8));
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Could not rename " + temporary + " to " + file);
+		}
+	}
+
+	private void run() {
+		while (!this.serverSocket.isClosed()) {
+			try (final Socket socket = this.serverSocket.accept()) {
+				socket.setSoTimeout(READ_TIMEOUT_MS);
+				this.serve(socket);
+			} catch (final SocketException e) {
+				// Thrown by accept once the server socket is closed
+				if (!this.serverSocket.isClosed()) {
+					AppLog.w(LOG_TAG, "Scrape failed: " + e.getMessage());
+				}
+			} catch (final IOException e) {
+				AppLog.w(LOG_TAG, "Scrape failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		// The request is not interpreted, but read up to the end of its headers
+		final InputStream in = socket.getInputStream();
+		// Keep the last four bytes to find the blank line
+		int last = 0;
+		for (int read = 0; last != 0x0d0a0d0a && (last & 0xffff) != 0x0a0a; read++) {
+			final int b = in.read();
+			if (b < 0 || read == MAX_REQUEST_SIZE) {
+				return;
+			}
+			last = (last << 8) | b;
+		}
+
+		final StringBuilder builder = new StringBuilder();
+		this.source.writeTo(builder);
+		final byte[] body = builder.toString().getBytes(UTF_8);
+		final String header = "HTTP/1.0 200 OK\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		final OutputStream out = socket.getOutputStream();
+		out.write(header.getBytes(UTF_8));
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * Stop serving and wait for a scrape in progress.
+	 */
+	void close() {
+		try {
+			this.serverSocket.close();
+		} catch (final IOException e) {
+			AppLog.w(LOG_TAG, "Could not close server socket: " + e.getMessage());
+		}
+		try {
+			this.thread.join(READ_TIMEOUT_MS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free registry of counters, gauges and histograms.
+ *
+ * A metric is identified by its name and optional labels, given as key value
+ * pairs, e.g. {@code counter("dc_messages_received_total", "lane", "bulk")}.
+ * Looking up a metric allocates, so callers on a hot path look their metrics
+ * up once and keep them. Updating a metric is one or a few atomic operations
+ * and never allocates.
+ *
+ * A snapshot is written in the Prometheus text format. Histograms are written
+ * as summaries with the 50th, 90th and 99th percentile and the maximum.
+ */
+@AnyThread
+final class MetricsRegistry {
+
+	/**
+	 * A monotonically increasing count.
+	 */
+	static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		void increment() {
+			this.value.incrementAndGet();
+		}
+
+		void add(long delta) {
+			this.value.addAndGet(delta);
+		}
+
+		long get() {
+			return this.value.get();
+		}
+	}
+
+	/**
+	 * A value that may go up and down.
+	 */
+	static final class Gauge {
+		private final AtomicLong value = new AtomicLong();
+
+		void set(long value) {
+			this.value.set(value);
+		}
+
+		long get() {
+			return this.value.get();
+		}
+	}
+
+	private static final class Entry {
+		final String name;
+		final String labels;
+		final Object metric;
+
+		Entry(String name, String labels, Object metric) {
+			this.name = name;
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	Counter counter(String name, String... labels) {
+		return this.get(name, labels, Counter.class);
+	}
+
+	Gauge gauge(String name, String... labels) {
+		return this.get(name, labels, Gauge.class);
+	}
+
+	LatencyHistogram histogram(String name, String... labels) {
+		return this.get(name, labels, LatencyHistogram.class);
+	}
+
+	/**
+	 * Return the metric with the given name and labels, registering it if
+	 * it does not exist yet.
+	 *
+	 * @throws IllegalArgumentException if the name or labels are invalid or a
+	 *         metric of another kind is registered with the same name and labels.
+	 */
+	private <M> M get(String name, String[] labels, Class<M> kind) {
+		final String formatted = formatLabels(labels);
+		final String key = name + formatted;
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			checkName(name);
+			final Entry created = new Entry(name, formatted, newMetric(kind));
+			entry = this.entries.putIfAbsent(key, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		if (!kind.isInstance(entry.metric)) {
+			throw new IllegalArgumentException("Metric " + key + " is a "
+					+ entry.metric.getClass().getSimpleName() + ", not a " + kind.getSimpleName());
+		}
+		return kind.cast(entry.metric);
+	}
+
+	private static Object newMetric(Class<?> kind) {
+		if (kind == Counter.class) {
+			return new Counter();
+		} else if (kind == Gauge.class) {
+			return new Gauge();
+		}
+		return new LatencyHistogram();
+	}
+
+	/**
+	 * Write a snapshot of all metrics, ordered by name and labels.
+	 *
+	 * Metrics updated while the snapshot is taken may or may not be included
+	 * with their latest value; a histogram is not captured atomically.
+	 */
+	void writeTo(StringBuilder out) {
+		// Sort by name first, so that the samples of a family stay together
+		final TreeMap<String, Entry> sorted = new TreeMap<>();
+		for (final Entry entry : this.entries.values()) {
+			sorted.put(entry.name + ' ' + entry.labels, entry);
+		}
+		String family = null;
+		for (final Entry entry : sorted.values()) {
+			if (!entry.name.equals(family)) {
+				family = entry.name;
+				out.append("# TYPE ").append(family).append(' ').append(typeOf(entry.metric)).append('\n');
+			}
+			if (entry.metric instanceof Counter) {
+				writeSample(out, entry.name, entry.labels, ((Counter) entry.metric).get());
+			} else if (entry.metric instanceof Gauge) {
+				writeSample(out, entry.name, entry.labels, ((Gauge) entry.metric).get());
+			} else {
+				writeSummary(out, entry.name, entry.labels, (LatencyHistogram) entry.metric);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		this.writeTo(builder);
+		return builder.toString();
+	}
+
+	private static String typeOf(Object metric) {
+		if (metric instanceof Counter) {
+			return "counter";
+		} else if (metric instanceof Gauge) {
+			return "gauge";
+		}
+		return "summary";
+	}
+
+	/**
+	 * Write a single sample. The labels must have been formatted by
+	 * {@link #formatLabels(String...)}.
+	 */
+	static void writeSample(StringBuilder out, String name, String labels, long value) {
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Write a histogram as a summary.
+	 */
+	static void writeSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+		for (final double quantile : QUANTILES) {
+			writeSample(out, name, withLabel(labels, "quantile", Double.toString(quantile)),
+					histogram.getPercentile(quantile * 100));
+		}
+		writeSample(out, name, withLabel(labels, "quantile", "1"), histogram.getMax());
+		writeSample(out, name + "_sum", labels, histogram.getSum());
+		writeSample(out, name + "_count", labels, histogram.getCount());
+	}
+
+	/**
+	 * Format key value pairs as a label set, e.g. {@code {lane="bulk"}}, or
+	 * return an empty string if there are none.
+	 *
+	 * @throws IllegalArgumentException if the pairs are incomplete or a key is invalid.
+	 */
+	static String formatLabels(String... labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be key value pairs");
+		}
+		if (labels.length == 0) {
+			return "";
+		}
+		final StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i += 2) {
+			checkName(labels[i]);
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(labels[i]).append("=\"");
+			escape(builder, labels[i + 1]);
+			builder.append('"');
+		}
+		return builder.append('}').toString();
+	}
+
+	private static String withLabel(String labels, String key, String value) {
+		if (labels.isEmpty()) {
+			return "{" + key + "=\"" + value + "\"}";
+		}
+		return labels.substring(0, labels.length() - 1) + "," + key + "=\"" + value + "\"}";
+	}
+
+	private static void escape(StringBuilder builder, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				builder.append('\\').append(c);
+			} else if (c == '\n') {
+				builder.append("\\n");
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+
+	private static void checkName(String name) {
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("Empty metric or label name");
+		}
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+					|| (i > 0 && c >= '0' && c <= '9');
+			if (!valid) {
+				throw new IllegalArgumentException("Invalid metric or label name: " + name);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of application messages.
+ *
+ * Once the peer announced {@link Capabilities#DEFLATE}, messages of at least
+ * a threshold size are sent as 0xfe followed by the message compressed with
+ * raw deflate (RFC 1951). Other messages are sent unchanged. Plain messages
+ * are UTF-8, which never contains the byte 0xfe, so every message can be told
+ * apart without any further state.
+ *
+ * Like {@link MessageCodec}, the deflater, inflater and their scratch arrays
+ * are kept per thread and reused. Scratch arrays larger than
+ * {@link MessageCodec#MAX_RETAINED_SIZE} are dropped after use.
+ */
+final class PayloadCompression {
+
+	private static final byte COMPRESSED_MARKER = (byte) 0xfe;
+
+	private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private PayloadCompression() { }
+
+	/**
+	 * Per thread compression state.
+	 */
+	private static final class State {
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final Inflater inflater = new Inflater(true);
+		byte[] input = new byte[0];
+		byte[] output = new byte[0];
+	}
+
+	/**
+	 * Return whether the message is compressed.
+	 */
+	static boolean isCompressed(ByteBuffer message) {
+		return message.hasRemaining() && message.get(message.position()) == COMPRESSED_MARKER;
+	}
+
+	/**
+	 * Compress the message if it has at least the given size and compression
+	 * pays off. In that case, the message is released to the pool and a
+	 * compressed message acquired from the pool is returned. Otherwise the
+	 * message is returned unchanged.
+	 */
+	static ByteBuffer compress(ByteBuffer message, int minSize, BufferPool pool) {
+		final int length = message.remaining();
+		if (length < minSize) {
+			return message;
+		}
+		final State state = PayloadCompression.state.get();
+		final byte[] input = scratch(state.input, length);
+		// Give up as soon as the output is not smaller than the input
+		final byte[] output = scratch(state.output, length - 1);
+		if (length <= MessageCodec.MAX_RETAINED_SIZE) {
+			state.input = input;
+			state.output = output;
+		}
+		message.duplicate().get(input, 0, length);
+
+		final Deflater deflater = state.deflater;
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		int compressed = 0;
+		while (!deflater.finished() && compressed < length - 1) {
+			compressed += deflater.deflate(output, compressed, length - 1 - compressed);
+		}
+		if (!deflater.finished()) {
+			return message;
+		}
+
+		final ByteBuffer out = pool.acquire(1 + compressed);
+		out.put(COMPRESSED_MARKER).put(output, 0, compressed);
+		out.flip();
+		pool.release(message);
+		return out;
+	}
+
+	/**
+	 * Decompress a compressed message. The position of the passed in buffer
+	 * is not modified.
+	 *
+	 * @throws IllegalArgumentException if the message is malformed or would
+	 *         decompress to more than maxSize bytes.
+	 */
+	static ByteBuffer decompress(ByteBuffer message, int maxSize) {
+		if (!isCompressed(message)) {
+			throw new IllegalArgumentException("Not a compressed message");
+		}
+		final int length = message.remaining() - 1;
+		final State state = PayloadCompression.state.get();
+		// Older zlib versions need an extra dummy byte after raw deflate data
+		final byte[] input = scratch(state.input, length + 1);
+		if (input.length <= MessageCodec.MAX_RETAINED_SIZE) {
+			state.input = input;
+		}
+		final ByteBuffer in = message.duplicate();
+		in.position(in.position() + 1);
+		in.get(input, 0, length);
+		input[length] = 0;
+
+		final Inflater inflater = state.inflater;
+		inflater.reset();
+		inflater.setInput(input, 0, length + 1);
+		byte[] output = state.output;
+		int inflated = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflated == output.length) {
+					if (inflated >= maxSize) {
+						throw new IllegalArgumentException("Message exceeds " + maxSize + " bytes");
+					}
+					final byte[] grown = new byte[Math.min(maxSize, Math.max(256, inflated * 2))];
+					System.arraycopy(output, 0, grown, 0, inflated);
+					output = grown;
+					if (output.length <= MessageCodec.MAX_RETAINED_SIZE) {
+						state.output = output;
+					}
+				}
+				final int read = inflater.inflate(output, inflated, output.length - inflated);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated message");
+				}
+				inflated += read;
+			}
+		} catch (final DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed message: " + e.getMessage());
+		}
+		if (inflated > maxSize) {
+			// The scratch array may be larger than the limit
+			throw new IllegalArgumentException("Message exceeds " + maxSize + " bytes");
+		}
+		final byte[] result = new byte[inflated];
+		System.arraycopy(output, 0, result, 0, inflated);
+		return ByteBuffer.wrap(result);
+	}
+
+	/**
+	 * Return the given array if it holds at least the given number of bytes,
+	 * otherwise a new one.
+	 */
+	private static byte[] scratch(byte[] array, int length) {
+		return array.length < length ? new byte[length] : array;
+	}
+
+}
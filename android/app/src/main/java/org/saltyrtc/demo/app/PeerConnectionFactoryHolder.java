@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.content.Context;
+
+import org.webrtc.PeerConnectionFactory;
+
+/**
+ * Process wide holder for the peer connection factory.
+ *
+ * Initializing the WebRTC globals and creating the factory are by far the most
+ * expensive steps of setting up a session. The factory is therefore created
+ * lazily on first use and shared between sessions. Sessions acquire and release
+ * it; once it is no longer referenced it stays alive for the next session until
+ * {@link #disposeIfUnused()} is called.
+ */
+final class PeerConnectionFactoryHolder {
+
+	private static final String LOG_TAG = PeerConnectionFactoryHolder.class.getName();
+
+	private static boolean initialized = false;
+	private static PeerConnectionFactory factory;
+	private static int references = 0;
+
+	private PeerConnectionFactoryHolder() { }
+
+	/**
+	 * Return the shared factory, creating it if necessary, and increment
+	 * its reference count.
+	 */
+	static synchronized PeerConnectionFactory acquire(Context context) {
+		if (!initialized) {
+			final long start = System.nanoTime();
+			PeerConnectionFactory.initialize(
+					PeerConnectionFactory.InitializationOptions.builder(context.getApplicationContext())
+					.setEnableInternalTracer(BuildConfig.DEBUG)
+					.createInitializationOptions()
+			);
+			initialized = true;
+			AppLog.d(LOG_TAG, "Initialized WebRTC globals in {} ms", (System.nanoTime() - start) / 1000000);
+		}
+		if (factory == null) {
+			final long start = System.nanoTime();
+			factory = new PeerConnectionFactory(new PeerConnectionFactory.Options());
+			AppLog.d(LOG_TAG, "Created peer connection factory in {} ms", (System.nanoTime() - start) / 1000000);
+		}
+		references++;
+		return factory;
+	}
+
+	/**
+	 * Decrement the reference count of the shared factory.
+	 *
+	 * The factory is kept alive so that the next session can reuse it.
+	 */
+	static synchronized void release() {
+		if (references == 0) {
+			throw new IllegalStateException("Peer connection factory released more often than acquired");
+		}
+		references--;
+	}
+
+	/**
+	 * Dispose the shared factory if no session references it anymore.
+	 */
+	static synchronized void disposeIfUnused() {
+		if (factory != null && references == 0) {
+			AppLog.d(LOG_TAG, "Disposing peer connection factory");
+			factory.dispose();
+			factory = null;
+		}
+	}
+
+}
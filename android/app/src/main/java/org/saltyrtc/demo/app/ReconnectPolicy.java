@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts.
+ *
+ * The delay ceiling doubles with every attempt, starting at the base delay and
+ * capped at the maximum delay. The actual delay is chosen uniformly between half
+ * the ceiling and the ceiling ("equal jitter"), so that clients dropped at the
+ * same time do not hammer the server in lockstep, while still waiting at least
+ * half the ceiling. Not thread safe.
+ */
+class ReconnectPolicy {
+
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final int maxAttempts;
+	private final Random random;
+	private int attempt = 0;
+
+	ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts) {
+		this(baseDelayMs, maxDelayMs, maxAttempts, new Random());
+	}
+
+	ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, Random random) {
+		if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+			throw new IllegalArgumentException("Invalid delay bounds");
+		}
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.maxAttempts = maxAttempts;
+		this.random = random;
+	}
+
+	/**
+	 * Return the number of attempts made since the last reset.
+	 */
+	int getAttempt() {
+		return this.attempt;
+	}
+
+	/**
+	 * Return the delay before the next attempt in milliseconds, or -1 if the
+	 * maximum number of attempts has been reached.
+	 */
+	long nextDelayMs() {
+		if (this.attempt >= this.maxAttempts) {
+			return -1;
+		}
+		// Avoid overflowing the shift, the ceiling is capped anyway
+		final int exponent = Math.min(this.attempt, 30);
+		final long ceiling = Math.min(this.maxDelayMs, this.baseDelayMs << exponent);
+		this.attempt++;
+		final long half = ceiling / 2;
+		return half + (long) (this.random.nextDouble() * (ceiling - half + 1));
+	}
+
+	/**
+	 * Reset the backoff, e.g. after a session has been established successfully.
+	 */
+	void reset() {
+		this.attempt = 0;
+	}
+
+}
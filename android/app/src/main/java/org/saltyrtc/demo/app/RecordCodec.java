@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of typed binary records on the interactive channel.
+ *
+ * Once the peer announced {@link Capabilities#RECORDS}, structured messages
+ * are sent as a frame: the byte 0xfd followed by one or more records. Every
+ * record is its type (varint), the length of its payload (varint) and the
+ * payload. Varints are unsigned LEB128: seven bits per byte, least
+ * significant group first, the high bit set on all but the last byte.
+ *
+ * Plain messages are UTF-8, which never contains the byte 0xfd. A frame may
+ * be compressed as a whole, see {@link PayloadCompression}. Frames are decoded
+ * by a {@link RecordDispatcher}.
+ */
+final class RecordCodec {
+
+	static final byte FRAME_MARKER = (byte) 0xfd;
+
+	// A 64 bit varint takes at most ten bytes
+	static final int MAX_VARINT_SIZE = 10;
+
+	private RecordCodec() { }
+
+	/**
+	 * A record, decoded in place and reused for every record of its type.
+	 */
+	abstract static class Record {
+		/**
+		 * Return the type of the record.
+		 */
+		abstract int getType();
+
+		/**
+		 * Return the size of the encoded payload in bytes.
+		 */
+		abstract int getSize();
+
+		/**
+		 * Write the payload.
+		 */
+		abstract void write(ByteBuffer out);
+
+		/**
+		 * Read the payload from the position to the limit of the buffer. The
+		 * buffer must not be referenced after the record has been handled.
+		 *
+		 * @throws IllegalArgumentException if the payload is malformed.
+		 */
+		abstract void read(ByteBuffer payload);
+	}
+
+	/**
+	 * Return whether the message is a record frame.
+	 */
+	static boolean isFrame(ByteBuffer message) {
+		return message.hasRemaining() && message.get(message.position()) == FRAME_MARKER;
+	}
+
+	/**
+	 * Encode a frame with a single record into a buffer acquired from the pool.
+	 *
+	 * The returned buffer is flipped and ready to be sent.
+	 */
+	static ByteBuffer encode(Record record, BufferPool pool) {
+		final int size = record.getSize();
+		final ByteBuffer out = pool.acquire(1 + varintSize(record.getType()) + varintSize(size) + size);
+		out.put(FRAME_MARKER);
+		putVarint(out, record.getType());
+		putVarint(out, size);
+		final int start = out.position();
+		record.write(out);
+		if (out.position() - start != size) {
+			throw new IllegalStateException("Record of type " + record.getType() + " wrote "
+					+ (out.position() - start) + " instead of " + size + " bytes");
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Return the number of bytes needed to encode the value as a varint.
+	 */
+	static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7fL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Read a varint up to the limit of the buffer.
+	 *
+	 * @throws IllegalArgumentException if the varint is truncated or too long.
+	 */
+	static long getVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new IllegalArgumentException("Truncated varint");
+			}
+			final byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint longer than " + MAX_VARINT_SIZE + " bytes");
+	}
+
+	/**
+	 * Read a varint that must fit into a non-negative int.
+	 */
+	static int getVarintInt(ByteBuffer in) {
+		final long value = getVarint(in);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Varint " + value + " out of range");
+		}
+		return (int) value;
+	}
+
+}
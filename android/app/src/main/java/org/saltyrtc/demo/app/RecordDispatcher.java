@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes record frames and hands every record to the handler of its type.
+ *
+ * Each type is registered with a record instance that is reused for all
+ * records of that type, and the records are read straight from the frame
+ * buffer. Dispatching a frame therefore does not allocate, unless a handler
+ * does. Records of unknown types are skipped, so a peer can add types without
+ * breaking older peers. Not thread safe, use one dispatcher per receiving
+ * thread.
+ */
+final class RecordDispatcher {
+
+	interface Handler<R extends RecordCodec.Record> {
+		/**
+		 * Handle a record. The record is only valid during the call.
+		 */
+		void onRecord(R record);
+	}
+
+	private static final class Entry<R extends RecordCodec.Record> {
+		final R record;
+		final Handler<? super R> handler;
+
+		Entry(R record, Handler<? super R> handler) {
+			this.record = record;
+			this.handler = handler;
+		}
+
+		void dispatch(ByteBuffer payload) {
+			this.record.read(payload);
+			this.handler.onRecord(this.record);
+		}
+	}
+
+	private Entry<?>[] entries = new Entry<?>[8];
+
+	/**
+	 * Register the handler for the type of the given record.
+	 */
+	<R extends RecordCodec.Record> void register(R record, Handler<? super R> handler) {
+		final int type = record.getType();
+		if (type < 0) {
+			throw new IllegalArgumentException("Negative record type");
+		}
+		if (type >= this.entries.length) {
+			final Entry<?>[] entries = new Entry<?>[Math.max(type + 1, this.entries.length * 2)];
+			System.arraycopy(this.entries, 0, entries, 0, this.entries.length);
+			this.entries = entries;
+		}
+		if (this.entries[type] != null) {
+			throw new IllegalArgumentException("Duplicate handler for record type " + type);
+		}
+		this.entries[type] = new Entry<>(record, handler);
+	}
+
+	/**
+	 * Dispatch all records of a frame and return the number of records that
+	 * were handled. The position of the frame is not modified.
+	 *
+	 * @throws IllegalArgumentException if the frame is malformed. Records
+	 *         before the malformed one have been handled already.
+	 */
+	int dispatch(ByteBuffer frame) {
+		if (!RecordCodec.isFrame(frame)) {
+			throw new IllegalArgumentException("Not a record frame");
+		}
+		final int position = frame.position();
+		final int limit = frame.limit();
+		int handled = 0;
+		try {
+			frame.position(position + 1);
+			while (frame.hasRemaining()) {
+				final long type = RecordCodec.getVarint(frame);
+				final int size = RecordCodec.getVarintInt(frame);
+				final int end = frame.position() + size;
+				if (size > frame.remaining()) {
+					throw new IllegalArgumentException("Record of type " + type + " exceeds the frame");
+				}
+				final Entry<?> entry = type >= 0 && type < this.entries.length ? this.entries[(int) type] : null;
+				if (entry != null) {
+					frame.limit(end);
+					entry.dispatch(frame);
+					frame.limit(limit);
+					handled++;
+				}
+				frame.position(end);
+			}
+		} finally {
+			frame.limit(limit);
+			frame.position(position);
+		}
+		return handled;
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The record types exchanged on the interactive channel, see {@link RecordCodec}.
+ *
+ * - CHAT:    sequence number (varint), send time in ms since the epoch (varint), UTF-8 text
+ * - RECEIPT: sequence number of the received chat record (varint)
+ * - PING:    sequence number (varint), send time in µs on the sender's clock
+ *            (varint), flags (varint), padding or echo payload
+ * - PONG:    sequence number and send time of the ping (varints), the ping's
+ *            payload if it asked for an echo
+ */
+final class Records {
+
+	static final int TYPE_CHAT = 1;
+	static final int TYPE_RECEIPT = 2;
+	static final int TYPE_PING = 3;
+	static final int TYPE_PONG = 4;
+
+	// Ping flag: return the payload in the pong
+	static final int FLAG_ECHO = 1;
+
+	private Records() { }
+
+	/**
+	 * A chat message.
+	 */
+	static final class Chat extends RecordCodec.Record {
+		long sequence;
+		long timestampMs;
+		private ByteBuffer text;
+		private int textOffset;
+		private int textLength;
+
+		/**
+		 * Set the fields before encoding. The text is not copied.
+		 */
+		Chat set(long sequence, long timestampMs, ByteBuffer text) {
+			this.sequence = sequence;
+			this.timestampMs = timestampMs;
+			this.text = text;
+			this.textOffset = text.position();
+			this.textLength = text.remaining();
+			return this;
+		}
+
+		/**
+		 * Decode the text.
+		 */
+		String getText() {
+			final ByteBuffer text = this.text.duplicate();
+			text.limit(this.textOffset + this.textLength).position(this.textOffset);
+			return MessageCodec.decode(text);
+		}
+
+		@Override
+		int getType() {
+			return TYPE_CHAT;
+		}
+
+		@Override
+		int getSize() {
+			return RecordCodec.varintSize(this.sequence) + RecordCodec.varintSize(this.timestampMs) + this.textLength;
+		}
+
+		@Override
+		void write(ByteBuffer out) {
+			RecordCodec.putVarint(out, this.sequence);
+			RecordCodec.putVarint(out, this.timestampMs);
+			final ByteBuffer text = this.text.duplicate();
+			text.limit(this.textOffset + this.textLength).position(this.textOffset);
+			out.put(text);
+		}
+
+		@Override
+		void read(ByteBuffer payload) {
+			this.sequence = RecordCodec.getVarint(payload);
+			this.timestampMs = RecordCodec.getVarint(payload);
+			this.text = payload;
+			this.textOffset = payload.position();
+			this.textLength = payload.remaining();
+		}
+	}
+
+	/**
+	 * Acknowledges a chat message.
+	 */
+	static final class Receipt extends RecordCodec.Record {
+		long sequence;
+
+		Receipt set(long sequence) {
+			this.sequence = sequence;
+			return this;
+		}
+
+		@Override
+		int getType() {
+			return TYPE_RECEIPT;
+		}
+
+		@Override
+		int getSize() {
+			return RecordCodec.varintSize(this.sequence);
+		}
+
+		@Override
+		void write(ByteBuffer out) {
+			RecordCodec.putVarint(out, this.sequence);
+		}
+
+		@Override
+		void read(ByteBuffer payload) {
+			// Ignore trailing bytes, later versions may append fields
+			this.sequence = RecordCodec.getVarint(payload);
+		}
+	}
+
+	/**
+	 * A load test probe, answered with a {@link Pong}. The send time is only
+	 * interpreted by the sender, so the peers' clocks need not be in sync.
+	 */
+	static final class Ping extends RecordCodec.Record {
+		long sequence;
+		long timestampUs;
+		long flags;
+		private ByteBuffer payload;
+		private int payloadOffset;
+		private int payloadLength;
+
+		/**
+		 * Set the fields before encoding. The payload is not copied.
+		 */
+		Ping set(long sequence, long timestampUs, long flags, ByteBuffer payload) {
+			this.sequence = sequence;
+			this.timestampUs = timestampUs;
+			this.flags = flags;
+			this.payload = payload;
+			this.payloadOffset = payload.position();
+			this.payloadLength = payload.remaining();
+			return this;
+		}
+
+		/**
+		 * Return a view of the payload, valid as long as the record.
+		 */
+		ByteBuffer getPayload() {
+			final ByteBuffer payload = this.payload.duplicate();
+			payload.limit(this.payloadOffset + this.payloadLength).position(this.payloadOffset);
+			return payload;
+		}
+
+		@Override
+		int getType() {
+			return TYPE_PING;
+		}
+
+		@Override
+		int getSize() {
+			return RecordCodec.varintSize(this.sequence) + RecordCodec.varintSize(this.timestampUs)
+					+ RecordCodec.varintSize(this.flags) + this.payloadLength;
+		}
+
+		@Override
+		void write(ByteBuffer out) {
+			RecordCodec.putVarint(out, this.sequence);
+			RecordCodec.putVarint(out, this.timestampUs);
+			RecordCodec.putVarint(out, this.flags);
+			out.put(this.getPayload());
+		}
+
+		@Override
+		void read(ByteBuffer payload) {
+			this.sequence = RecordCodec.getVarint(payload);
+			this.timestampUs = RecordCodec.getVarint(payload);
+			this.flags = RecordCodec.getVarint(payload);
+			this.payload = payload;
+			this.payloadOffset = payload.position();
+			this.payloadLength = payload.remaining();
+		}
+	}
+
+	/**
+	 * Answers a {@link Ping}. The payload has the same layout as the ping's,
+	 * without the flags.
+	 */
+	static final class Pong extends RecordCodec.Record {
+		private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+		long sequence;
+		long timestampUs;
+		private ByteBuffer payload = EMPTY;
+		private int payloadOffset;
+		private int payloadLength;
+
+		/**
+		 * Answer the ping, with its payload if it asked for an echo. The
+		 * payload is not copied.
+		 */
+		Pong set(Ping ping) {
+			this.sequence = ping.sequence;
+			this.timestampUs = ping.timestampUs;
+			this.payload = (ping.flags & FLAG_ECHO) != 0 ? ping.getPayload() : EMPTY;
+			this.payloadOffset = this.payload.position();
+			this.payloadLength = this.payload.remaining();
+			return this;
+		}
+
+		int getPayloadLength() {
+			return this.payloadLength;
+		}
+
+		@Override
+		int getType() {
+			return TYPE_PONG;
+		}
+
+		@Override
+		int getSize() {
+			return RecordCodec.varintSize(this.sequence) + RecordCodec.varintSize(this.timestampUs)
+					+ this.payloadLength;
+		}
+
+		@Override
+		void write(ByteBuffer out) {
+			RecordCodec.putVarint(out, this.sequence);
+			RecordCodec.putVarint(out, this.timestampUs);
+			final ByteBuffer payload = this.payload.duplicate();
+			payload.limit(this.payloadOffset + this.payloadLength).position(this.payloadOffset);
+			out.put(payload);
+		}
+
+		@Override
+		void read(ByteBuffer payload) {
+			this.sequence = RecordCodec.getVarint(payload);
+			this.timestampUs = RecordCodec.getVarint(payload);
+			this.payload = payload;
+			this.payloadOffset = payload.position();
+			this.payloadLength = payload.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.WorkerThread;
+
+import org.saltyrtc.client.SaltyRTC;
+import org.saltyrtc.client.exceptions.ConnectionException;
+import org.saltyrtc.client.signaling.CloseCode;
+import org.saltyrtc.tasks.webrtc.WebRTCTask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The objects making up one SaltyRTC session: signaling client, WebRTC task,
+ * peer connection, data channel scheduler, setup timings and metrics.
+ *
+ * A session can be prepared in advance (key store, client, peer connection)
+ * and connected later. This allows building the next session in the
+ * background while a dropped one is still being torn down.
+ */
+final class Session {
+
+	private static final String LOG_TAG = Session.class.getName();
+
+	final SaltyRTC client;
+	final WebRTCTask task;
+	final WebRTC webrtc;
+	final ChannelScheduler scheduler;
+	final SessionTimings timings;
+	final MetricsRegistry metrics;
+	// Updated for every incoming signaling message
+	final MetricsRegistry.Counter signalingMessagesReceived;
+	final MetricsRegistry.Counter signalingBytesReceived;
+
+	// Capabilities announced by the peer, see Capabilities
+	volatile int peerCapabilities = 0;
+	final AtomicLong chatSequence = new AtomicLong();
+
+	Session(SaltyRTC client, WebRTCTask task, WebRTC webrtc, ChannelScheduler scheduler, SessionTimings timings,
+	        MetricsRegistry metrics) {
+		this.client = client;
+		this.task = task;
+		this.webrtc = webrtc;
+		this.scheduler = scheduler;
+		this.timings = timings;
+		this.metrics = metrics;
+		this.signalingMessagesReceived = metrics.counter("signaling_messages_received_total");
+		this.signalingBytesReceived = metrics.counter("signaling_bytes_received_total");
+	}
+
+	/**
+	 * Write the metrics and setup timings of this session, see {@link MetricsRegistry}.
+	 */
+	void writeMetricsTo(StringBuilder out) {
+		this.metrics.writeTo(out);
+		this.timings.writeTo(out);
+	}
+
+	/**
+	 * Connect to the signaling server. The timings start at this point, not
+	 * when the session was prepared.
+	 */
+	void connect() throws ConnectionException {
+		this.timings.restart();
+		this.client.connect();
+	}
+
+	/**
+	 * Tear down the session. No events are dispatched for it anymore once
+	 * this method has been called.
+	 *
+	 * Disposing the native peer connection may block for a long time, so
+	 * this is never called on the UI thread.
+	 */
+	@WorkerThread
+	void close() {
+		final long start = System.nanoTime();
+		this.client.events.clearAll();
+		AppLog.i(LOG_TAG, "Session timings: " + this.timings);
+
+		AppLog.d(LOG_TAG, "Closing secure data channels...");
+		this.scheduler.close();
+
+		AppLog.d(LOG_TAG, "Stopping WebRTC task...");
+		this.task.close(CloseCode.CLOSING_NORMAL);
+
+		AppLog.d(LOG_TAG, "Stopping SaltyRTC client...");
+		this.client.disconnect();
+
+		AppLog.d(LOG_TAG, "Stopping WebRTC connection...");
+		this.webrtc.dispose();
+		AppLog.d(LOG_TAG, "Session torn down in {} ms", (System.nanoTime() - start) / 1000000);
+	}
+
+}
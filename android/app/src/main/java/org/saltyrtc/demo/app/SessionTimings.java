@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Timing record of the connection setup of one session.
+ *
+ * Every transition (SaltyRTC signaling state, WebRTC signaling and ICE states,
+ * offer / answer, handover, first data channel message) is recorded with its
+ * offset from the session start, taken from the monotonic clock. The offsets
+ * are also fed into histograms shared by all sessions, keyed by state type and
+ * state name, so that percentiles across sessions can be reported.
+ */
+@AnyThread
+final class SessionTimings {
+
+	/**
+	 * A single transition.
+	 */
+	static final class Mark {
+		final StateType type;
+		final String state;
+		final long elapsedNanos;
+
+		Mark(StateType type, String state, long elapsedNanos) {
+			this.type = type;
+			this.state = state;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return this.type + "=" + this.state + "@" + this.elapsedNanos / 1000000 + "ms";
+		}
+	}
+
+	// Histograms of the offsets from session start (in µs), across all sessions
+	private static final Map<StateType, ConcurrentMap<String, LatencyHistogram>> histograms = new EnumMap<>(StateType.class);
+	static {
+		for (final StateType type : StateType.values()) {
+			histograms.put(type, new ConcurrentHashMap<>());
+		}
+	}
+
+	private volatile long startedAt = System.nanoTime();
+	private final List<Mark> marks = new ArrayList<>();
+
+	/**
+	 * Return the monotonic start timestamp in nanoseconds.
+	 */
+	long getStartedAt() {
+		return this.startedAt;
+	}
+
+	/**
+	 * Restart the clock and drop all marks, e.g. when a session that has been
+	 * prepared in advance is actually connected.
+	 */
+	void restart() {
+		synchronized (this.marks) {
+			this.marks.clear();
+			this.startedAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Record a transition and return its offset from the session start in nanoseconds.
+	 */
+	long mark(StateType type, String state) {
+		final long elapsed = System.nanoTime() - this.startedAt;
+		synchronized (this.marks) {
+			this.marks.add(new Mark(type, state, elapsed));
+		}
+		getHistogram(type, state).record(elapsed / 1000);
+		return elapsed;
+	}
+
+	/**
+	 * Return a copy of the recorded transitions, in order.
+	 */
+	List<Mark> getMarks() {
+		synchronized (this.marks) {
+			return new ArrayList<>(this.marks);
+		}
+	}
+
+	/**
+	 * Write the offset (in µs) of the latest occurrence of every transition
+	 * as a gauge, in the format of {@link MetricsRegistry}.
+	 */
+	void writeTo(StringBuilder out) {
+		final Map<String, Long> offsets = new TreeMap<>();
+		for (final Mark mark : this.getMarks()) {
+			offsets.put(MetricsRegistry.formatLabels("type", mark.type.name(), "state", mark.state),
+					mark.elapsedNanos / 1000);
+		}
+		if (offsets.isEmpty()) {
+			return;
+		}
+		out.append("# TYPE session_state_offset_us gauge\n");
+		for (final Map.Entry<String, Long> offset : offsets.entrySet()) {
+			MetricsRegistry.writeSample(out, "session_state_offset_us", offset.getKey(), offset.getValue());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.getMarks().toString();
+	}
+
+	/**
+	 * Return the histogram of offsets (in µs) for a transition, across all sessions.
+	 */
+	static LatencyHistogram getHistogram(StateType type, String state) {
+		final ConcurrentMap<String, LatencyHistogram> byState = histograms.get(type);
+		LatencyHistogram histogram = byState.get(state);
+		if (histogram == null) {
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = byState.putIfAbsent(state, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Return the histograms of all transitions seen so far, keyed by state type
+	 * and state name.
+	 */
+	static Map<StateType, Map<String, LatencyHistogram>> getHistograms() {
+		final Map<StateType, Map<String, LatencyHistogram>> copy = new EnumMap<>(StateType.class);
+		for (final Map.Entry<StateType, ConcurrentMap<String, LatencyHistogram>> entry : histograms.entrySet()) {
+			copy.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+		}
+		return copy;
+	}
+
+	/**
+	 * Write the histograms of all transitions across all sessions (in µs) as
+	 * summaries, in the format of {@link MetricsRegistry}.
+	 */
+	static void writeHistogramsTo(StringBuilder out) {
+		boolean first = true;
+		for (final Map.Entry<StateType, Map<String, LatencyHistogram>> entry : getHistograms().entrySet()) {
+			for (final Map.Entry<String, LatencyHistogram> state : entry.getValue().entrySet()) {
+				if (first) {
+					out.append("# TYPE session_setup_us summary\n");
+					first = false;
+				}
+				MetricsRegistry.writeSummary(out, "session_setup_us",
+						MetricsRegistry.formatLabels("type", entry.getKey().name(), "state", state.getKey()),
+						state.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Return a human readable summary of the percentiles across all sessions (in ms).
+	 */
+	static String summary() {
+		final StringBuilder builder = new StringBuilder();
+		for (final Map.Entry<StateType, Map<String, LatencyHistogram>> entry : getHistograms().entrySet()) {
+			for (final Map.Entry<String, LatencyHistogram> state : entry.getValue().entrySet()) {
+				final LatencyHistogram histogram = state.getValue();
+				builder.append(entry.getKey()).append('=').append(state.getKey())
+						.append(": n=").append(histogram.getCount())
+						.append(" p50=").append(histogram.getPercentile(50) / 1000)
+						.append("ms p90=").append(histogram.getPercentile(90) / 1000)
+						.append("ms p99=").append(histogram.getPercentile(99) / 1000)
+						.append("ms\n");
+			}
+		}
+		return builder.toString();
+	}
+
+}
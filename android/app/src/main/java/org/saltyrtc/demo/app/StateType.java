@@ -13,4 +13,5 @@ public enum StateType {
 	RTC_ICE_CONNECTION,
 	RTC_ICE_GATHERING,
 	SALTY_HANDOVER,
+	DATA_CHANNEL,
 }
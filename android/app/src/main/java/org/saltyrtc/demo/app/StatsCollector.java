@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStatsReport;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the stats of a peer connection periodically.
+ *
+ * Every report is turned into a {@link ConnectionStats} snapshot, which is
+ * passed to the listener and kept as the latest one. The round trip times of
+ * the selected pair are recorded over the whole session, so a single slow
+ * sample does not decide the ICE policy of the next session.
+ */
+@AnyThread
+final class StatsCollector {
+
+	private static final String LOG_TAG = StatsCollector.class.getName();
+
+	private static final long CLOSE_TIMEOUT_MS = 1000;
+
+	interface Listener {
+		/**
+		 * Called on a WebRTC thread with every new snapshot.
+		 */
+		void onStats(ConnectionStats stats);
+	}
+
+	private final PeerConnection pc;
+	private final ChannelScheduler scheduler;
+	private final Listener listener;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+			runnable -> new Thread(runnable, "StatsCollector"));
+
+	// Round trip times of the selected pair in microseconds
+	private final LatencyHistogram roundTripTimes;
+	@Nullable private volatile ConnectionStats latest;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a collector that records the round trip times (in µs) into the
+	 * given histogram.
+	 */
+	StatsCollector(PeerConnection pc, ChannelScheduler scheduler, LatencyHistogram roundTripTimes, Listener listener) {
+		this.pc = pc;
+		this.scheduler = scheduler;
+		this.roundTripTimes = roundTripTimes;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start polling with the given interval. The first poll happens immediately.
+	 */
+	void start(long intervalMs) {
+		this.executor.scheduleWithFixedDelay(this::poll, 0, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		if (!this.closed) {
+			this.pc.getStats(this::onReport);
+		}
+	}
+
+	private void onReport(RTCStatsReport report) {
+		if (this.closed) {
+			return;
+		}
+		final ConnectionStats stats = ConnectionStats.fromReport(report, this.scheduler.getBufferedAmount());
+		if (stats.roundTripTimeMs >= 0) {
+			this.roundTripTimes.record((long) (stats.roundTripTimeMs * 1000));
+		}
+		this.latest = stats;
+		AppLog.d(LOG_TAG, "Connection stats: {}", stats);
+		this.listener.onStats(stats);
+	}
+
+	/**
+	 * Return the latest snapshot, or null if there was none yet.
+	 */
+	@Nullable
+	ConnectionStats getLatest() {
+		return this.latest;
+	}
+
+	/**
+	 * Return the median round trip time of the session in milliseconds, or -1
+	 * if none was reported.
+	 */
+	double getMedianRoundTripTimeMs() {
+		return this.roundTripTimes.getCount() == 0 ? -1 : this.roundTripTimes.getPercentile(50) / 1000.0;
+	}
+
+	/**
+	 * Stop polling. Must be called before the peer connection is disposed.
+	 */
+	void close() {
+		this.closed = true;
+		this.executor.shutdownNow();
+		try {
+			// A poll in progress must not call into a disposed peer connection
+			this.executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
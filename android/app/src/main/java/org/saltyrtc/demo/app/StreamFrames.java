@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of a payload streamed over the bulk channel.
+ *
+ * Every frame is one data channel message starting with a type byte (all
+ * integers are big endian):
+ *
+ * - START: kind of the payload (u8), total length of the payload (u64), offset
+ *          of the first data byte (u64)
+ * - DATA:  the next slice of the payload
+ * - END:   CRC32 of all data bytes sent since START (u32)
+ *
+ * The kind tells the receiver what to do with the payload:
+ *
+ * - MESSAGE: a message too large for the interactive channel, handled like one
+ * - DATA:    test data, only counted and checksummed
+ * - FILE:    a file, stored by the receiver
+ *
+ * The receiver of a file answers with control frames:
+ *
+ * - ACK:    number of bytes received (u64), whether the checksum matched (u8)
+ * - RESUME: offset from which the last file should be sent again (u64)
+ *
+ * The offset allows resuming an interrupted file transfer. Other streams are
+ * neither acknowledged nor resumed.
+ */
+final class StreamFrames {
+
+	static final byte TYPE_START = 0x01;
+	static final byte TYPE_DATA = 0x02;
+	static final byte TYPE_END = 0x03;
+	static final byte TYPE_ACK = 0x04;
+	static final byte TYPE_RESUME = 0x05;
+
+	static final byte KIND_MESSAGE = 0x00;
+	static final byte KIND_DATA = 0x01;
+	static final byte KIND_FILE = 0x02;
+
+	static final int START_SIZE = 1 + 1 + 8 + 8;
+	static final int DATA_HEADER_SIZE = 1;
+	static final int END_SIZE = 1 + 4;
+	static final int ACK_SIZE = 1 + 8 + 1;
+	static final int RESUME_SIZE = 1 + 8;
+
+	private StreamFrames() { }
+
+	static void putStart(ByteBuffer out, byte kind, long totalLength, long offset) {
+		out.put(TYPE_START);
+		out.put(kind);
+		out.putLong(totalLength);
+		out.putLong(offset);
+	}
+
+	static void putDataHeader(ByteBuffer out) {
+		out.put(TYPE_DATA);
+	}
+
+	static void putEnd(ByteBuffer out, long crc32) {
+		out.put(TYPE_END);
+		out.putInt((int) crc32);
+	}
+
+	static void putAck(ByteBuffer out, long received, boolean checksumValid) {
+		out.put(TYPE_ACK);
+		out.putLong(received);
+		out.put((byte) (checksumValid ? 1 : 0));
+	}
+
+	static void putResume(ByteBuffer out, long offset) {
+		out.put(TYPE_RESUME);
+		out.putLong(offset);
+	}
+
+	/**
+	 * Return whether the frame is a control frame sent by the receiver of a stream.
+	 */
+	static boolean isControl(ByteBuffer frame) {
+		if (!frame.hasRemaining()) {
+			return false;
+		}
+		final byte type = frame.get(frame.position());
+		return type == TYPE_ACK || type == TYPE_RESUME;
+	}
+
+}
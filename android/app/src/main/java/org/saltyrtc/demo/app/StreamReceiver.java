@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental receiver for payloads streamed as {@link StreamFrames}.
+ *
+ * Every data frame is handed to a sink as soon as it arrives and the CRC32 is
+ * updated on the fly, so the payload is never held on the heap as a whole.
+ * Must be fed from a single thread (the data channel's callback thread).
+ */
+class StreamReceiver {
+
+	/**
+	 * Consumer of the payload bytes.
+	 */
+	interface Sink {
+		/**
+		 * Consume the remaining bytes of the buffer. The buffer is only valid
+		 * during the call.
+		 */
+		void write(ByteBuffer data) throws IOException;
+
+		/**
+		 * The stream ended, either complete or aborted.
+		 */
+		void close(boolean complete) throws IOException;
+	}
+
+	/**
+	 * Creates a sink for every new stream.
+	 */
+	interface SinkFactory {
+		/**
+		 * @param kind one of the {@code StreamFrames.KIND_*} constants, or an
+		 *        unknown kind sent by a newer peer.
+		 */
+		Sink create(byte kind, long totalLength, long offset) throws IOException;
+	}
+
+	/**
+	 * Drops the payload, for streams that are only checksummed.
+	 */
+	static final Sink DISCARD = new Sink() {
+		@Override
+		public void write(ByteBuffer data) {
+			data.position(data.limit());
+		}
+
+		@Override
+		public void close(boolean complete) { }
+	};
+
+	/**
+	 * Progress listener. Called on the thread feeding the receiver.
+	 */
+	interface Listener {
+		void onProgress(long received, long total);
+		void onComplete(long total, boolean checksumValid, double megabytesPerSecond);
+		void onError(String reason);
+	}
+
+	private final SinkFactory sinkFactory;
+	private final Listener listener;
+	private final CRC32 crc = new CRC32();
+	private byte[] scratch = new byte[0];
+
+	@Nullable private Sink sink;
+	private long total;
+	private long received;
+	private long startedAt;
+
+	StreamReceiver(SinkFactory sinkFactory, Listener listener) {
+		this.sinkFactory = sinkFactory;
+		this.listener = listener;
+	}
+
+	/**
+	 * Return the number of payload bytes received so far, including the start offset.
+	 */
+	long getReceived() {
+		return this.received;
+	}
+
+	/**
+	 * Process a frame. The buffer's position is not modified.
+	 */
+	void onFrame(ByteBuffer frame) {
+		final ByteBuffer in = frame.duplicate();
+		if (!in.hasRemaining()) {
+			this.fail("Empty frame");
+			return;
+		}
+		try {
+			switch (in.get()) {
+				case StreamFrames.TYPE_START:
+					this.onStart(in);
+					break;
+				case StreamFrames.TYPE_DATA:
+					this.onData(in);
+					break;
+				case StreamFrames.TYPE_END:
+					this.onEnd(in);
+					break;
+				default:
+					this.fail("Unknown frame type");
+			}
+		} catch (final IOException e) {
+			this.fail("Sink failed: " + e.getMessage());
+		}
+	}
+
+	private void onStart(ByteBuffer in) throws IOException {
+		if (this.sink != null) {
+			this.fail("Stream restarted before it ended");
+		}
+		if (in.remaining() < StreamFrames.START_SIZE - 1) {
+			this.fail("Truncated start frame");
+			return;
+		}
+		final byte kind = in.get();
+		this.total = in.getLong();
+		this.received = in.getLong();
+		if (this.total < 0 || this.received < 0 || this.received > this.total) {
+			this.fail("Invalid stream length or offset");
+			return;
+		}
+		this.crc.reset();
+		this.startedAt = System.nanoTime();
+		this.sink = this.sinkFactory.create(kind, this.total, this.received);
+	}
+
+	private void onData(ByteBuffer in) throws IOException {
+		if (this.sink == null) {
+			this.fail("Data frame outside of stream");
+			return;
+		}
+		final int length = in.remaining();
+		if (this.received + length > this.total) {
+			this.fail("Stream longer than announced");
+			return;
+		}
+		this.updateCrc(in);
+		this.sink.write(in);
+		this.received += length;
+		this.listener.onProgress(this.received, this.total);
+	}
+
+	private void onEnd(ByteBuffer in) throws IOException {
+		if (this.sink == null) {
+			this.fail("End frame outside of stream");
+			return;
+		}
+		if (in.remaining() < StreamFrames.END_SIZE - 1) {
+			this.fail("Truncated end frame");
+			return;
+		}
+		final long expected = in.getInt() & 0xffffffffL;
+		final boolean complete = this.received == this.total;
+		final boolean checksumValid = complete && expected == this.crc.getValue();
+		final Sink sink = this.sink;
+		this.sink = null;
+		sink.close(checksumValid);
+		if (!complete) {
+			this.listener.onError("Stream ended after " + this.received + " of " + this.total + " bytes");
+			return;
+		}
+		final long elapsed = System.nanoTime() - this.startedAt;
+		final double megabytesPerSecond = elapsed <= 0 ? 0 : (this.total / 1e6) / (elapsed / 1e9);
+		this.listener.onComplete(this.total, checksumValid, megabytesPerSecond);
+	}
+
+	/**
+	 * Update the checksum without moving the buffer's position. Direct buffers
+	 * are copied through a reusable scratch array.
+	 */
+	private void updateCrc(ByteBuffer data) {
+		final int length = data.remaining();
+		if (data.hasArray()) {
+			this.crc.update(data.array(), data.arrayOffset() + data.position(), length);
+			return;
+		}
+		if (this.scratch.length < length) {
+			this.scratch = new byte[length];
+		}
+		data.duplicate().get(this.scratch, 0, length);
+		this.crc.update(this.scratch, 0, length);
+	}
+
+	/**
+	 * Abort the current stream, if any.
+	 */
+	void abort() {
+		if (this.sink != null) {
+			try {
+				this.sink.close(false);
+			} catch (final IOException e) {
+				// Ignore, we are aborting anyway
+			}
+			this.sink = null;
+		}
+	}
+
+	private void fail(String reason) {
+		this.abort();
+		this.listener.onError(reason);
+	}
+
+}
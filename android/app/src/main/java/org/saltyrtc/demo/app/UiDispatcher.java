@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.UiThread;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dispatcher between the SaltyRTC / WebRTC callbacks and the UI.
+ *
+ * Event handling work runs on a dedicated event thread, so neither the
+ * WebSocket thread nor the UI thread is blocked by it. Updates for the UI are
+ * collected and applied at most once per frame: state updates are coalesced
+ * so that only the latest value per state type is shown, and incoming messages
+ * are handed to the UI in one batch.
+ */
+class UiDispatcher implements Choreographer.FrameCallback {
+
+	/**
+	 * Receiver of the coalesced UI updates.
+	 */
+	interface Sink {
+		@UiThread
+		void applyState(StateType type, String state);
+
+		@UiThread
+		void showMessages(List<ChatMessage> messages);
+	}
+
+	private static final StateType[] STATE_TYPES = StateType.values();
+
+	private final Sink sink;
+	private final Choreographer choreographer;
+	private final ExecutorService eventExecutor = Executors.newSingleThreadExecutor();
+
+	// Latest pending value per state type, indexed by ordinal
+	private final AtomicReferenceArray<String> pendingStates = new AtomicReferenceArray<>(STATE_TYPES.length);
+	private final Queue<ChatMessage> pendingMessages = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean frameScheduled = new AtomicBoolean(false);
+
+	// Only accessed on the UI thread
+	private final List<ChatMessage> batch = new ArrayList<>();
+
+	/**
+	 * Must be created on the UI thread.
+	 */
+	@UiThread
+	UiDispatcher(Sink sink) {
+		this.sink = sink;
+		this.choreographer = Choreographer.getInstance();
+	}
+
+	/**
+	 * Run event handling work on the event thread. Tasks are run in order.
+	 */
+	@AnyThread
+	void execute(Runnable runnable) {
+		this.eventExecutor.execute(runnable);
+	}
+
+	/**
+	 * Update a state. Only the latest value per type is applied in the next frame.
+	 */
+	@AnyThread
+	void postState(StateType type, String state) {
+		this.pendingStates.set(type.ordinal(), state);
+		this.scheduleFrame();
+	}
+
+	/**
+	 * Queue a message to be shown in the next frame.
+	 */
+	@AnyThread
+	void postMessage(ChatMessage message) {
+		this.pendingMessages.add(message);
+		this.scheduleFrame();
+	}
+
+	private void scheduleFrame() {
+		if (this.frameScheduled.compareAndSet(false, true)) {
+			// The choreographer forwards the request to its looper thread if necessary
+			this.choreographer.postFrameCallback(this);
+		}
+	}
+
+	@UiThread
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		// Clear the flag first so that updates arriving during the flush schedule another frame
+		this.frameScheduled.set(false);
+
+		for (int i = 0; i < STATE_TYPES.length; i++) {
+			final String state = this.pendingStates.getAndSet(i, null);
+			if (state != null) {
+				this.sink.applyState(STATE_TYPES[i], state);
+			}
+		}
+
+		ChatMessage message;
+		while ((message = this.pendingMessages.poll()) != null) {
+			this.batch.add(message);
+		}
+		if (!this.batch.isEmpty()) {
+			this.sink.showMessages(this.batch);
+			this.batch.clear();
+		}
+	}
+
+	/**
+	 * Stop the event thread and drop pending UI updates.
+	 */
+	@UiThread
+	void shutdown() {
+		this.eventExecutor.shutdownNow();
+		this.choreographer.removeFrameCallback(this);
+		this.pendingMessages.clear();
+	}
+
+}
@@ -7,7 +7,7 @@
  */
 package org.saltyrtc.demo.app;
 
-import android.util.Log;
+import android.support.annotation.Nullable;
 
 import org.saltyrtc.client.exceptions.ConnectionException;
 import org.saltyrtc.tasks.webrtc.SecureDataChannel;
@@ -28,49 +28,101 @@ import java.util.List;
 class WebRTC {
 
 	private static final String LOG_TAG = WebRTC.class.getName();
-	private static final String DC_LABEL = "much-secure";
 
 	private final PeerConnection pc;
 	private final WebRTCTask task;
 	private final MediaConstraints constraints;
-	private final PeerConnectionFactory factory;
 	private final MainActivity activity;
+	private final IceCandidateBatcher candidateBatcher;
+	private final StatsCollector statsCollector;
+	private final IcePolicy icePolicy;
+	private final IcePolicy.Mode iceMode;
+
+	// Session metrics fed by the peer connection
+	private final MetricsRegistry.Counter localCandidates;
+	private final MetricsRegistry.Counter remoteCandidates;
+	private final MetricsRegistry.Gauge pairRoundTripTime;
+	private final MetricsRegistry.Gauge pairBytesSent;
+	private final MetricsRegistry.Gauge pairBytesReceived;
+	private final MetricsRegistry.Gauge pairRelayed;
+
+	// Setup timing record of this session and derived times until ICE connected
+	private final SessionTimings timings;
+	private volatile long offerReceivedAt = -1;
+	private volatile long connectTimeMs = -1;
+	private volatile long iceConnectTimeMs = -1;
+	private volatile boolean iceFailed = false;
+	private volatile PeerConnection.IceConnectionState iceState = PeerConnection.IceConnectionState.NEW;
+
+	// Remote candidates that arrived before the remote description was set
+	private final Object remoteCandidatesLock = new Object();
+	private final List<IceCandidate> pendingRemoteCandidates = new ArrayList<>();
+	private boolean remoteDescriptionSet = false;
 
-	WebRTC(WebRTCTask task, MainActivity activity) {
+	/**
+	 * Create a new WebRTC connection.
+	 *
+	 * Setup transitions are recorded in the timing record of the session.
+	 * The ICE mode restricts the gathered candidates, see {@link IcePolicy}.
+	 * The outcome of the connection is recorded in the policy on disposal.
+	 * Candidates and connection stats are recorded in the session metrics.
+	 */
+	WebRTC(WebRTCTask task, MainActivity activity, SessionTimings timings, ConnectionProfile.IceServerSet iceServers,
+	       ChannelScheduler scheduler, IcePolicy icePolicy, IcePolicy.Mode iceMode, MetricsRegistry metrics) {
 		this.task = task;
 		this.activity = activity;
+		this.timings = timings;
+		this.icePolicy = icePolicy;
+		this.iceMode = iceMode;
+		this.localCandidates = metrics.counter("ice_candidates_local_total");
+		this.remoteCandidates = metrics.counter("ice_candidates_remote_total");
+		this.pairRoundTripTime = metrics.gauge("ice_pair_rtt_us");
+		this.pairBytesSent = metrics.gauge("ice_pair_bytes_sent");
+		this.pairBytesReceived = metrics.gauge("ice_pair_bytes_received");
+		this.pairRelayed = metrics.gauge("ice_pair_relayed");
+
+		// Create peer connection using the shared factory. Without any ICE
+		// servers, only host candidates are gathered.
+		final PeerConnectionFactory factory = PeerConnectionFactoryHolder.acquire(activity);
+		this.constraints = new MediaConstraints();
+		final PeerConnection.RTCConfiguration configuration = new PeerConnection.RTCConfiguration(
+				iceMode == IcePolicy.Mode.HOST ? new ArrayList<>() : createIceServers(iceServers));
+		if (iceMode == IcePolicy.Mode.RELAY) {
+			configuration.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+		}
+		this.pc = factory.createPeerConnection(configuration, new PeerConnectionObserver());
 
-		// Initialize Android globals
-		PeerConnectionFactory.initialize(
-				PeerConnectionFactory.InitializationOptions.builder(activity)
-				.setEnableInternalTracer(BuildConfig.DEBUG)
-				.createInitializationOptions()
-		);
+		// Poll the connection stats once connected
+		this.statsCollector = new StatsCollector(
+				this.pc, scheduler, metrics.histogram("ice_rtt_us"), this::onStats);
 
-		// Set ICE servers
-		final List<PeerConnection.IceServer> iceServers = new ArrayList<>();
-		iceServers.add(
-			PeerConnection.IceServer.builder("stun:" + Config.STUN_SERVER).createIceServer()
+		// Batch outgoing ICE candidates
+		this.candidateBatcher = new IceCandidateBatcher(
+				this::sendCandidates, Config.ICE_CANDIDATE_BATCH_WINDOW_MS, Config.ICE_CANDIDATE_BATCH_SIZE
 		);
-		if (Config.TURN_SERVER != null) {
-			iceServers.add(
-				PeerConnection.IceServer.builder("turn:" + Config.TURN_SERVER)
-						.setUsername(Config.TURN_USER)
-						.setPassword(Config.TURN_PASS)
-						.createIceServer()
-			);
-		}
-
-		// Create peer connection
-		final PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-		this.factory = new PeerConnectionFactory(options);
-		this.constraints = new MediaConstraints();
-		this.pc = this.factory.createPeerConnection(iceServers, new PeerConnectionObserver());
 
 		// Add task message event handler
 		this.task.setMessageHandler(new TaskMessageHandler());
 	}
 
+	/**
+	 * Convert an ICE server set of a connection profile.
+	 */
+	static List<PeerConnection.IceServer> createIceServers(ConnectionProfile.IceServerSet set) {
+		final List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+		for (final ConnectionProfile.IceServer server : set.servers) {
+			final PeerConnection.IceServer.Builder builder = PeerConnection.IceServer.builder(server.url);
+			if (server.username != null) {
+				builder.setUsername(server.username);
+			}
+			if (server.password != null) {
+				builder.setPassword(server.password);
+			}
+			iceServers.add(builder.createIceServer());
+		}
+		return iceServers;
+	}
+
 	/**
 	 * Handler for incoming task messages.
 	 */
@@ -82,7 +134,7 @@ class WebRTC {
 
 		@Override
 		public void onAnswer(SessionDescription sd) {
-			Log.d(LOG_TAG, "Received answer. Ignoring.");
+			AppLog.d(LOG_TAG, "Received answer. Ignoring.");
 		}
 
 		@Override
@@ -95,6 +147,8 @@ class WebRTC {
 	 * A WebRTC offer was received. Set the remote description.
 	 */
 	private void onOfferReceived(SessionDescription offer) {
+		this.offerReceivedAt = this.timings.mark(StateType.RTC_SIGNALING, "OFFER_RECEIVED");
+
 		// Set remote description
 		this.pc.setRemoteDescription(new SdpObserver() {
 			@Override
@@ -105,139 +159,218 @@ class WebRTC {
 
 			@Override
 			public void onSetSuccess() {
-				Log.d(LOG_TAG, "Remote description set");
+				AppLog.d(LOG_TAG, "Remote description set");
 				WebRTC.this.onRemoteDescriptionSet();
 			}
 
 			@Override
 			public void onSetFailure(String s) {
-				Log.e(LOG_TAG, "Could not set remote description: " + s);
+				AppLog.e(LOG_TAG, "Could not set remote description: " + s);
 			}
 		}, offer);
 	}
 
 	/**
-	 * The remote description was set. Create and send an answer.
+	 * The remote description was set. Apply queued remote candidates, then
+	 * create and send an answer.
 	 */
 	private void onRemoteDescriptionSet() {
+		synchronized (this.remoteCandidatesLock) {
+			this.remoteDescriptionSet = true;
+			for (final IceCandidate candidate : this.pendingRemoteCandidates) {
+				this.pc.addIceCandidate(candidate);
+			}
+			if (!this.pendingRemoteCandidates.isEmpty()) {
+				AppLog.d(LOG_TAG, "Added {} queued ICE candidate(s)", this.pendingRemoteCandidates.size());
+			}
+			this.pendingRemoteCandidates.clear();
+		}
+
 		this.pc.createAnswer(new SdpObserver() {
 			private SessionDescription sd;
 
 			@Override
 			public void onCreateSuccess(SessionDescription sd) {
-				Log.d(LOG_TAG, "Created answer");
+				AppLog.d(LOG_TAG, "Created answer");
 				this.sd = sd;
 				WebRTC.this.pc.setLocalDescription(this, sd);
 			}
 
 			@Override
 			public void onCreateFailure(String s) {
-				Log.e(LOG_TAG, "Could not create answer: " + s);
+				AppLog.e(LOG_TAG, "Could not create answer: " + s);
 			}
 
 			@Override
 			public void onSetSuccess() {
-				Log.d(LOG_TAG, "Local description set");
+				AppLog.d(LOG_TAG, "Local description set");
 				try {
 					WebRTC.this.task.sendAnswer(this.sd);
-					Log.d(LOG_TAG, "Sent answer");
+					WebRTC.this.timings.mark(StateType.RTC_SIGNALING, "ANSWER_SENT");
+					AppLog.d(LOG_TAG, "Sent answer");
 				} catch (final ConnectionException e) {
-					Log.e(LOG_TAG, "Could not send answer: " + e.getMessage());
+					AppLog.e(LOG_TAG, "Could not send answer: " + e.getMessage());
 				}
 			}
 
 			@Override
 			public void onSetFailure(String s) {
-				Log.e(LOG_TAG, "Could not set local description: " + s);
+				AppLog.e(LOG_TAG, "Could not set local description: " + s);
 			}
 		}, this.constraints);
 	}
 
 	/**
 	 * One or more ICE candidates were received. Store them.
+	 *
+	 * Candidates that arrive before the remote description has been set would
+	 * be rejected, so they are queued (in order) until it has been set.
 	 */
 	private void onIceCandidatesReceived(List<IceCandidate> candidates) {
+		this.remoteCandidates.add(candidates.size());
+		synchronized (this.remoteCandidatesLock) {
+			if (!this.remoteDescriptionSet) {
+				this.pendingRemoteCandidates.addAll(candidates);
+				AppLog.d(LOG_TAG, "Queued {} ICE candidate(s) until remote description is set", candidates.size());
+				return;
+			}
+		}
 		for (final IceCandidate candidate : candidates) {
 			this.pc.addIceCandidate(candidate);
 		}
-		Log.d(LOG_TAG, "Added " + candidates.size() + " ICE candidate(s)");
+		AppLog.d(LOG_TAG, "Added {} ICE candidate(s)", candidates.size());
+	}
+
+	/**
+	 * Send a batch of local ICE candidates to the peer.
+	 */
+	private void sendCandidates(IceCandidate[] candidates) {
+		try {
+			this.task.sendCandidates(candidates);
+			AppLog.d(LOG_TAG, "Sent {} ICE candidate(s)", candidates.length);
+		} catch (final ConnectionException e) {
+			AppLog.e(LOG_TAG, "Could not send ICE candidates: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Record the stats and show them next to the ICE connection state while connected.
+	 */
+	private void onStats(ConnectionStats stats) {
+		if (stats.hasPair()) {
+			if (stats.roundTripTimeMs >= 0) {
+				this.pairRoundTripTime.set((long) (stats.roundTripTimeMs * 1000));
+			}
+			this.pairBytesSent.set(stats.bytesSent);
+			this.pairBytesReceived.set(stats.bytesReceived);
+			this.pairRelayed.set(stats.isRelayed() ? 1 : 0);
+		}
+		final PeerConnection.IceConnectionState state = this.iceState;
+		if (state == PeerConnection.IceConnectionState.CONNECTED
+				|| state == PeerConnection.IceConnectionState.COMPLETED) {
+			this.activity.onConnectionStats(state.name(), stats);
+		}
 	}
 
 	private class PeerConnectionObserver implements org.webrtc.PeerConnection.Observer {
 		@Override
 		public void onSignalingChange(org.webrtc.PeerConnection.SignalingState signalingState) {
-			Log.d(LOG_TAG, "Signaling state change: " + signalingState.name());
+			AppLog.d(LOG_TAG, "Signaling state change: {}", signalingState);
 			WebRTC.this.activity.setState(StateType.RTC_SIGNALING, signalingState.name());
 		}
 
 		@Override
 		public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
-			Log.d(LOG_TAG, "ICE connection change to " + iceConnectionState.name());
+			AppLog.d(LOG_TAG, "ICE connection change to {}", iceConnectionState);
+			WebRTC.this.iceState = iceConnectionState;
+			if (iceConnectionState == PeerConnection.IceConnectionState.CONNECTED && WebRTC.this.connectTimeMs < 0) {
+				final long elapsed = System.nanoTime() - WebRTC.this.timings.getStartedAt();
+				WebRTC.this.connectTimeMs = elapsed / 1000000;
+				if (WebRTC.this.offerReceivedAt >= 0) {
+					WebRTC.this.iceConnectTimeMs = (elapsed - WebRTC.this.offerReceivedAt) / 1000000;
+				}
+				AppLog.i(LOG_TAG, "Connected " + WebRTC.this.connectTimeMs + " ms after start, "
+						+ WebRTC.this.iceConnectTimeMs + " ms after offer");
+				WebRTC.this.activity.setState(StateType.RTC_ICE_CONNECTION, iceConnectionState.name(),
+						WebRTC.this.connectTimeMs + " ms");
+				WebRTC.this.statsCollector.start(Config.STATS_INTERVAL_MS);
+				return;
+			}
 			WebRTC.this.activity.setState(StateType.RTC_ICE_CONNECTION, iceConnectionState.name());
+			if (iceConnectionState == PeerConnection.IceConnectionState.FAILED) {
+				WebRTC.this.iceFailed = true;
+				WebRTC.this.activity.onPeerConnectionFailed(WebRTC.this);
+			}
 		}
 
 		@Override
 		public void onIceConnectionReceivingChange(boolean b) {
-			Log.d(LOG_TAG, "ICE connection receiving change: " + b);
+			AppLog.d(LOG_TAG, "ICE connection receiving change: {}", b);
 		}
 
 		@Override
 		public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
-			Log.d(LOG_TAG, "ICE gathering change: " + iceGatheringState.name());
+			AppLog.d(LOG_TAG, "ICE gathering change: {}", iceGatheringState);
 			WebRTC.this.activity.setState(StateType.RTC_ICE_GATHERING, iceGatheringState.name());
+			if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
+				WebRTC.this.candidateBatcher.flush();
+			}
 		}
 
 		/**
-		 * A new ICE candidate was generated. Send it to the peer.
+		 * A new ICE candidate was generated. Queue it to be sent to the peer.
 		 */
 		@Override
 		public void onIceCandidate(IceCandidate iceCandidate) {
-			Log.d(LOG_TAG, "New ICE candidate");
-			try {
-				WebRTC.this.task.sendCandidates(iceCandidate);
-			} catch (final ConnectionException e) {
-				Log.e(LOG_TAG, "Could not send ICE candidate: " + e.getMessage());
-			}
+			AppLog.d(LOG_TAG, "New ICE candidate");
+			WebRTC.this.localCandidates.increment();
+			WebRTC.this.candidateBatcher.add(iceCandidate);
 		}
 
 		@Override
 		public void onIceCandidatesRemoved(IceCandidate[] iceCandidates) {
-			Log.d(LOG_TAG, "ICE candidate removed");
+			AppLog.d(LOG_TAG, "ICE candidate removed");
 		}
 
 		@Override
 		public void onAddStream(MediaStream mediaStream) {
-			Log.d(LOG_TAG, "Stream added");
+			AppLog.d(LOG_TAG, "Stream added");
 		}
 
 		@Override
 		public void onRemoveStream(MediaStream mediaStream) {
-			Log.d(LOG_TAG, "Stream removed");
+			AppLog.d(LOG_TAG, "Stream removed");
 		}
 
 		@Override
 		public void onDataChannel(DataChannel dc) {
-			Log.d(LOG_TAG, "New data channel: " + dc.label());
-
-			if (!DC_LABEL.equals(dc.label())) {
+			AppLog.d(LOG_TAG, "New data channel: {}", dc.label());
+			WebRTC.this.timings.mark(StateType.DATA_CHANNEL, "CREATED");
+
+			final ChannelScheduler.Lane lane;
+			if (Config.DC_LABEL_INTERACTIVE.equals(dc.label())) {
+				lane = ChannelScheduler.Lane.INTERACTIVE;
+			} else if (Config.DC_LABEL_BULK.equals(dc.label())) {
+				lane = ChannelScheduler.Lane.BULK;
+			} else {
 				return;
 			}
 
-			// If the newly created data channel is the one we want, wrap it.
+			// If the newly created data channel is one we want, wrap it.
 			final SecureDataChannel secureDataChannel = WebRTC.this.task.wrapDataChannel(dc);
 
 			// Notify main class about this new data channel.
-			WebRTC.this.activity.onNewSdc(secureDataChannel);
+			WebRTC.this.activity.onNewSdc(WebRTC.this, secureDataChannel, lane);
 		}
 
 		@Override
 		public void onRenegotiationNeeded() {
-			Log.d(LOG_TAG, "Renegotiation needed");
+			AppLog.d(LOG_TAG, "Renegotiation needed");
 		}
 
 		@Override
 		public void onAddTrack(RtpReceiver rtpReceiver, MediaStream[] mediaStreams) {
-			Log.d(LOG_TAG, "Add track");
+			AppLog.d(LOG_TAG, "Add track");
 		}
 	}
 
@@ -245,17 +378,52 @@ class WebRTC {
 	 * Initiate handover.
 	 */
 	void handover() {
+		this.timings.mark(StateType.SALTY_HANDOVER, "STARTED");
 		this.task.handover(this.pc);
 	}
 
+	/**
+	 * Return the time from session start until ICE was connected in milliseconds,
+	 * or -1 if not yet connected.
+	 */
+	long getConnectTimeMs() {
+		return this.connectTimeMs;
+	}
+
+	/**
+	 * Return the time from receiving the offer until ICE was connected in
+	 * milliseconds, or -1 if not yet connected.
+	 */
+	long getIceConnectTimeMs() {
+		return this.iceConnectTimeMs;
+	}
+
+	/**
+	 * Return the latest connection stats, or null if there are none yet.
+	 */
+	@Nullable
+	ConnectionStats getStats() {
+		return this.statsCollector.getLatest();
+	}
+
 	/**
 	 * Stop and dispose this connection.
 	 *
-	 * It cannot be reused afterwards.
+	 * It cannot be reused afterwards. The shared peer connection factory is
+	 * released but stays alive for the next session. If ICE connected or
+	 * failed, the outcome is recorded in the ICE policy.
 	 */
 	void dispose() {
+		this.candidateBatcher.close();
+		this.statsCollector.close();
+		final boolean connected = this.connectTimeMs >= 0;
+		if (connected || this.iceFailed) {
+			this.icePolicy.record(this.iceMode, this.statsCollector.getLatest(),
+					this.statsCollector.getMedianRoundTripTimeMs(), connected);
+			AppLog.d(LOG_TAG, "Recorded " + this.iceMode + " session in ICE policy: " + this.icePolicy);
+		}
 		this.pc.dispose();
-		this.factory.dispose();
+		PeerConnectionFactoryHolder.release();
 	}
 
 }
@@ -0,0 +1,101 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppLogTest {
+
+	private static final String TAG = "Test";
+
+	private final List<String> lines = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		AppLog.setSink(new AppLog.Sink() {
+			@Override
+			public void write(int level, String tag, String message, Throwable throwable) {
+				synchronized (AppLogTest.this.lines) {
+					AppLogTest.this.lines.add(level + "/" + tag + ": " + message
+							+ (throwable == null ? "" : " " + throwable.getMessage()));
+				}
+			}
+
+			@Override
+			public void flush() { }
+		});
+		AppLog.setLevel(AppLog.DEBUG);
+	}
+
+	@After
+	public void tearDown() {
+		AppLog.setSink(new AppLog.StandardErrorSink());
+		AppLog.setLevel(AppLog.DEBUG);
+	}
+
+	private List<String> flush() throws InterruptedException {
+		assertTrue(AppLog.flush(5000));
+		synchronized (this.lines) {
+			return new ArrayList<>(this.lines);
+		}
+	}
+
+	@Test
+	public void placeholders() throws InterruptedException {
+		AppLog.d(TAG, "plain {}");
+		AppLog.d(TAG, "long {} bytes", 42);
+		AppLog.d(TAG, "{}/{}", 1, 2);
+		AppLog.d(TAG, "text: {}", "hello");
+		AppLog.d(TAG, "{} and {} and {}", "a", null);
+		AppLog.e(TAG, "failed", new IllegalStateException("cause"));
+		final List<String> lines = this.flush();
+		assertEquals(6, lines.size());
+		assertEquals("3/Test: plain {}", lines.get(0));
+		assertEquals("3/Test: long 42 bytes", lines.get(1));
+		assertEquals("3/Test: 1/2", lines.get(2));
+		assertEquals("3/Test: text: hello", lines.get(3));
+		assertEquals("3/Test: a and null and {}", lines.get(4));
+		assertEquals("6/Test: failed cause", lines.get(5));
+	}
+
+	@Test
+	public void runtimeLevel() throws InterruptedException {
+		AppLog.setLevel(AppLog.INFO);
+		assertFalse(AppLog.isLoggable(AppLog.DEBUG));
+		assertTrue(AppLog.isLoggable(AppLog.WARN));
+		AppLog.d(TAG, "debug");
+		AppLog.d(TAG, "debug {}", 1);
+		AppLog.i(TAG, "info");
+		final List<String> lines = this.flush();
+		assertEquals(1, lines.size());
+		assertEquals("4/Test: info", lines.get(0));
+	}
+
+	@Test
+	public void samplerLetsOneEventPerInterval() {
+		final AppLog.Sampler sampler = new AppLog.Sampler(60000);
+		assertEquals(0, sampler.sample());
+		assertEquals(-1, sampler.sample());
+		assertEquals(-1, sampler.sample());
+	}
+
+	@Test
+	public void sampledEventReportsSuppressed() throws InterruptedException {
+		final AppLog.Sampler sampler = new AppLog.Sampler(50);
+		AppLog.d(sampler, TAG, "changed: {}", 1);
+		AppLog.d(sampler, TAG, "changed: {}", 2);
+		AppLog.d(sampler, TAG, "changed: {}", 3);
+		Thread.sleep(60);
+		AppLog.d(sampler, TAG, "changed: {}", 4);
+		final List<String> lines = this.flush();
+		assertEquals(2, lines.size());
+		assertEquals("3/Test: changed: 1", lines.get(0));
+		assertEquals("3/Test: changed: 4 (2 similar suppressed)", lines.get(1));
+	}
+
+}
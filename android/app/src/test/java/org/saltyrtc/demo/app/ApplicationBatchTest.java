@@ -0,0 +1,44 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ApplicationBatchTest {
+
+	private static ByteBuffer utf8(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void roundTrip() {
+		final ByteBuffer envelope = ApplicationBatch.encode(Arrays.asList(utf8("hello"), utf8(""), utf8("wörld")));
+		assertTrue(ApplicationBatch.isBatch(envelope));
+
+		final List<ByteBuffer> messages = ApplicationBatch.split(envelope);
+		assertEquals(3, messages.size());
+		assertEquals("hello", MessageCodec.decode(messages.get(0)));
+		assertEquals("", MessageCodec.decode(messages.get(1)));
+		assertEquals("wörld", MessageCodec.decode(messages.get(2)));
+		assertEquals(0, envelope.position());
+	}
+
+	@Test
+	public void chatMessageIsNotABatch() {
+		assertFalse(ApplicationBatch.isBatch(utf8("Bonjour")));
+		assertFalse(ApplicationBatch.isBatch(utf8("")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTruncatedEntry() {
+		final ByteBuffer envelope = ApplicationBatch.encode(Arrays.asList(utf8("hello"), utf8("world")));
+		envelope.limit(envelope.limit() - 1);
+		ApplicationBatch.split(envelope);
+	}
+
+}
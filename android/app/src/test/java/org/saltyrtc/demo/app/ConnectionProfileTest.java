@@ -0,0 +1,84 @@
+package org.saltyrtc.demo.app;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionProfileTest {
+
+	private static final String KEY = "424280166304526b4a2874a2270d091071fcc5c98959f7d4718715626df26204";
+
+	@Test
+	public void builtInProfileMatchesConfig() {
+		final ConnectionProfile profile = ConnectionProfile.fromConfig();
+		assertEquals(ConnectionProfile.DEFAULT_NAME, profile.getName());
+		assertEquals(Config.HOST, profile.getHost());
+		assertEquals(Config.PORT, profile.getPort());
+		assertEquals(Config.PING_INTERVAL_S, profile.getPingIntervalS());
+		assertFalse(profile.isAutoIce());
+		assertEquals("stun:" + Config.STUN_SERVER, profile.getIceServerSet(null).servers.get(0).url);
+	}
+
+	@Test
+	public void missingFieldsAreInherited() throws Exception {
+		final ConnectionProfile base = ConnectionProfile.fromConfig();
+		final ConnectionProfile profile = ConnectionProfile.fromJson(
+				new JSONObject("{\"name\": \"lan\", \"host\": \"10.0.2.2\", \"port\": 8765, \"ping_interval_s\": 0}"), base);
+		assertEquals("lan", profile.getName());
+		assertEquals("10.0.2.2", profile.getHost());
+		assertEquals(8765, profile.getPort());
+		assertEquals(0, profile.getPingIntervalS());
+		assertEquals(base.getConnectTimeoutMs(), profile.getConnectTimeoutMs());
+		assertEquals(base.getPrivateKey(), profile.getPrivateKey());
+		assertSame(base.getIceServerSet(null), profile.getIceServerSet(null));
+	}
+
+	@Test
+	public void autoIceSelectsStoredSet() throws Exception {
+		final ConnectionProfile profile = ConnectionProfile.fromJson(new JSONObject("{\"name\": \"race\", \"ice\": \"auto\","
+				+ " \"ice_server_sets\": ["
+				+ "  {\"name\": \"a\", \"servers\": [{\"url\": \"stun:a.example.org\"}]},"
+				+ "  {\"name\": \"b\", \"servers\": [{\"url\": \"turn:b.example.org\", \"username\": \"u\", \"password\": \"p\"}]}"
+				+ "]}"), ConnectionProfile.fromConfig());
+		assertTrue(profile.isAutoIce());
+		assertEquals("b", profile.getIceServerSet("b").name);
+		assertEquals("u", profile.getIceServerSet("b").servers.get(0).username);
+		assertEquals("a", profile.getIceServerSet(null).name);
+		assertEquals("a", profile.getIceServerSet("gone").name);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidPort() throws Exception {
+		ConnectionProfile.fromJson(new JSONObject("{\"name\": \"x\", \"port\": 70000}"), ConnectionProfile.fromConfig());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTurnWithoutCredentials() throws Exception {
+		ConnectionProfile.fromJson(new JSONObject("{\"name\": \"x\", \"ice_server_sets\": ["
+				+ "{\"name\": \"t\", \"servers\": [{\"url\": \"turn:t.example.org\"}]}]}"), ConnectionProfile.fromConfig());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsShortKey() throws Exception {
+		ConnectionProfile.fromJson(new JSONObject("{\"name\": \"x\", \"server_key\": \"abcd\"}"), ConnectionProfile.fromConfig());
+	}
+
+	@Test
+	public void parseProfiles() throws Exception {
+		final ConnectionProfiles profiles = ConnectionProfiles.parse("{\"default\": \"lan\", \"profiles\": ["
+				+ "{\"name\": \"lan\", \"host\": \"192.168.1.2\", \"trusted_key\": \"" + KEY + "\"},"
+				+ "{\"name\": \"slow\", \"connect_timeout_ms\": 60000}"
+				+ "]}", ConnectionProfile.fromConfig());
+		assertEquals("lan", profiles.getDefault().getName());
+		assertEquals(60000, profiles.get("slow").getConnectTimeoutMs());
+		assertNotNull(profiles.get(ConnectionProfile.DEFAULT_NAME));
+		assertNull(profiles.get("missing"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownDefault() throws Exception {
+		ConnectionProfiles.parse("{\"default\": \"missing\", \"profiles\": []}", ConnectionProfile.fromConfig());
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStatsTest {
+
+	private static void put(Map<String, RTCStats> report, String type, String id, Object... members) {
+		final Map<String, Object> map = new HashMap<>();
+		for (int i = 0; i < members.length; i += 2) {
+			map.put((String) members[i], members[i + 1]);
+		}
+		report.put(id, new RTCStats(1, type, id, map));
+	}
+
+	private static void putCandidates(Map<String, RTCStats> report) {
+		put(report, "local-candidate", "L1", "candidateType", "host", "protocol", "udp");
+		put(report, "remote-candidate", "R1", "candidateType", "srflx");
+		put(report, "local-candidate", "L2", "candidateType", "relay", "protocol", "udp");
+		put(report, "remote-candidate", "R2", "candidateType", "host");
+	}
+
+	@Test
+	public void usesPairSelectedByTransport() {
+		final Map<String, RTCStats> report = new HashMap<>();
+		putCandidates(report);
+		put(report, "candidate-pair", "P1", "localCandidateId", "L1", "remoteCandidateId", "R1",
+				"currentRoundTripTime", 0.012, "bytesSent", new BigInteger("1000"), "bytesReceived", new BigInteger("2000"));
+		put(report, "candidate-pair", "P2", "localCandidateId", "L2", "remoteCandidateId", "R2",
+				"nominated", true, "state", "succeeded");
+		put(report, "transport", "T", "selectedCandidatePairId", "P1");
+		put(report, "data-channel", "D1", "messagesSent", 3L, "messagesReceived", 4L);
+		put(report, "data-channel", "D2", "messagesSent", 5L, "messagesReceived", 6L);
+
+		final ConnectionStats stats = ConnectionStats.fromReport(new RTCStatsReport(1, report), 42);
+		assertTrue(stats.hasPair());
+		assertEquals("host", stats.localCandidateType);
+		assertEquals("srflx", stats.remoteCandidateType);
+		assertEquals("udp", stats.protocol);
+		assertEquals(12, stats.roundTripTimeMs, 1e-9);
+		assertEquals(1000, stats.bytesSent);
+		assertEquals(2000, stats.bytesReceived);
+		assertEquals(8, stats.messagesSent);
+		assertEquals(10, stats.messagesReceived);
+		assertEquals(42, stats.bufferedAmount);
+		assertFalse(stats.isRelayed());
+		assertFalse(stats.isHostPair());
+	}
+
+	@Test
+	public void fallsBackToNominatedPair() {
+		final Map<String, RTCStats> report = new HashMap<>();
+		putCandidates(report);
+		put(report, "candidate-pair", "P2", "localCandidateId", "L2", "remoteCandidateId", "R2",
+				"nominated", true, "state", "succeeded");
+
+		final ConnectionStats stats = ConnectionStats.fromReport(new RTCStatsReport(1, report), 0);
+		assertTrue(stats.isRelayed());
+		assertEquals(-1, stats.roundTripTimeMs, 0);
+	}
+
+	@Test
+	public void noPairBeforeConnected() {
+		final Map<String, RTCStats> report = new HashMap<>();
+		putCandidates(report);
+		put(report, "candidate-pair", "P1", "localCandidateId", "L1", "remoteCandidateId", "R1",
+				"nominated", false, "state", "in-progress");
+
+		final ConnectionStats stats = ConnectionStats.fromReport(new RTCStatsReport(1, report), 0);
+		assertFalse(stats.hasPair());
+		assertEquals("no pair", stats.summary());
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IceCandidateBatcherTest {
+
+	private static IceCandidate candidate(int index) {
+		return new IceCandidate("0", 0, "candidate:" + index + " 1 udp 2122260223 192.168.1.10 5000" + index + " typ host");
+	}
+
+	@Test
+	public void sendsFullBatches() {
+		final List<IceCandidate[]> sent = new ArrayList<>();
+		final IceCandidateBatcher batcher = new IceCandidateBatcher(sent::add, 60_000, 2);
+		batcher.add(candidate(1));
+		assertTrue(sent.isEmpty());
+		batcher.add(candidate(2));
+		assertEquals(1, sent.size());
+		assertEquals(2, sent.get(0).length);
+		batcher.close();
+	}
+
+	@Test
+	public void flushSendsPendingCandidates() {
+		final List<IceCandidate[]> sent = new ArrayList<>();
+		final IceCandidateBatcher batcher = new IceCandidateBatcher(sent::add, 60_000, 10);
+		batcher.add(candidate(1));
+		batcher.flush();
+		assertEquals(1, sent.size());
+		batcher.flush();
+		assertEquals(1, sent.size());
+		batcher.close();
+	}
+
+	@Test
+	public void ignoresCandidatesAfterClose() {
+		final List<IceCandidate[]> sent = new ArrayList<>();
+		final IceCandidateBatcher batcher = new IceCandidateBatcher(sent::add, 60_000, 10);
+		batcher.add(candidate(1));
+		batcher.close();
+		batcher.add(candidate(2));
+		batcher.flush();
+		assertTrue(sent.isEmpty());
+	}
+
+}
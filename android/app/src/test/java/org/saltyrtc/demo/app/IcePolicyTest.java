@@ -0,0 +1,77 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IcePolicyTest {
+
+	private static ConnectionStats pair(String local, String remote, double rttMs) {
+		return new ConnectionStats(0, local, remote, "udp", rttMs, 0, 0, 0, 0, 0);
+	}
+
+	@Test
+	public void gathersAllCandidatesWithoutHistory() {
+		final IcePolicy policy = new IcePolicy();
+		assertEquals(IcePolicy.Mode.ALL, policy.next(true));
+		assertEquals(IcePolicy.Mode.ALL, policy.next(false));
+	}
+
+	@Test
+	public void relaysAfterRepeatedDirectFailures() {
+		final IcePolicy policy = new IcePolicy();
+		policy.record(IcePolicy.Mode.ALL, null, -1, false);
+		assertEquals(IcePolicy.Mode.ALL, policy.next(true));
+		policy.record(IcePolicy.Mode.ALL, null, -1, false);
+		assertEquals(IcePolicy.Mode.RELAY, policy.next(true));
+		assertEquals(IcePolicy.Mode.ALL, policy.next(false));
+	}
+
+	@Test
+	public void relaysIfRelayIsClearlyFaster() {
+		final IcePolicy policy = new IcePolicy();
+		policy.record(IcePolicy.Mode.ALL, pair("srflx", "srflx", 200), 200, true);
+		policy.record(IcePolicy.Mode.ALL, pair("relay", "srflx", 50), 50, true);
+		assertEquals(IcePolicy.Mode.RELAY, policy.next(true));
+	}
+
+	@Test
+	public void prefersHostAfterFastHostSessions() {
+		final IcePolicy policy = new IcePolicy();
+		for (int i = 0; i < IcePolicy.HOST_SESSIONS_FOR_HOST; i++) {
+			assertEquals(IcePolicy.Mode.ALL, policy.next(true));
+			policy.record(IcePolicy.Mode.ALL, pair("host", "host", 3), 3, true);
+		}
+		assertEquals(IcePolicy.Mode.HOST, policy.next(true));
+
+		// A slow host pair breaks the streak
+		policy.record(IcePolicy.Mode.HOST, pair("host", "host", 80), 80, true);
+		assertEquals(IcePolicy.Mode.ALL, policy.next(true));
+	}
+
+	@Test
+	public void fallsBackAfterRestrictedFailure() {
+		final IcePolicy policy = new IcePolicy();
+		for (int i = 0; i < IcePolicy.HOST_SESSIONS_FOR_HOST; i++) {
+			policy.record(IcePolicy.Mode.ALL, pair("host", "host", 3), 3, true);
+		}
+		policy.record(IcePolicy.Mode.HOST, null, -1, false);
+		assertEquals(IcePolicy.Mode.ALL, policy.next(true));
+	}
+
+	@Test
+	public void exploresPeriodically() {
+		final IcePolicy policy = new IcePolicy();
+		policy.record(IcePolicy.Mode.ALL, null, -1, false);
+		policy.record(IcePolicy.Mode.ALL, null, -1, false);
+		int all = 0;
+		for (int i = 0; i < 2 * IcePolicy.EXPLORE_INTERVAL; i++) {
+			if (policy.next(true) == IcePolicy.Mode.ALL) {
+				all++;
+			}
+			policy.record(IcePolicy.Mode.RELAY, pair("relay", "host", 40), 40, true);
+		}
+		assertEquals(2, all);
+	}
+
+}
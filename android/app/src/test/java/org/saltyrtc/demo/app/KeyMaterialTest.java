@@ -0,0 +1,39 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+import org.saltyrtc.client.exceptions.InvalidKeyException;
+
+import static org.junit.Assert.*;
+
+public class KeyMaterialTest {
+
+	private static final String PRIVATE_KEY = "c41df741435bb144edcd429d1d8e86c5e0e24ccceff87ec5e6647525c2d52077";
+	private static final String SERVER_KEY = "f77fe623b6977d470ac8c7bf7011c4ad08a1d126896795db9d2b4b7a49ae1045";
+	private static final String TRUSTED_KEY = "424280166304526b4a2874a2270d091071fcc5c98959f7d4718715626df26204";
+
+	@Test
+	public void fromHex() throws InvalidKeyException {
+		final byte[] key = KeyMaterial.fromHex(SERVER_KEY);
+		assertEquals(32, key.length);
+		assertEquals((byte) 0xf7, key[0]);
+		assertEquals((byte) 0x45, key[31]);
+	}
+
+	@Test(expected = InvalidKeyException.class)
+	public void fromHexRejectsWrongLength() throws InvalidKeyException {
+		KeyMaterial.fromHex("abcd");
+	}
+
+	@Test(expected = InvalidKeyException.class)
+	public void fromHexRejectsInvalidCharacters() throws InvalidKeyException {
+		KeyMaterial.fromHex(SERVER_KEY.replace('f', 'x'));
+	}
+
+	@Test
+	public void keysAreCopied() throws InvalidKeyException {
+		final KeyMaterial material = KeyMaterial.derive(PRIVATE_KEY, SERVER_KEY, TRUSTED_KEY);
+		material.getServerKey()[0] = 0;
+		assertEquals((byte) 0xf7, material.getServerKey()[0]);
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void empty() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		assertEquals(10, histogram.getCount());
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(9, histogram.getPercentile(90));
+		assertEquals(10, histogram.getPercentile(100));
+		assertEquals(5.5, histogram.getMean(), 0.001);
+	}
+
+	@Test
+	public void largeValuesWithinRelativeError() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		final long p50 = histogram.getPercentile(50);
+		final long p99 = histogram.getPercentile(99);
+		assertTrue("p50 = " + p50, p50 >= 50000 && p50 <= 50000 + 50000 / 16);
+		assertTrue("p99 = " + p99, p99 >= 99000 && p99 <= 100000);
+		assertEquals(100000, histogram.getMax());
+	}
+
+	@Test
+	public void bucketBoundsAreContiguous() {
+		long previous = -1;
+		for (int index = 0; index < 500; index++) {
+			final long upper = LatencyHistogram.upperBound(index);
+			assertEquals(index, LatencyHistogram.bucketIndex(previous + 1));
+			assertEquals(index, LatencyHistogram.bucketIndex(upper));
+			previous = upper;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MessageCodecTest {
+
+	private static final String TEXT = "Hello SaltyRTC, gr\u00fcezi! \uD83D\uDE00";
+
+	@Test
+	public void roundtrip() {
+		final BufferPool pool = new BufferPool(1024, 2);
+		final ByteBuffer encoded = MessageCodec.encode(TEXT, pool);
+		assertTrue(encoded.isDirect());
+		assertEquals(ByteBuffer.wrap(TEXT.getBytes(StandardCharsets.UTF_8)), encoded);
+		assertEquals(TEXT, MessageCodec.decode(encoded));
+		assertEquals(0, encoded.position());
+	}
+
+	@Test
+	public void decodeHeapAndDirect() {
+		final byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		assertEquals(TEXT, MessageCodec.decode(direct));
+		assertEquals(TEXT, MessageCodec.decode(ByteBuffer.wrap(bytes)));
+	}
+
+	@Test
+	public void decodeLargeMessagePlaceholder() {
+		final ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_DECODED_SIZE);
+		assertEquals("[Large message, " + MessageCodec.MAX_DECODED_SIZE + " bytes]", MessageCodec.decode(buffer));
+	}
+
+	@Test
+	public void decodeMessageAbove255Bytes() {
+		final StringBuilder builder = new StringBuilder();
+		while (builder.length() < 1000) {
+			builder.append(TEXT);
+		}
+		final String text = builder.toString();
+		assertEquals(text, MessageCodec.decode(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void roundtripAboveRetainedSize() {
+		final StringBuilder builder = new StringBuilder();
+		while (builder.length() <= MessageCodec.MAX_RETAINED_SIZE) {
+			builder.append(TEXT);
+		}
+		final String text = builder.toString();
+		final BufferPool pool = new BufferPool(1024, 2);
+		assertEquals(text, MessageCodec.decode(MessageCodec.encode(text, pool)));
+		assertEquals(TEXT, MessageCodec.decode(MessageCodec.encode(TEXT, pool)));
+	}
+
+	@Test
+	public void poolReusesBuffers() {
+		final BufferPool pool = new BufferPool(1024, 2);
+		final ByteBuffer first = MessageCodec.encode(TEXT, pool);
+		pool.release(first);
+		assertEquals(1, pool.available());
+		final ByteBuffer second = MessageCodec.encode(TEXT, pool);
+		assertSame(first, second);
+		assertEquals(0, pool.available());
+	}
+
+	@Test
+	public void steadyStateEncodeDoesNotAllocate() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		final BufferPool pool = new BufferPool(1024, 4);
+		final long threadId = Thread.currentThread().getId();
+		int checksum = 0;
+
+		// Warm up the pool, the thread locals and the JIT
+		for (int i = 0; i < 20_000; i++) {
+			final ByteBuffer buffer = MessageCodec.encode(TEXT, pool);
+			checksum += buffer.remaining();
+			pool.release(buffer);
+		}
+
+		final long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 100_000; i++) {
+			final ByteBuffer buffer = MessageCodec.encode(TEXT, pool);
+			checksum += buffer.remaining();
+			pool.release(buffer);
+		}
+		final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(checksum > 0);
+		// Allow for a little noise from the measurement itself, but nothing per message
+		assertTrue("Allocated " + allocated + " bytes in steady state", allocated < 1024);
+	}
+
+}
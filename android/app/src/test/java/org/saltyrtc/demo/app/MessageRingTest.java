@@ -0,0 +1,50 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageRingTest {
+
+	@Test
+	public void addBelowCapacity() {
+		final MessageRing<String> ring = new MessageRing<>(3);
+		ring.add("a");
+		ring.add("b");
+		assertEquals(2, ring.size());
+		assertEquals("a", ring.get(0));
+		assertEquals("b", ring.get(1));
+	}
+
+	@Test
+	public void dropsOldestWhenFull() {
+		final MessageRing<Integer> ring = new MessageRing<>(3);
+		for (int i = 0; i < 10; i++) {
+			ring.add(i);
+		}
+		assertEquals(3, ring.size());
+		assertEquals(7, (int) ring.get(0));
+		assertEquals(8, (int) ring.get(1));
+		assertEquals(9, (int) ring.get(2));
+	}
+
+	@Test
+	public void clear() {
+		final MessageRing<String> ring = new MessageRing<>(2);
+		ring.add("a");
+		ring.add("b");
+		ring.add("c");
+		ring.clear();
+		assertEquals(0, ring.size());
+		ring.add("d");
+		assertEquals("d", ring.get(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void getOutOfBounds() {
+		final MessageRing<String> ring = new MessageRing<>(2);
+		ring.add("a");
+		ring.get(1);
+	}
+
+}
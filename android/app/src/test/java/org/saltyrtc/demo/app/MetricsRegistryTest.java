@@ -0,0 +1,91 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+	@Test
+	public void sameNameAndLabelsSameMetric() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		final MetricsRegistry.Counter counter = registry.counter("messages_total", "lane", "bulk");
+		counter.increment();
+		counter.add(2);
+		assertSame(counter, registry.counter("messages_total", "lane", "bulk"));
+		assertNotSame(counter, registry.counter("messages_total", "lane", "interactive"));
+		assertEquals(3, registry.counter("messages_total", "lane", "bulk").get());
+	}
+
+	@Test
+	public void rejectsOtherKindWithSameName() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("buffered");
+		try {
+			registry.gauge("buffered");
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void rejectsInvalidNamesAndLabels() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		final String[][] invalid = {
+				{"1st"},
+				{"with space"},
+				{""},
+				{"ok", "lane"},
+				{"ok", "la-ne", "bulk"},
+		};
+		for (final String[] args : invalid) {
+			final String[] labels = new String[args.length - 1];
+			System.arraycopy(args, 1, labels, 0, labels.length);
+			try {
+				registry.counter(args[0], labels);
+				fail("Expected IllegalArgumentException for " + String.join(" ", args));
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void snapshotFormat() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("bytes_total", "lane", "bulk").add(100);
+		registry.counter("bytes_total", "lane", "interactive").add(5);
+		registry.counter("bytes_total_dropped").increment();
+		registry.gauge("buffered", "label", "a \"b\"\n").set(-1);
+		final LatencyHistogram histogram = registry.histogram("latency_us");
+		histogram.record(1);
+		histogram.record(3);
+		assertEquals(
+				"# TYPE buffered gauge\n"
+				+ "buffered{label=\"a \\\"b\\\"\\n\"} -1\n"
+				+ "# TYPE bytes_total counter\n"
+				+ "bytes_total{lane=\"bulk\"} 100\n"
+				+ "bytes_total{lane=\"interactive\"} 5\n"
+				+ "# TYPE bytes_total_dropped counter\n"
+				+ "bytes_total_dropped 1\n"
+				+ "# TYPE latency_us summary\n"
+				+ "latency_us{quantile=\"0.5\"} 1\n"
+				+ "latency_us{quantile=\"0.9\"} 3\n"
+				+ "latency_us{quantile=\"0.99\"} 3\n"
+				+ "latency_us{quantile=\"1\"} 3\n"
+				+ "latency_us_sum 4\n"
+				+ "latency_us_count 2\n",
+				registry.toString());
+	}
+
+	@Test
+	public void summaryKeepsLabels() {
+		final StringBuilder out = new StringBuilder();
+		MetricsRegistry.writeSummary(out, "rtt_us", MetricsRegistry.formatLabels("lane", "bulk"),
+				new LatencyHistogram());
+		assertTrue(out.toString().startsWith("rtt_us{lane=\"bulk\",quantile=\"0.5\"} 0\n"));
+		assertTrue(out.toString().endsWith("rtt_us_count{lane=\"bulk\"} 0\n"));
+	}
+
+}
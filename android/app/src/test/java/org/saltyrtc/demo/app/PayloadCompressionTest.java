@@ -0,0 +1,89 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressionTest {
+
+	private static final String JSON = "{\"type\":\"chat\",\"sender\":\"initiator\",\"text\":\"Hello SaltyRTC\"}";
+
+	private static ByteBuffer direct(byte[] bytes) {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	private static String repeat(String text, int count) {
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void hello() {
+		final ByteBuffer hello = Capabilities.hello(Capabilities.DEFLATE | Capabilities.RECORDS);
+		assertTrue(Capabilities.isHello(hello));
+		assertEquals(Capabilities.DEFLATE | Capabilities.RECORDS, Capabilities.parse(hello));
+		assertFalse(PayloadCompression.isCompressed(hello));
+		assertFalse(Capabilities.isHello(ByteBuffer.wrap("Hi!".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void roundtrip() {
+		final byte[] bytes = repeat(JSON, 20).getBytes(StandardCharsets.UTF_8);
+		final BufferPool pool = new BufferPool(4096, 2);
+		final ByteBuffer compressed = PayloadCompression.compress(direct(bytes), 128, pool);
+		assertTrue(PayloadCompression.isCompressed(compressed));
+		assertTrue(compressed.remaining() < bytes.length / 4);
+		assertEquals(ByteBuffer.wrap(bytes), PayloadCompression.decompress(compressed, 1024 * 1024));
+		assertEquals(0, compressed.position());
+	}
+
+	@Test
+	public void roundtripAboveRetainedSize() {
+		final byte[] bytes = repeat(JSON, MessageCodec.MAX_RETAINED_SIZE / JSON.length() + 1).getBytes(StandardCharsets.UTF_8);
+		final BufferPool pool = new BufferPool(4096, 2);
+		final ByteBuffer compressed = PayloadCompression.compress(direct(bytes), 128, pool);
+		assertTrue(PayloadCompression.isCompressed(compressed));
+		assertEquals(ByteBuffer.wrap(bytes), PayloadCompression.decompress(compressed, 1024 * 1024));
+
+		final byte[] small = repeat(JSON, 20).getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer compressedSmall = PayloadCompression.compress(direct(small), 128, pool);
+		assertEquals(ByteBuffer.wrap(small), PayloadCompression.decompress(compressedSmall, 1024 * 1024));
+	}
+
+	@Test
+	public void smallMessagesStayRaw() {
+		final ByteBuffer message = direct(JSON.getBytes(StandardCharsets.UTF_8));
+		assertSame(message, PayloadCompression.compress(message, 128, new BufferPool(4096, 2)));
+	}
+
+	@Test
+	public void incompressibleMessagesStayRaw() {
+		final byte[] bytes = new byte[1000];
+		new Random(1).nextBytes(bytes);
+		final ByteBuffer message = direct(bytes);
+		assertSame(message, PayloadCompression.compress(message, 128, new BufferPool(4096, 2)));
+		assertEquals(1000, message.remaining());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void decompressRejectsOversizedMessages() {
+		final byte[] bytes = new byte[64 * 1024];
+		final ByteBuffer compressed = PayloadCompression.compress(direct(bytes), 128, new BufferPool(4096, 2));
+		PayloadCompression.decompress(compressed, 1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void decompressRejectsGarbage() {
+		PayloadCompression.decompress(ByteBuffer.wrap(new byte[]{(byte) 0xfe, (byte) 0xff, 0x12}), 1024);
+	}
+
+}
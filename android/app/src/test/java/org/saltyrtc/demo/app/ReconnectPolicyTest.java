@@ -0,0 +1,61 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+	@Test
+	public void delaysGrowWithinJitterBounds() {
+		final ReconnectPolicy policy = new ReconnectPolicy(100, 10_000, 100, new Random(1));
+		long ceiling = 100;
+		for (int i = 0; i < 20; i++) {
+			final long delay = policy.nextDelayMs();
+			assertTrue("Delay " + delay + " below " + ceiling / 2, delay >= ceiling / 2);
+			assertTrue("Delay " + delay + " above " + ceiling, delay <= ceiling);
+			ceiling = Math.min(10_000, ceiling * 2);
+		}
+	}
+
+	@Test
+	public void jitterSpreadsDelays() {
+		final Random seeds = new Random(42);
+		final Set<Long> delays = new HashSet<>();
+		for (int i = 0; i < 20; i++) {
+			delays.add(new ReconnectPolicy(1000, 1000, 1, new Random(seeds.nextLong())).nextDelayMs());
+		}
+		assertTrue(delays.size() > 10);
+	}
+
+	@Test
+	public void givesUpAfterMaxAttempts() {
+		final ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 3);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(policy.nextDelayMs() > 0);
+		}
+		assertEquals(3, policy.getAttempt());
+		assertEquals(-1, policy.nextDelayMs());
+	}
+
+	@Test
+	public void resetStartsOver() {
+		final ReconnectPolicy policy = new ReconnectPolicy(100, 100_000, 10, new Random(3));
+		for (int i = 0; i < 5; i++) {
+			policy.nextDelayMs();
+		}
+		policy.reset();
+		assertEquals(0, policy.getAttempt());
+		assertTrue(policy.nextDelayMs() <= 100);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBounds() {
+		new ReconnectPolicy(1000, 100, 3);
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordCodecTest {
+
+	private static final String TEXT = "Hello SaltyRTC, gr\u00fcezi! \uD83D\uDE00";
+
+	@Test
+	public void varintRoundtrip() {
+		final long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1546300800000L, Long.MAX_VALUE, -1};
+		final ByteBuffer buffer = ByteBuffer.allocate(RecordCodec.MAX_VARINT_SIZE * values.length);
+		for (final long value : values) {
+			final int position = buffer.position();
+			RecordCodec.putVarint(buffer, value);
+			assertEquals(RecordCodec.varintSize(value), buffer.position() - position);
+		}
+		buffer.flip();
+		for (final long value : values) {
+			assertEquals(value, RecordCodec.getVarint(buffer));
+		}
+		assertFalse(buffer.hasRemaining());
+		assertEquals(1, RecordCodec.varintSize(127));
+		assertEquals(2, RecordCodec.varintSize(128));
+		assertEquals(RecordCodec.MAX_VARINT_SIZE, RecordCodec.varintSize(-1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedVarint() {
+		RecordCodec.getVarint(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80}));
+	}
+
+	@Test
+	public void dispatchChatAndReceipt() {
+		final BufferPool pool = new BufferPool(1024, 2);
+		final ByteBuffer text = ByteBuffer.wrap(TEXT.getBytes(StandardCharsets.UTF_8));
+		final ByteBuffer chatFrame = RecordCodec.encode(new Records.Chat().set(300, 1546300800000L, text), pool);
+		final ByteBuffer receiptFrame = RecordCodec.encode(new Records.Receipt().set(7), pool);
+		assertTrue(RecordCodec.isFrame(chatFrame));
+		assertFalse(RecordCodec.isFrame(text));
+
+		final List<String> received = new ArrayList<>();
+		final RecordDispatcher dispatcher = new RecordDispatcher();
+		dispatcher.register(new Records.Chat(), chat ->
+				received.add(chat.sequence + "@" + chat.timestampMs + ": " + chat.getText()));
+		dispatcher.register(new Records.Receipt(), receipt -> received.add("receipt " + receipt.sequence));
+
+		assertEquals(1, dispatcher.dispatch(chatFrame));
+		assertEquals(1, dispatcher.dispatch(receiptFrame));
+		assertEquals(0, chatFrame.position());
+		assertEquals("300@1546300800000: " + TEXT, received.get(0));
+		assertEquals("receipt 7", received.get(1));
+	}
+
+	@Test
+	public void skipsUnknownTypes() {
+		// Frame: unknown record type 9 with 3 bytes, then a receipt for 5
+		final ByteBuffer frame = ByteBuffer.wrap(new byte[]{(byte) 0xfd, 9, 3, 1, 2, 3, 2, 1, 5});
+		final List<Long> receipts = new ArrayList<>();
+		final RecordDispatcher dispatcher = new RecordDispatcher();
+		dispatcher.register(new Records.Receipt(), receipt -> receipts.add(receipt.sequence));
+		assertEquals(1, dispatcher.dispatch(frame));
+		assertEquals(1, receipts.size());
+		assertEquals(5L, (long) receipts.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsRecordExceedingFrame() {
+		final RecordDispatcher dispatcher = new RecordDispatcher();
+		dispatcher.register(new Records.Receipt(), receipt -> { });
+		dispatcher.dispatch(ByteBuffer.wrap(new byte[]{(byte) 0xfd, 2, 5, 1}));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsDuplicateHandlers() {
+		final RecordDispatcher dispatcher = new RecordDispatcher();
+		dispatcher.register(new Records.Receipt(), receipt -> { });
+		dispatcher.register(new Records.Receipt(), receipt -> { });
+	}
+
+	@Test
+	public void compressedFrameRoundtrip() {
+		final BufferPool pool = new BufferPool(4096, 2);
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			builder.append(TEXT);
+		}
+		final ByteBuffer text = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+		final ByteBuffer compressed = PayloadCompression.compress(
+				RecordCodec.encode(new Records.Chat().set(1, 2, text), pool), 128, pool);
+		assertTrue(PayloadCompression.isCompressed(compressed));
+
+		final ByteBuffer frame = PayloadCompression.decompress(compressed, 1024 * 1024);
+		final String[] received = new String[1];
+		final RecordDispatcher dispatcher = new RecordDispatcher();
+		dispatcher.register(new Records.Chat(), chat -> received[0] = chat.getText());
+		dispatcher.dispatch(frame);
+		assertEquals(builder.toString(), received[0]);
+	}
+
+	@Test
+	public void echoResponderAnswersPings() {
+		final BufferPool pool = new BufferPool(1024, 2);
+		final MetricsRegistry registry = new MetricsRegistry();
+		final List<String> pongs = new ArrayList<>();
+		final RecordDispatcher responderRecords = new RecordDispatcher();
+		new EchoResponder(registry, pool, frame -> {
+			final RecordDispatcher records = new RecordDispatcher();
+			records.register(new Records.Pong(), pong ->
+					pongs.add(pong.sequence + "@" + pong.timestampUs + ": " + pong.getPayloadLength()));
+			assertEquals(1, records.dispatch(frame));
+			pool.release(frame);
+		}).register(responderRecords);
+
+		final Records.Ping ping = new Records.Ping();
+		final ByteBuffer payload = ByteBuffer.allocate(100);
+		responderRecords.dispatch(RecordCodec.encode(ping.set(2, 1000, Records.FLAG_ECHO, payload), pool));
+		responderRecords.dispatch(RecordCodec.encode(ping.set(1, 2000, 0, payload), pool));
+		responderRecords.dispatch(RecordCodec.encode(ping.set(3, 3000, 0, payload), pool));
+		assertEquals(3, pongs.size());
+		assertEquals("2@1000: 100", pongs.get(0));
+		assertEquals("1@2000: 0", pongs.get(1));
+		assertEquals("3@3000: 0", pongs.get(2));
+		assertEquals(3, registry.counter("echo_pings_total").get());
+		assertEquals(1, registry.counter("echo_pings_reordered_total").get());
+	}
+
+}
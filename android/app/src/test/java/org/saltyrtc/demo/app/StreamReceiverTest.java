@@ -0,0 +1,225 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class StreamReceiverTest {
+
+	private static class RecordingListener implements StreamReceiver.Listener {
+		long progress = 0;
+		int completed = 0;
+		boolean checksumValid = false;
+		String error = null;
+
+		@Override
+		public void onProgress(long received, long total) {
+			this.progress = received;
+		}
+
+		@Override
+		public void onComplete(long total, boolean checksumValid, double megabytesPerSecond) {
+			this.completed++;
+			this.checksumValid = checksumValid;
+		}
+
+		@Override
+		public void onError(String reason) {
+			this.error = reason;
+		}
+	}
+
+	private static ByteBuffer start(long total, long offset) {
+		final ByteBuffer frame = ByteBuffer.allocate(StreamFrames.START_SIZE);
+		StreamFrames.putStart(frame, StreamFrames.KIND_FILE, total, offset);
+		frame.flip();
+		return frame;
+	}
+
+	private static ByteBuffer data(byte[] bytes, int offset, int length) {
+		// Use direct buffers, like the data channel does
+		final ByteBuffer frame = ByteBuffer.allocateDirect(StreamFrames.DATA_HEADER_SIZE + length);
+		StreamFrames.putDataHeader(frame);
+		frame.put(bytes, offset, length).flip();
+		return frame;
+	}
+
+	private static ByteBuffer end(long crc) {
+		final ByteBuffer frame = ByteBuffer.allocate(StreamFrames.END_SIZE);
+		StreamFrames.putEnd(frame, crc);
+		frame.flip();
+		return frame;
+	}
+
+	private static long crc(byte[] bytes, int offset) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, offset, bytes.length - offset);
+		return crc.getValue();
+	}
+
+	private static void feed(StreamReceiver receiver, byte[] payload, int offset, int chunkSize, long crc) {
+		receiver.onFrame(start(payload.length, offset));
+		for (int i = offset; i < payload.length; i += chunkSize) {
+			receiver.onFrame(data(payload, i, Math.min(chunkSize, payload.length - i)));
+		}
+		receiver.onFrame(end(crc));
+	}
+
+	@Test
+	public void streamIntoMemory() {
+		final byte[] payload = new byte[100_000];
+		new Random(42).nextBytes(payload);
+		final MemorySink sink = new MemorySink(payload.length);
+		final RecordingListener listener = new RecordingListener();
+		final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> sink, listener);
+
+		feed(receiver, payload, 0, 4096, crc(payload, 0));
+
+		assertNull(listener.error);
+		assertEquals(1, listener.completed);
+		assertTrue(listener.checksumValid);
+		assertEquals(payload.length, listener.progress);
+		assertTrue(sink.isComplete());
+		assertEquals(ByteBuffer.wrap(payload), sink.getData());
+	}
+
+	@Test
+	public void checksumMismatchIsReported() {
+		final byte[] payload = new byte[1000];
+		new Random(1).nextBytes(payload);
+		final MemorySink sink = new MemorySink(payload.length);
+		final RecordingListener listener = new RecordingListener();
+		final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> sink, listener);
+
+		feed(receiver, payload, 0, 100, crc(payload, 0) ^ 1);
+
+		assertEquals(1, listener.completed);
+		assertFalse(listener.checksumValid);
+		assertFalse(sink.isComplete());
+	}
+
+	@Test
+	public void memorySinkIsBounded() {
+		final byte[] payload = new byte[1000];
+		final RecordingListener listener = new RecordingListener();
+		final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> new MemorySink(500), listener);
+
+		feed(receiver, payload, 0, 100, crc(payload, 0));
+
+		assertNotNull(listener.error);
+		assertEquals(0, listener.completed);
+	}
+
+	@Test
+	public void resumeIntoFile() throws Exception {
+		final byte[] payload = new byte[300_000];
+		new Random(7).nextBytes(payload);
+		final File file = File.createTempFile("stream", ".bin");
+		try {
+			// The first half has been received before
+			final int offset = payload.length / 2;
+			Files.write(file.toPath(), Arrays.copyOf(payload, offset));
+
+			final RecordingListener listener = new RecordingListener();
+			final StreamReceiver receiver = new StreamReceiver((kind, total, start) -> new FileSink(file, total, start), listener);
+			feed(receiver, payload, offset, 65536, crc(payload, offset));
+
+			assertNull(listener.error);
+			assertTrue(listener.checksumValid);
+			assertArrayEquals(payload, Files.readAllBytes(file.toPath()));
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	public void newStreamReplacesLongerFile() throws Exception {
+		final byte[] payload = new byte[1000];
+		new Random(3).nextBytes(payload);
+		final File file = File.createTempFile("stream", ".bin");
+		try {
+			Files.write(file.toPath(), new byte[5000]);
+
+			final RecordingListener listener = new RecordingListener();
+			final StreamReceiver receiver = new StreamReceiver((kind, total, start) -> new FileSink(file, total, start), listener);
+			feed(receiver, payload, 0, 256, crc(payload, 0));
+
+			assertTrue(listener.checksumValid);
+			assertArrayEquals(payload, Files.readAllBytes(file.toPath()));
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	public void sinkFactoryGetsKind() {
+		final byte[] kinds = new byte[1];
+		final RecordingListener listener = new RecordingListener();
+		final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> {
+			kinds[0] = kind;
+			return StreamReceiver.DISCARD;
+		}, listener);
+		final ByteBuffer start = ByteBuffer.allocate(StreamFrames.START_SIZE);
+		StreamFrames.putStart(start, StreamFrames.KIND_DATA, 4, 0);
+		start.flip();
+		receiver.onFrame(start);
+		receiver.onFrame(data(new byte[4], 0, 4));
+		receiver.onFrame(end(crc(new byte[4], 0)));
+
+		assertEquals(StreamFrames.KIND_DATA, kinds[0]);
+		assertNull(listener.error);
+		assertTrue(listener.checksumValid);
+	}
+
+	@Test
+	public void interruptedStreamResumesIntoMappedFile() throws Exception {
+		final byte[] payload = new byte[500_000];
+		new Random(9).nextBytes(payload);
+		final File file = File.createTempFile("stream", ".bin");
+		try {
+			final MappedFileSink[] sink = new MappedFileSink[1];
+			final RecordingListener listener = new RecordingListener();
+			final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> {
+				sink[0] = new MappedFileSink(file, total, offset);
+				return sink[0];
+			}, listener);
+
+			// Interrupted after 3 chunks
+			receiver.onFrame(start(payload.length, 0));
+			for (int i = 0; i < 3; i++) {
+				receiver.onFrame(data(payload, i * 65536, 65536));
+			}
+			receiver.abort();
+			assertFalse(sink[0].isComplete());
+			final long resumeAt = sink[0].getWritten();
+			assertEquals(3 * 65536, resumeAt);
+			assertEquals(payload.length, file.length());
+
+			feed(receiver, payload, (int) resumeAt, 65536, crc(payload, (int) resumeAt));
+
+			assertNull(listener.error);
+			assertTrue(listener.checksumValid);
+			assertTrue(sink[0].isComplete());
+			assertArrayEquals(payload, Files.readAllBytes(file.toPath()));
+		} finally {
+			// A mapped file cannot be deleted on some platforms while mapped
+			file.deleteOnExit();
+		}
+	}
+
+	@Test
+	public void dataOutsideOfStreamIsRejected() {
+		final RecordingListener listener = new RecordingListener();
+		final StreamReceiver receiver = new StreamReceiver((kind, total, offset) -> new MemorySink(10), listener);
+		receiver.onFrame(data(new byte[4], 0, 4));
+		assertNotNull(listener.error);
+	}
+
+}
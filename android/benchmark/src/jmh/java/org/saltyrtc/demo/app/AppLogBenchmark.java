@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the debug logging on the message path, with debug logging disabled
+ * ("info") and enabled ("debug").
+ *
+ * The legacy benchmark builds the message string like the previous
+ * implementation did before every Log.d call, regardless of the level. With
+ * debug logging disabled, the AppLog benchmarks must not allocate at all:
+ * next to the allocation rate reported by the gc profiler, this is checked
+ * after every iteration, and the run fails if any allocation happened.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AppLogBenchmark {
+
+	private static final String TAG = AppLogBenchmark.class.getName();
+
+	@Param({"info", "debug"})
+	public String level;
+
+	private String message;
+	private int length;
+	private AppLog.Sampler sampler;
+
+	// Allocations of the benchmark thread and operations of the AppLog
+	// benchmarks in the current iteration, see checkAllocations
+	private com.sun.management.ThreadMXBean threads;
+	private long allocatedBefore;
+	private long operations;
+
+	@Setup
+	public void setup() {
+		AppLog.setLevel("debug".equals(this.level) ? AppLog.DEBUG : AppLog.INFO);
+		AppLog.setSink(new AppLog.Sink() {
+			@Override
+			public void write(int level, String tag, String message, Throwable throwable) { }
+
+			@Override
+			public void flush() { }
+		});
+		this.message = "See you at noon, the connection is secure";
+		this.length = this.message.length();
+		this.sampler = new AppLog.Sampler(1000);
+		this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	}
+
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		this.operations = 0;
+		this.allocatedBefore = this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@TearDown(Level.Iteration)
+	public void checkAllocations() {
+		final long allocated = this.threads.getThreadAllocatedBytes(Thread.currentThread().getId())
+				- this.allocatedBefore;
+		// Allow for the allocations of the measurement itself and of JMH between iterations
+		if ("info".equals(this.level) && this.operations > 0 && allocated > 64 * 1024) {
+			throw new IllegalStateException(allocated + " bytes allocated in " + this.operations
+					+ " operations with debug logging disabled");
+		}
+	}
+
+	/**
+	 * Not counted in the operations, it is expected to allocate.
+	 */
+	@Benchmark
+	public String legacy() {
+		return "Message is: " + this.message;
+	}
+
+	@Benchmark
+	public void placeholderLong() {
+		this.operations++;
+		AppLog.d(TAG, "New incoming datachannel message: {} bytes", this.length);
+	}
+
+	@Benchmark
+	public void placeholderObject() {
+		this.operations++;
+		AppLog.d(TAG, "Message is: {}", this.message);
+	}
+
+	@Benchmark
+	public void sampled() {
+		this.operations++;
+		AppLog.d(this.sampler, TAG, "Buffered amount changed: {}", this.length);
+	}
+
+}
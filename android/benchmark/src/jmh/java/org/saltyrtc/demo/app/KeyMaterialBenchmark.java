@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.saltyrtc.client.exceptions.InvalidKeyException;
+import org.saltyrtc.client.keystore.KeyStore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of obtaining the key material when starting a session.
+ *
+ * - cold: derive everything from the hex configuration, as every start used to do
+ * - warm: reuse the material already derived in this process
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyMaterialBenchmark {
+
+	private static final String PRIVATE_KEY = "c41df741435bb144edcd429d1d8e86c5e0e24ccceff87ec5e6647525c2d52077";
+	private static final String SERVER_KEY = "f77fe623b6977d470ac8c7bf7011c4ad08a1d126896795db9d2b4b7a49ae1045";
+	private static final String TRUSTED_KEY = "424280166304526b4a2874a2270d091071fcc5c98959f7d4718715626df26204";
+
+	private KeyMaterial cached;
+
+	@Setup
+	public void setup() throws InvalidKeyException {
+		this.cached = KeyMaterial.derive(PRIVATE_KEY, SERVER_KEY, TRUSTED_KEY);
+	}
+
+	@Benchmark
+	public KeyStore cold() throws InvalidKeyException {
+		return KeyMaterial.derive(PRIVATE_KEY, SERVER_KEY, TRUSTED_KEY).getKeyStore();
+	}
+
+	@Benchmark
+	public KeyStore warm() {
+		// What a session start costs once the material is cached
+		this.cached.getServerKey();
+		this.cached.getTrustedKey();
+		return this.cached.getKeyStore();
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the message encode / decode path, for messages from 16 B up
+ * to the largest size that is still decoded, see {@link MessageCodec#MAX_DECODED_SIZE}.
+ *
+ * The legacy benchmarks replicate the previous implementation (allocating
+ * encode, decode via byte array and String constructor) for comparison.
+ * Run with "./gradlew :benchmark:jmh". The gc profiler reports the allocation
+ * rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageCodecBenchmark {
+
+	// Size of the encoded message in bytes
+	@Param({"16", "256", "4096", "65536", "1048575"})
+	public int size;
+
+	private String text;
+	private BufferPool pool;
+	private ByteBuffer heapEncoded;
+	private ByteBuffer directEncoded;
+
+	@Setup
+	public void setup() {
+		// Mostly ASCII with some two byte characters, like typical chat text
+		final StringBuilder builder = new StringBuilder(this.size);
+		int encodedLength = 0;
+		while (encodedLength < this.size) {
+			if (builder.length() % 16 == 0 && encodedLength + 2 <= this.size) {
+				builder.append('\u00e4');
+				encodedLength += 2;
+			} else {
+				builder.append((char) ('a' + builder.length() % 26));
+				encodedLength += 1;
+			}
+		}
+		this.text = builder.toString();
+		this.pool = new BufferPool(this.size * 3, 4);
+
+		final byte[] bytes = this.text.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= MessageCodec.MAX_DECODED_SIZE) {
+			// Would only measure the placeholder for large messages
+			throw new IllegalStateException("Message of " + bytes.length + " bytes is not decoded");
+		}
+		this.heapEncoded = ByteBuffer.wrap(bytes);
+		this.directEncoded = ByteBuffer.allocateDirect(bytes.length);
+		this.directEncoded.put(bytes).flip();
+	}
+
+	@Benchmark
+	public int encodePooled() {
+		final ByteBuffer buffer = MessageCodec.encode(this.text, this.pool);
+		final int length = buffer.remaining();
+		this.pool.release(buffer);
+		return length;
+	}
+
+	@Benchmark
+	public int encodeLegacy() {
+		return StandardCharsets.UTF_8.encode(this.text).remaining();
+	}
+
+	@Benchmark
+	public String decodeHeap() {
+		return MessageCodec.decode(this.heapEncoded);
+	}
+
+	@Benchmark
+	public String decodeDirect() {
+		return MessageCodec.decode(this.directEncoded);
+	}
+
+	@Benchmark
+	public String decodeLegacy() {
+		final byte[] bytes = this.heapEncoded.array();
+		if (bytes.length < 255) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		} else {
+			return "[Large message, " + bytes.length + " bytes]";
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire bytes and CPU cost of sending chat messages raw vs. compressed.
+ *
+ * The payloads are chat text and JSON records of the given size. Next to the
+ * throughput, the wireBytes counter reports the bytes handed to the data
+ * channel per second; divided by the throughput it is the size on the wire
+ * of a single message. The raw benchmarks are the baseline without
+ * compression, with the compression threshold applied as in the app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadCompressionBenchmark {
+
+	private static final String[] WORDS = {
+			"hello", "the", "connection", "is", "secure", "see", "you", "at", "noon",
+			"saltyrtc", "works", "fine", "over", "mobile", "data", "thanks", "ok", "!",
+	};
+
+	@Param({"chat", "json"})
+	public String payload;
+
+	@Param({"64", "256", "1024", "16384"})
+	public int size;
+
+	private String text;
+	private BufferPool pool;
+	private ByteBuffer compressed;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class WireBytes {
+		public long wireBytes;
+	}
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(42);
+		final StringBuilder builder = new StringBuilder(this.size + 64);
+		if (this.payload.equals("chat")) {
+			while (builder.length() < this.size) {
+				builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+		} else {
+			builder.append('[');
+			while (builder.length() < this.size) {
+				builder.append(String.format(Locale.US,
+						"{\"id\":%d,\"type\":\"chat\",\"sender\":\"responder\",\"ts\":%d,\"text\":\"%s\"},",
+						random.nextInt(100000), 1546300800000L + random.nextInt(1000000),
+						WORDS[random.nextInt(WORDS.length)]));
+			}
+			builder.setCharAt(builder.length() - 1, ']');
+		}
+		this.text = builder.substring(0, this.size);
+		this.pool = new BufferPool(this.size * 3 + 1, 4);
+		this.compressed = PayloadCompression.compress(
+				MessageCodec.encode(this.text, this.pool), Config.COMPRESSION_MIN_SIZE, this.pool);
+	}
+
+	@Benchmark
+	public int raw(WireBytes counter) {
+		final ByteBuffer buffer = MessageCodec.encode(this.text, this.pool);
+		final int length = buffer.remaining();
+		counter.wireBytes += length;
+		this.pool.release(buffer);
+		return length;
+	}
+
+	@Benchmark
+	public int compressed(WireBytes counter) {
+		final ByteBuffer buffer = PayloadCompression.compress(
+				MessageCodec.encode(this.text, this.pool), Config.COMPRESSION_MIN_SIZE, this.pool);
+		final int length = buffer.remaining();
+		counter.wireBytes += length;
+		this.pool.release(buffer);
+		return length;
+	}
+
+	@Benchmark
+	public String decodeCompressed() {
+		if (!PayloadCompression.isCompressed(this.compressed)) {
+			return MessageCodec.decode(this.compressed);
+		}
+		return MessageCodec.decode(PayloadCompression.decompress(this.compressed, MessageCodec.MAX_DECODED_SIZE));
+	}
+
+}
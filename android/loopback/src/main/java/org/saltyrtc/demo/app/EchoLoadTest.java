@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.saltyrtc.client.SaltyRTC;
+import org.saltyrtc.client.SaltyRTCBuilder;
+import org.saltyrtc.client.events.CloseEvent;
+import org.saltyrtc.client.events.EventHandler;
+import org.saltyrtc.client.events.SignalingStateChangedEvent;
+import org.saltyrtc.client.keystore.KeyStore;
+import org.saltyrtc.client.signaling.CloseCode;
+import org.saltyrtc.client.signaling.state.SignalingState;
+import org.saltyrtc.client.tasks.Task;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Ping/echo and sustained throughput test of the record protocol, as a
+ * performance regression gate.
+ *
+ * Starts an in-process {@link LoopbackServer} and connects one
+ * initiator/responder pair. The responder answers pings with the app's
+ * {@link EchoResponder}, the initiator plays the part of the web client: it
+ * sends sequence numbered, timestamped {@link Records.Ping} records and
+ * matches the pongs. The records are exchanged as application messages
+ * through the server, since there is no WebRTC stack on the JVM.
+ *
+ * - ping:       one ping every {@link #PING_INTERVAL_MS} ms, echoed with its payload
+ * - throughput: up to {@link #WINDOW} pings in flight, acknowledged without payload
+ *
+ * Reports the round trip time percentiles, the goodput (payload bytes
+ * acknowledged per second), lost, duplicated and reordered pongs.
+ *
+ * Arguments: [ping|throughput] [pings] [payload size] [key store] [max p99 RTT in ms]
+ * [min goodput in KiB/s]. Exits with status 1 if a pong is lost, duplicated or
+ * reordered, or if a threshold is missed.
+ */
+public final class EchoLoadTest {
+
+	private static final String DEFAULT_MODE = "ping";
+	private static final int DEFAULT_PINGS = 1000;
+	private static final int DEFAULT_PAYLOAD_SIZE = 1024;
+	private static final long PING_INTERVAL_MS = 2;
+	private static final int WINDOW = 64;
+	private static final long TIMEOUT_S = 60;
+
+	private final SSLContext sslContext;
+	private final String host;
+	private final int port;
+	private final byte[] serverKey;
+
+	private final BufferPool pool = new BufferPool(64 * 1024, 4);
+	private final AtomicInteger failures = new AtomicInteger();
+
+	// Only accessed with the lock of the instance held
+	private final LatencyHistogram roundTripTimes = new LatencyHistogram();
+	private final BitSet received = new BitSet();
+	private long highestSequence = -1;
+	private long duplicates;
+	private long reordered;
+	private long acknowledgedBytes;
+	private long lastPongAtNanos;
+
+	private EchoLoadTest(SSLContext sslContext, String host, int port, byte[] serverKey) {
+		this.sslContext = sslContext;
+		this.host = host;
+		this.port = port;
+		this.serverKey = serverKey;
+	}
+
+	/**
+	 * Run the test and return whether all pongs arrived in order and within
+	 * the thresholds.
+	 */
+	private boolean run(boolean throughput, int pings, int payloadSize, double maxP99Ms,
+	                    double minGoodputKiBs) throws Exception {
+		final CountDownLatch handshakesDone = new CountDownLatch(1);
+		final CountDownLatch pongsDone = new CountDownLatch(pings);
+		final Semaphore window = new Semaphore(WINDOW);
+		final KeyStore initiatorKey = new KeyStore();
+		final KeyStore responderKey = new KeyStore();
+		final SaltyRTC initiator = this.builder(initiatorKey)
+				.withTrustedPeerKey(responderKey.getPublicKey())
+				.asInitiator();
+		final SaltyRTC responder = this.builder(responderKey)
+				.withTrustedPeerKey(initiatorKey.getPublicKey())
+				.asResponder();
+
+		final AtomicInteger ready = new AtomicInteger();
+		final EventHandler<SignalingStateChangedEvent> onState = event -> {
+			if (event.getState() == SignalingState.TASK && ready.incrementAndGet() == 2) {
+				handshakesDone.countDown();
+			}
+			return false;
+		};
+		final EventHandler<CloseEvent> onClose = event -> {
+			if (event.getReason() != CloseCode.CLOSING_NORMAL) {
+				System.err.println("Peer closed with " + event.getReason());
+				this.failures.incrementAndGet();
+			}
+			return true;
+		};
+		initiator.events.signalingStateChanged.register(onState);
+		responder.events.signalingStateChanged.register(onState);
+		initiator.events.close.register(onClose);
+		responder.events.close.register(onClose);
+
+		// The responder, like the app
+		final RecordDispatcher responderRecords = new RecordDispatcher();
+		new EchoResponder(new MetricsRegistry(), this.pool, frame -> {
+			try {
+				responder.sendApplicationMessage(toArray(frame, this.pool));
+			} catch (final Exception e) {
+				System.err.println("Could not send pong: " + e);
+				this.failures.incrementAndGet();
+			}
+		}).register(responderRecords);
+		responder.events.applicationData.register(event -> {
+			responderRecords.dispatch(ByteBuffer.wrap((byte[]) event.getData()));
+			return false;
+		});
+
+		// The initiator, like the web client
+		final RecordDispatcher initiatorRecords = new RecordDispatcher();
+		initiatorRecords.register(new Records.Pong(), pong -> {
+			if (this.onPong(pong.sequence, pong.timestampUs, payloadSize)) {
+				window.release();
+				pongsDone.countDown();
+			}
+		});
+		initiator.events.applicationData.register(event -> {
+			initiatorRecords.dispatch(ByteBuffer.wrap((byte[]) event.getData()));
+			return false;
+		});
+
+		initiator.connect();
+		responder.connect();
+		boolean passed = false;
+		try {
+			if (!handshakesDone.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+				System.err.println("Peer handshake timed out");
+				return false;
+			}
+
+			final Records.Ping ping = new Records.Ping();
+			final ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+			final long flags = throughput ? 0 : Records.FLAG_ECHO;
+			final long startedAt = System.nanoTime();
+			int sent = 0;
+			for (; sent < pings; sent++) {
+				if (throughput) {
+					if (!window.tryAcquire(TIMEOUT_S, TimeUnit.SECONDS)) {
+						break;
+					}
+				} else if (sent > 0) {
+					Thread.sleep(PING_INTERVAL_MS);
+				}
+				final ByteBuffer frame = RecordCodec.encode(
+						ping.set(sent, System.nanoTime() / 1000, flags, payload), this.pool);
+				initiator.sendApplicationMessage(toArray(frame, this.pool));
+			}
+			pongsDone.await(TIMEOUT_S, TimeUnit.SECONDS);
+			passed = this.report(throughput, sent, pings, startedAt, maxP99Ms, minGoodputKiBs);
+		} finally {
+			initiator.events.clearAll();
+			responder.events.clearAll();
+			initiator.disconnect();
+			responder.disconnect();
+		}
+		return passed && this.failures.get() == 0;
+	}
+
+	/**
+	 * Record a pong and return whether it is the first one for its sequence number.
+	 */
+	private synchronized boolean onPong(long sequence, long timestampUs, int payloadSize) {
+		final long now = System.nanoTime();
+		if (sequence < 0 || sequence > Integer.MAX_VALUE || this.received.get((int) sequence)) {
+			this.duplicates++;
+			return false;
+		}
+		this.received.set((int) sequence);
+		if (sequence < this.highestSequence) {
+			this.reordered++;
+		} else {
+			this.highestSequence = sequence;
+		}
+		this.roundTripTimes.record(now / 1000 - timestampUs);
+		this.acknowledgedBytes += payloadSize;
+		this.lastPongAtNanos = now;
+		return true;
+	}
+
+	private synchronized boolean report(boolean throughput, int sent, int pings, long startedAt,
+	                                    double maxP99Ms, double minGoodputKiBs) {
+		final long received = this.received.cardinality();
+		final long lost = sent - received;
+		final double seconds = Math.max(this.lastPongAtNanos - startedAt, 1) / 1e9;
+		final double goodputKiBs = this.acknowledgedBytes / 1024.0 / seconds;
+		final double p99Ms = this.roundTripTimes.getPercentile(99) / 1000.0;
+		System.out.println(String.format(Locale.US, "Mode: %s, %d/%d pings sent, %d pongs received",
+				throughput ? "throughput" : "ping", sent, pings, received));
+		System.out.println(String.format(Locale.US, "RTT in ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+				this.roundTripTimes.getPercentile(50) / 1000.0,
+				this.roundTripTimes.getPercentile(90) / 1000.0,
+				p99Ms,
+				this.roundTripTimes.getMax() / 1000.0));
+		System.out.println(String.format(Locale.US, "Goodput: %.1f KiB/s, lost: %d, duplicated: %d, reordered: %d",
+				goodputKiBs, lost, this.duplicates, this.reordered));
+
+		boolean passed = true;
+		// The signaling channel and the data channels are reliable and ordered
+		if (sent < pings || lost > 0 || this.duplicates > 0 || this.reordered > 0) {
+			System.err.println("FAILED: pongs missing, duplicated or out of order");
+			passed = false;
+		}
+		if (maxP99Ms > 0 && p99Ms > maxP99Ms) {
+			System.err.println(String.format(Locale.US, "FAILED: p99 RTT %.2f ms above %.2f ms", p99Ms, maxP99Ms));
+			passed = false;
+		}
+		if (minGoodputKiBs > 0 && goodputKiBs < minGoodputKiBs) {
+			System.err.println(String.format(Locale.US, "FAILED: goodput %.1f KiB/s below %.1f KiB/s",
+					goodputKiBs, minGoodputKiBs));
+			passed = false;
+		}
+		return passed;
+	}
+
+	/**
+	 * Copy an encoded frame into an array for the signaling channel and
+	 * release it to the pool.
+	 */
+	private static byte[] toArray(ByteBuffer frame, BufferPool pool) {
+		final byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		pool.release(frame);
+		return bytes;
+	}
+
+	private SaltyRTCBuilder builder(KeyStore keyStore) {
+		return new SaltyRTCBuilder()
+				.connectTo(this.host, this.port, this.sslContext)
+				.withServerKey(this.serverKey)
+				.withKeyStore(keyStore)
+				.withWebsocketConnectTimeout(15000)
+				.usingTasks(new Task[]{new LoadDriver.LoadTask()});
+	}
+
+	public static void main(String[] args) throws Exception {
+		final String mode = args.length > 0 ? args[0] : DEFAULT_MODE;
+		final int pings = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PINGS;
+		final int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PAYLOAD_SIZE;
+		final File keyStore = new File(args.length > 3 ? args[3] : "build/loopback.jks");
+		final double maxP99Ms = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+		final double minGoodputKiBs = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+		if (!"ping".equals(mode) && !"throughput".equals(mode)) {
+			throw new IllegalArgumentException("Mode must be ping or throughput");
+		}
+		if (pings < 1 || payloadSize < 0) {
+			throw new IllegalArgumentException("Ping count must be positive and payload size not negative");
+		}
+
+		final KeyStore serverKey = new KeyStore(LoopbackServer.DEFAULT_PRIVATE_KEY);
+		final LoopbackServer server = new LoopbackServer(
+				new InetSocketAddress("localhost", 0), serverKey, LoopbackTls.server(keyStore));
+		server.start();
+		if (!server.awaitStart(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Server did not start");
+		}
+
+		final boolean passed;
+		try {
+			final EchoLoadTest test = new EchoLoadTest(LoopbackTls.client(keyStore),
+					"localhost", server.getPort(), serverKey.getPublicKey());
+			passed = test.run("throughput".equals(mode), pings, payloadSize, maxP99Ms, minGoodputKiBs);
+		} finally {
+			server.stop(1000);
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+}
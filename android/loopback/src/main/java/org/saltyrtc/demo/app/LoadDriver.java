@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.saltyrtc.client.SaltyRTC;
+import org.saltyrtc.client.SaltyRTCBuilder;
+import org.saltyrtc.client.events.ApplicationDataEvent;
+import org.saltyrtc.client.events.CloseEvent;
+import org.saltyrtc.client.events.EventHandler;
+import org.saltyrtc.client.events.SignalingStateChangedEvent;
+import org.saltyrtc.client.exceptions.SignalingException;
+import org.saltyrtc.client.keystore.KeyStore;
+import org.saltyrtc.client.messages.c2c.TaskMessage;
+import org.saltyrtc.client.signaling.CloseCode;
+import org.saltyrtc.client.signaling.SignalingInterface;
+import org.saltyrtc.client.signaling.state.SignalingState;
+import org.saltyrtc.client.tasks.Task;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Load test for the signaling path.
+ *
+ * Starts an in-process {@link LoopbackServer}, connects a number of
+ * initiator/responder pairs concurrently and waits until all of them finished
+ * the peer handshake. Then every initiator sends a number of application
+ * messages to its responder through the server, optionally coalesced into
+ * {@link ApplicationBatch} envelopes. Reports the handshake latency percentiles
+ * and the delivered messages per second.
+ *
+ * Arguments: [pairs] [messages per pair] [key store] [messages per batch].
+ * Exits with status 1 if a pair fails or the run times out.
+ */
+public final class LoadDriver {
+
+	private static final int DEFAULT_PAIRS = 50;
+	private static final int DEFAULT_MESSAGES = 200;
+	private static final int DEFAULT_BATCH_SIZE = 1;
+	private static final int MESSAGE_SIZE = 64;
+	private static final long TIMEOUT_S = 60;
+
+	private final SSLContext sslContext;
+	private final String host;
+	private final int port;
+	private final byte[] serverKey;
+
+	private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private LoadDriver(SSLContext sslContext, String host, int port, byte[] serverKey) {
+		this.sslContext = sslContext;
+		this.host = host;
+		this.port = port;
+		this.serverKey = serverKey;
+	}
+
+	/**
+	 * Run the load test and return whether all pairs completed.
+	 */
+	private boolean run(int pairCount, int messages, int batchSize) throws Exception {
+		final CountDownLatch handshakesDone = new CountDownLatch(pairCount);
+		final CountDownLatch messagesDone = new CountDownLatch(pairCount * messages);
+		final Pair[] pairs = new Pair[pairCount];
+		for (int i = 0; i < pairCount; i++) {
+			pairs[i] = new Pair(handshakesDone, messagesDone);
+		}
+
+		for (final Pair pair : pairs) {
+			pair.connect();
+		}
+		final boolean handshaken = handshakesDone.await(TIMEOUT_S, TimeUnit.SECONDS);
+		System.out.println(String.format(Locale.US, "Handshakes: %d/%d completed, latency in ms: %s",
+				this.handshakeLatency.getCount(), pairCount, this.formatMillis(this.handshakeLatency)));
+
+		boolean delivered = false;
+		if (handshaken) {
+			final byte[] payload = new byte[MESSAGE_SIZE];
+			final long startedAt = System.nanoTime();
+			for (int sent = 0; sent < messages; sent += batchSize) {
+				final int count = Math.min(batchSize, messages - sent);
+				final byte[] message = count == 1 ? payload
+						: ApplicationBatch.encode(Collections.nCopies(count, ByteBuffer.wrap(payload))).array();
+				for (final Pair pair : pairs) {
+					pair.initiator.sendApplicationMessage(message);
+				}
+			}
+			delivered = messagesDone.await(TIMEOUT_S, TimeUnit.SECONDS);
+			final double seconds = (System.nanoTime() - startedAt) / 1e9;
+			final long received = (long) pairCount * messages - messagesDone.getCount();
+			System.out.println(String.format(Locale.US, "Messages: %d/%d delivered in batches of %d, %.0f messages/s",
+					received, (long) pairCount * messages, batchSize, received / seconds));
+		}
+
+		for (final Pair pair : pairs) {
+			pair.disconnect();
+		}
+		return handshaken && delivered && this.failures.get() == 0;
+	}
+
+	private String formatMillis(LatencyHistogram histogram) {
+		return String.format(Locale.US, "p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+				histogram.getPercentile(50) / 1000.0,
+				histogram.getPercentile(90) / 1000.0,
+				histogram.getPercentile(99) / 1000.0,
+				histogram.getMax() / 1000.0);
+	}
+
+	/**
+	 * An initiator and a responder that trust each other.
+	 */
+	private final class Pair {
+		final SaltyRTC initiator;
+		final SaltyRTC responder;
+		final AtomicInteger ready = new AtomicInteger();
+		volatile long connectedAt;
+
+		Pair(CountDownLatch handshakesDone, CountDownLatch messagesDone) throws Exception {
+			final KeyStore initiatorKey = new KeyStore();
+			final KeyStore responderKey = new KeyStore();
+			this.initiator = LoadDriver.this.builder(initiatorKey)
+					.withTrustedPeerKey(responderKey.getPublicKey())
+					.asInitiator();
+			this.responder = LoadDriver.this.builder(responderKey)
+					.withTrustedPeerKey(initiatorKey.getPublicKey())
+					.asResponder();
+
+			final EventHandler<SignalingStateChangedEvent> onState = event -> {
+				if (event.getState() == SignalingState.TASK && this.ready.incrementAndGet() == 2) {
+					LoadDriver.this.handshakeLatency.record((System.nanoTime() - this.connectedAt) / 1000);
+					handshakesDone.countDown();
+				}
+				return false;
+			};
+			final EventHandler<CloseEvent> onClose = event -> {
+				if (event.getReason() != CloseCode.CLOSING_NORMAL) {
+					System.err.println("Pair closed with " + event.getReason());
+					LoadDriver.this.failures.incrementAndGet();
+				}
+				return true;
+			};
+			final EventHandler<ApplicationDataEvent> onData = event -> {
+				final ByteBuffer message = ByteBuffer.wrap((byte[]) event.getData());
+				final int count = ApplicationBatch.isBatch(message) ? ApplicationBatch.split(message).size() : 1;
+				for (int i = 0; i < count; i++) {
+					messagesDone.countDown();
+				}
+				return false;
+			};
+			this.initiator.events.signalingStateChanged.register(onState);
+			this.responder.events.signalingStateChanged.register(onState);
+			this.initiator.events.close.register(onClose);
+			this.responder.events.close.register(onClose);
+			this.responder.events.applicationData.register(onData);
+		}
+
+		void connect() throws Exception {
+			this.connectedAt = System.nanoTime();
+			this.initiator.connect();
+			this.responder.connect();
+		}
+
+		void disconnect() {
+			this.initiator.events.clearAll();
+			this.responder.events.clearAll();
+			this.initiator.disconnect();
+			this.responder.disconnect();
+		}
+	}
+
+	private SaltyRTCBuilder builder(KeyStore keyStore) {
+		return new SaltyRTCBuilder()
+				.connectTo(this.host, this.port, this.sslContext)
+				.withServerKey(this.serverKey)
+				.withKeyStore(keyStore)
+				.withWebsocketConnectTimeout(15000)
+				.usingTasks(new Task[]{new LoadTask()});
+	}
+
+	/**
+	 * A task that does nothing. Once the peer handshake is done, the pair only
+	 * exchanges application messages over the signaling channel.
+	 */
+	static final class LoadTask implements Task {
+		@Override
+		public void init(SignalingInterface signaling, Map<Object, Object> data) {
+		}
+
+		@Override
+		public void onPeerHandshakeDone() {
+		}
+
+		@Override
+		public void onTaskMessage(TaskMessage message) {
+		}
+
+		@Override
+		public void sendSignalingMessage(byte[] payload) throws SignalingException {
+			throw new SignalingException(CloseCode.PROTOCOL_ERROR, "Handover is not supported");
+		}
+
+		@Override
+		public String getName() {
+			return "v0.load.demo.saltyrtc.org";
+		}
+
+		@Override
+		public List<String> getSupportedMessageTypes() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Object, Object> getData() {
+			return null;
+		}
+
+		@Override
+		public void close(int reason) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int pairs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAIRS;
+		final int messages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGES;
+		final File keyStore = new File(args.length > 2 ? args[2] : "build/loopback.jks");
+		final int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BATCH_SIZE;
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+
+		final KeyStore serverKey = new KeyStore(LoopbackServer.DEFAULT_PRIVATE_KEY);
+		final LoopbackServer server = new LoopbackServer(
+				new InetSocketAddress("localhost", 0), serverKey, LoopbackTls.server(keyStore));
+		server.start();
+		if (!server.awaitStart(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Server did not start");
+		}
+
+		final boolean passed;
+		try {
+			final LoadDriver driver = new LoadDriver(
+					LoopbackTls.client(keyStore), "localhost", server.getPort(), serverKey.getPublicKey());
+			passed = driver.run(pairs, messages, batchSize);
+			System.out.println("Server: " + server.getHandshakes() + " client handshakes, "
+					+ server.getRelayedMessages() + " relayed messages");
+		} finally {
+			server.stop(1000);
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import android.support.annotation.Nullable;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
+import org.java_websocket.server.WebSocketServer;
+import org.msgpack.value.Value;
+import org.saltyrtc.client.exceptions.CryptoFailedException;
+import org.saltyrtc.client.keystore.Box;
+import org.saltyrtc.client.keystore.KeyStore;
+import org.saltyrtc.client.signaling.CloseCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A minimal SaltyRTC signaling server (protocol version 1) for local testing.
+ *
+ * It implements the server side of the signaling protocol: the server
+ * handshake with initiators and responders, relaying of client-to-client
+ * messages, send-error, drop-responder and path-full. It does not persist
+ * anything, does not send pings and keeps all state in memory, so it is only
+ * meant for load and latency tests on a developer machine or a CI host.
+ *
+ * Every path is guarded by its own lock. Messages of clients on different
+ * paths are handled concurrently by the WebSocket worker threads.
+ */
+public class LoopbackServer extends WebSocketServer {
+
+	private static final Logger LOG = Logger.getLogger(LoopbackServer.class.getName());
+
+	static final String SUBPROTOCOL = "v1.saltyrtc.org";
+	static final int DEFAULT_PORT = 8765;
+
+	/**
+	 * Permanent key of the server if none is given. Its public key is
+	 * 111c8a46311e58afa593d9d440ac4b47d5a1edb8dc1227dd1e9d4b34994ae26c.
+	 */
+	static final String DEFAULT_PRIVATE_KEY = "77e9f5a5d2b9b13c1a3d51e4e0c6a4ee8d3a4c4f2e27c0c3cb7e1ff1a2b6a9d1";
+
+	private static final int ADDRESS_SERVER = 0x00;
+	private static final int ADDRESS_INITIATOR = 0x01;
+	private static final int ADDRESS_FIRST_RESPONDER = 0x02;
+	private static final int ADDRESS_LAST_RESPONDER = 0xff;
+	private static final int KEY_LENGTH = 32;
+
+	private final KeyStore permanentKey;
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, Path> paths = new HashMap<>();
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong relayed = new AtomicLong();
+
+	/**
+	 * Create a server. Call {@link #start()} to listen.
+	 *
+	 * @param address Address to bind to, port 0 picks a free port.
+	 * @param permanentKey Permanent key of the server, clients may pin its public key.
+	 * @param sslContext TLS context, or null to serve plain WebSockets.
+	 */
+	public LoopbackServer(InetSocketAddress address, KeyStore permanentKey, @Nullable SSLContext sslContext) {
+		super(address, Collections.<Draft>singletonList(new Draft_6455(
+				Collections.<IExtension>emptyList(),
+				Collections.<IProtocol>singletonList(new Protocol(SUBPROTOCOL)))));
+		this.permanentKey = permanentKey;
+		if (sslContext != null) {
+			this.setWebSocketFactory(new DefaultSSLWebSocketServerFactory(sslContext));
+		}
+		this.setReuseAddr(true);
+	}
+
+	/**
+	 * Wait until the server listens.
+	 */
+	public boolean awaitStart(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.started.await(timeout, unit);
+	}
+
+	/**
+	 * Number of completed client handshakes.
+	 */
+	public long getHandshakes() {
+		return this.handshakes.get();
+	}
+
+	/**
+	 * Number of relayed client-to-client messages.
+	 */
+	public long getRelayedMessages() {
+		return this.relayed.get();
+	}
+
+	@Override
+	public void onStart() {
+		this.started.countDown();
+	}
+
+	@Override
+	public void onOpen(WebSocket socket, ClientHandshake handshake) {
+		String key = handshake.getResourceDescriptor();
+		if (key.startsWith("/")) {
+			key = key.substring(1);
+		}
+		if (!key.matches("[0-9a-fA-F]{" + KEY_LENGTH * 2 + "}")) {
+			socket.close(CloseCode.PROTOCOL_ERROR, "Invalid path");
+			return;
+		}
+		key = key.toLowerCase(Locale.ROOT);
+
+		final Path path;
+		synchronized (this.paths) {
+			Path existing = this.paths.get(key);
+			if (existing == null) {
+				existing = new Path(key);
+				this.paths.put(key, existing);
+			}
+			existing.connections++;
+			path = existing;
+		}
+		final Client client = new Client(socket, path, this.random);
+		socket.setAttachment(client);
+
+		synchronized (path) {
+			final Map<String, Object> hello = SignalingMessages.create("server-hello");
+			hello.put("key", client.sessionKey.getPublicKey());
+			try {
+				socket.send(concat(client.nextNonce().toBytes(), SignalingMessages.pack(hello)));
+			} catch (final IOException e) {
+				this.drop(client, CloseCode.INTERNAL_ERROR, "Could not send server-hello");
+			}
+		}
+	}
+
+	@Override
+	public void onMessage(WebSocket socket, ByteBuffer message) {
+		final Client client = socket.getAttachment();
+		if (client == null) {
+			return;
+		}
+		synchronized (client.path) {
+			if (client.dropped) {
+				return;
+			}
+			try {
+				this.handle(client, message);
+			} catch (final IOException | CryptoFailedException e) {
+				LOG.log(Level.FINE, "Protocol error", e);
+				this.drop(client, CloseCode.PROTOCOL_ERROR, e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void onMessage(WebSocket socket, String message) {
+		socket.close(CloseCode.PROTOCOL_ERROR, "Text messages are not allowed");
+	}
+
+	@Override
+	public void onClose(WebSocket socket, int code, String reason, boolean remote) {
+		final Client client = socket.getAttachment();
+		if (client == null) {
+			return;
+		}
+		synchronized (client.path) {
+			client.path.remove(client);
+		}
+		synchronized (this.paths) {
+			if (--client.path.connections == 0) {
+				this.paths.remove(client.path.key);
+			}
+		}
+	}
+
+	@Override
+	public void onError(@Nullable WebSocket socket, Exception e) {
+		LOG.log(Level.WARNING, socket == null ? "Server error" : "Connection error", e);
+	}
+
+	/**
+	 * Handle an incoming message. Must hold the lock of the client's path.
+	 */
+	private void handle(Client client, ByteBuffer message) throws IOException, CryptoFailedException {
+		if (message.remaining() <= SignalingNonce.LENGTH) {
+			throw new IOException("Message too short");
+		}
+		final SignalingNonce nonce = SignalingNonce.parse(message);
+		if (nonce.destination != ADDRESS_SERVER) {
+			this.relay(client, nonce, message);
+			return;
+		}
+		client.checkIncoming(nonce);
+		final byte[] payload = new byte[message.remaining() - SignalingNonce.LENGTH];
+		message.position(message.position() + SignalingNonce.LENGTH);
+		message.get(payload);
+
+		if (client.id == ADDRESS_SERVER) {
+			if (client.permanentKey == null) {
+				// A responder introduces its key first, an initiator's key is the path
+				final Map<String, Value> hello = tryUnpack(payload);
+				if (hello != null && "client-hello".equals(SignalingMessages.getString(hello, "type"))) {
+					final byte[] key = SignalingMessages.getBinary(hello, "key");
+					if (key.length != KEY_LENGTH) {
+						throw new IOException("Invalid key length");
+					}
+					client.permanentKey = key;
+					return;
+				}
+				client.permanentKey = client.path.initiatorKey;
+				client.initiator = true;
+			}
+			final Map<String, Value> auth = this.decrypt(client, nonce, payload);
+			if (!"client-auth".equals(SignalingMessages.getString(auth, "type"))) {
+				throw new IOException("Expected client-auth");
+			}
+			this.authenticate(client, auth);
+		} else {
+			final Map<String, Value> request = this.decrypt(client, nonce, payload);
+			if (client.initiator && "drop-responder".equals(SignalingMessages.getString(request, "type"))) {
+				this.dropResponder(client.path, request);
+			} else {
+				throw new IOException("Unexpected message");
+			}
+		}
+	}
+
+	private void authenticate(Client client, Map<String, Value> auth) throws IOException, CryptoFailedException {
+		if (!Arrays.equals(SignalingMessages.getBinary(auth, "your_cookie"), client.cookie)) {
+			throw new IOException("Cookie mismatch");
+		}
+		if (auth.containsKey("your_key")
+				&& !Arrays.equals(SignalingMessages.getBinary(auth, "your_key"), this.permanentKey.getPublicKey())) {
+			this.drop(client, CloseCode.INVALID_KEY, "Unknown server key");
+			return;
+		}
+		final Value subprotocols = auth.get("subprotocols");
+		boolean supported = false;
+		if (subprotocols != null && subprotocols.isArrayValue()) {
+			for (final Value subprotocol : subprotocols.asArrayValue()) {
+				supported |= subprotocol.isStringValue() && SUBPROTOCOL.equals(subprotocol.asStringValue().asString());
+			}
+		}
+		if (!supported) {
+			throw new IOException("No shared subprotocol");
+		}
+
+		final Path path = client.path;
+		final Map<String, Object> response = SignalingMessages.create("server-auth");
+		response.put("your_cookie", client.clientCookie);
+		if (client.initiator) {
+			if (path.initiator != null) {
+				this.drop(path.initiator, CloseCode.DROPPED_BY_INITIATOR, "Replaced by a new initiator");
+			}
+			path.initiator = client;
+			client.id = ADDRESS_INITIATOR;
+			response.put("responders", path.getResponderIds());
+			this.sendServerAuth(client, response);
+			for (final Client responder : path.responders) {
+				if (responder != null) {
+					this.notify(responder, SignalingMessages.create("new-initiator"));
+				}
+			}
+		} else {
+			final int id = path.getFreeResponderId();
+			if (id < 0) {
+				this.drop(client, CloseCode.PATH_FULL, "Path full");
+				return;
+			}
+			path.responders[id] = client;
+			client.id = id;
+			response.put("initiator_connected", path.initiator != null);
+			this.sendServerAuth(client, response);
+			if (path.initiator != null) {
+				final Map<String, Object> joined = SignalingMessages.create("new-responder");
+				joined.put("id", id);
+				this.notify(path.initiator, joined);
+			}
+		}
+		this.handshakes.incrementAndGet();
+	}
+
+	private void dropResponder(Path path, Map<String, Value> request) throws IOException {
+		final int id = SignalingMessages.getInt(request, "id");
+		if (id < ADDRESS_FIRST_RESPONDER || id > ADDRESS_LAST_RESPONDER) {
+			throw new IOException("Invalid responder id");
+		}
+		int reason = CloseCode.DROPPED_BY_INITIATOR;
+		if (request.containsKey("reason")) {
+			reason = SignalingMessages.getInt(request, "reason");
+			if (reason < CloseCode.PATH_FULL || reason > CloseCode.TIMEOUT) {
+				throw new IOException("Invalid close code");
+			}
+		}
+		final Client responder = path.responders[id];
+		if (responder != null) {
+			this.drop(responder, reason, "Dropped by initiator");
+		}
+	}
+
+	/**
+	 * Forward a client-to-client message unchanged. If the destination is not
+	 * connected, the sender gets a send-error.
+	 */
+	private void relay(Client client, SignalingNonce nonce, ByteBuffer message) throws IOException, CryptoFailedException {
+		if (client.id == ADDRESS_SERVER) {
+			throw new IOException("Relaying before authentication");
+		}
+		if (nonce.source != client.id) {
+			throw new IOException("Invalid source");
+		}
+		final boolean valid = client.initiator
+				? nonce.destination >= ADDRESS_FIRST_RESPONDER
+				: nonce.destination == ADDRESS_INITIATOR;
+		if (!valid) {
+			throw new IOException("Invalid destination");
+		}
+		final Client destination = client.path.get(nonce.destination);
+		if (destination == null || !destination.socket.isOpen()) {
+			final byte[] id = new byte[SignalingNonce.ID_LENGTH];
+			final ByteBuffer header = message.duplicate();
+			header.position(header.position() + SignalingNonce.ID_OFFSET);
+			header.get(id);
+			final Map<String, Object> error = SignalingMessages.create("send-error");
+			error.put("id", id);
+			this.send(client, client.nextNonce().toBytes(), error);
+			return;
+		}
+		final byte[] copy = new byte[message.remaining()];
+		message.get(copy);
+		destination.socket.send(copy);
+		this.relayed.incrementAndGet();
+	}
+
+	private Map<String, Value> decrypt(Client client, SignalingNonce nonce, byte[] payload)
+			throws IOException, CryptoFailedException {
+		final byte[] data = client.sessionKey.decrypt(new Box(nonce.toBytes(), payload), client.permanentKey);
+		return SignalingMessages.unpack(data);
+	}
+
+	/**
+	 * Send server-auth. The signed keys are encrypted with the nonce of the
+	 * message itself, so the client can verify the server's permanent key.
+	 */
+	private void sendServerAuth(Client client, Map<String, Object> message) throws IOException, CryptoFailedException {
+		final byte[] nonce = client.nextNonce().toBytes();
+		final byte[] keys = concat(client.sessionKey.getPublicKey(), client.permanentKey);
+		message.put("signed_keys", this.permanentKey.encrypt(keys, nonce, client.permanentKey).getData());
+		this.send(client, nonce, message);
+	}
+
+	private void send(Client client, byte[] nonce, Map<String, Object> message) throws IOException, CryptoFailedException {
+		final Box box = client.sessionKey.encrypt(SignalingMessages.pack(message), nonce, client.permanentKey);
+		client.socket.send(concat(nonce, box.getData()));
+	}
+
+	/**
+	 * Send a message to a client other than the one being handled. A failure
+	 * drops that client, not the sender.
+	 */
+	private void notify(Client client, Map<String, Object> message) {
+		try {
+			this.send(client, client.nextNonce().toBytes(), message);
+		} catch (final IOException | CryptoFailedException e) {
+			LOG.log(Level.WARNING, "Could not send " + message.get("type"), e);
+			this.drop(client, CloseCode.INTERNAL_ERROR, "Could not send message");
+		}
+	}
+
+	/**
+	 * Remove a client from its path and close its connection.
+	 */
+	private void drop(Client client, int code, String reason) {
+		client.dropped = true;
+		client.path.remove(client);
+		client.socket.close(code, reason);
+	}
+
+	@Nullable
+	private static Map<String, Value> tryUnpack(byte[] payload) {
+		try {
+			return SignalingMessages.unpack(payload);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		final byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private static byte[] fromHex(String hex) {
+		final byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * All clients connected to the path of one initiator key.
+	 */
+	private static final class Path {
+		final String key;
+		final byte[] initiatorKey;
+		@Nullable Client initiator;
+		final Client[] responders = new Client[ADDRESS_LAST_RESPONDER + 1];
+		// Guarded by the paths map
+		int connections;
+
+		Path(String key) {
+			this.key = key;
+			this.initiatorKey = fromHex(key);
+		}
+
+		@Nullable
+		Client get(int address) {
+			return address == ADDRESS_INITIATOR ? this.initiator : this.responders[address];
+		}
+
+		List<Integer> getResponderIds() {
+			final List<Integer> ids = new ArrayList<>();
+			for (int id = ADDRESS_FIRST_RESPONDER; id <= ADDRESS_LAST_RESPONDER; id++) {
+				if (this.responders[id] != null) {
+					ids.add(id);
+				}
+			}
+			return ids;
+		}
+
+		int getFreeResponderId() {
+			for (int id = ADDRESS_FIRST_RESPONDER; id <= ADDRESS_LAST_RESPONDER; id++) {
+				if (this.responders[id] == null) {
+					return id;
+				}
+			}
+			return -1;
+		}
+
+		void remove(Client client) {
+			if (this.initiator == client) {
+				this.initiator = null;
+			} else if (client.id >= ADDRESS_FIRST_RESPONDER && this.responders[client.id] == client) {
+				this.responders[client.id] = null;
+			}
+		}
+	}
+
+	/**
+	 * Server side state of a connection. Guarded by the lock of its path.
+	 */
+	private static final class Client {
+		final WebSocket socket;
+		final Path path;
+		final KeyStore sessionKey = new KeyStore();
+		final byte[] cookie = new byte[SignalingNonce.COOKIE_LENGTH];
+		long outgoingSequence;
+		@Nullable byte[] clientCookie;
+		long incomingSequence = -1;
+		@Nullable byte[] permanentKey;
+		boolean initiator;
+		// Assigned once the client is authenticated
+		int id = ADDRESS_SERVER;
+		boolean dropped;
+
+		Client(WebSocket socket, Path path, SecureRandom random) {
+			this.socket = socket;
+			this.path = path;
+			random.nextBytes(this.cookie);
+			this.outgoingSequence = random.nextInt() & 0xffffffffL;
+		}
+
+		SignalingNonce nextNonce() {
+			return new SignalingNonce(this.cookie, ADDRESS_SERVER, this.id, this.outgoingSequence++);
+		}
+
+		/**
+		 * Validate cookie, source and sequence number of a message to the server.
+		 */
+		void checkIncoming(SignalingNonce nonce) throws IOException {
+			if (this.clientCookie == null) {
+				if (Arrays.equals(nonce.cookie, this.cookie)) {
+					throw new IOException("Client reused the server cookie");
+				}
+				this.clientCookie = nonce.cookie;
+			} else if (!Arrays.equals(nonce.cookie, this.clientCookie)) {
+				throw new IOException("Cookie changed");
+			}
+			if (nonce.source != this.id) {
+				throw new IOException("Invalid source");
+			}
+			if (this.incomingSequence < 0 ? (nonce.combinedSequence >>> 32) != 0
+					: nonce.combinedSequence != this.incomingSequence + 1) {
+				throw new IOException("Invalid sequence number");
+			}
+			this.incomingSequence = nonce.combinedSequence;
+		}
+	}
+
+	/**
+	 * Run a server until the process is terminated.
+	 *
+	 * Arguments: [port] [key store] [private key hex].
+	 */
+	public static void main(String[] args) throws Exception {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		final File keyStore = new File(args.length > 1 ? args[1] : "build/loopback.jks");
+		final KeyStore permanentKey = new KeyStore(args.length > 2 ? args[2] : DEFAULT_PRIVATE_KEY);
+
+		final LoopbackServer server = new LoopbackServer(
+				new InetSocketAddress(port), permanentKey, LoopbackTls.server(keyStore));
+		server.start();
+		server.awaitStart(10, TimeUnit.SECONDS);
+		System.out.println("Listening on port " + server.getPort()
+				+ ", server public key " + permanentKey.getPublicKeyHex());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.stop(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+	}
+
+}
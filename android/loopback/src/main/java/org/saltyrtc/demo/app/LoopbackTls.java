@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS contexts backed by the self-signed loopback certificate.
+ *
+ * The key store is generated by the build, see the loopback build file.
+ */
+final class LoopbackTls {
+
+	static final char[] PASSWORD = "loopback".toCharArray();
+
+	private LoopbackTls() {}
+
+	/**
+	 * Context for the server, presenting the certificate of the key store.
+	 */
+	static SSLContext server(File keyStore) throws GeneralSecurityException, IOException {
+		final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(load(keyStore), PASSWORD);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(factory.getKeyManagers(), null, null);
+		return context;
+	}
+
+	/**
+	 * Context for clients, trusting only the certificate of the key store.
+	 */
+	static SSLContext client(File keyStore) throws GeneralSecurityException, IOException {
+		final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(load(keyStore));
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, factory.getTrustManagers(), null);
+		return context;
+	}
+
+	private static KeyStore load(File file) throws GeneralSecurityException, IOException {
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = new FileInputStream(file)) {
+			keyStore.load(in, PASSWORD);
+		}
+		return keyStore;
+	}
+
+}
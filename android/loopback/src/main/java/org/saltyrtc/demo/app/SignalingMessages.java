@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePackException;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs and unpacks the MessagePack maps of client-to-server messages.
+ */
+final class SignalingMessages {
+
+	private SignalingMessages() {}
+
+	/**
+	 * Start a message of the given type. Further fields are added in order.
+	 */
+	static Map<String, Object> create(String type) {
+		final Map<String, Object> message = new LinkedHashMap<>();
+		message.put("type", type);
+		return message;
+	}
+
+	/**
+	 * Pack a message. Values may be strings, byte arrays, integers, booleans
+	 * or lists of integers or strings.
+	 */
+	static byte[] pack(Map<String, Object> message) throws IOException {
+		try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+			packer.packMapHeader(message.size());
+			for (final Map.Entry<String, Object> entry : message.entrySet()) {
+				packer.packString(entry.getKey());
+				final Object value = entry.getValue();
+				if (value instanceof String) {
+					packer.packString((String) value);
+				} else if (value instanceof byte[]) {
+					final byte[] bytes = (byte[]) value;
+					packer.packBinaryHeader(bytes.length);
+					packer.writePayload(bytes);
+				} else if (value instanceof Integer) {
+					packer.packInt((Integer) value);
+				} else if (value instanceof Boolean) {
+					packer.packBoolean((Boolean) value);
+				} else if (value instanceof List) {
+					final List<?> list = (List<?>) value;
+					packer.packArrayHeader(list.size());
+					for (final Object item : list) {
+						if (item instanceof String) {
+							packer.packString((String) item);
+						} else {
+							packer.packInt((Integer) item);
+						}
+					}
+				} else {
+					throw new IllegalArgumentException("Cannot pack " + entry.getKey());
+				}
+			}
+			return packer.toByteArray();
+		}
+	}
+
+	/**
+	 * Unpack a message into a map keyed by field name.
+	 *
+	 * @throws IOException if the data is not a map with string keys and a type.
+	 */
+	static Map<String, Value> unpack(byte[] data) throws IOException {
+		final Value value;
+		try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(data)) {
+			value = unpacker.unpackValue();
+		} catch (final MessagePackException e) {
+			throw new IOException("Malformed message", e);
+		}
+		if (!value.isMapValue()) {
+			throw new IOException("Message is not a map");
+		}
+		final Map<String, Value> message = new HashMap<>();
+		for (final Map.Entry<Value, Value> entry : value.asMapValue().map().entrySet()) {
+			if (!entry.getKey().isStringValue()) {
+				throw new IOException("Message has a non-string key");
+			}
+			message.put(entry.getKey().asStringValue().asString(), entry.getValue());
+		}
+		getString(message, "type");
+		return message;
+	}
+
+	static String getString(Map<String, Value> message, String field) throws IOException {
+		final Value value = message.get(field);
+		if (value == null || !value.isStringValue()) {
+			throw new IOException("Field " + field + " is missing or not a string");
+		}
+		return value.asStringValue().asString();
+	}
+
+	static byte[] getBinary(Map<String, Value> message, String field) throws IOException {
+		final Value value = message.get(field);
+		if (value == null || !value.isBinaryValue()) {
+			throw new IOException("Field " + field + " is missing or not binary");
+		}
+		return value.asBinaryValue().asByteArray();
+	}
+
+	static int getInt(Map<String, Value> message, String field) throws IOException {
+		final Value value = message.get(field);
+		if (value == null || !value.isIntegerValue() || !value.asIntegerValue().isInIntRange()) {
+			throw new IOException("Field " + field + " is missing or not an integer");
+		}
+		return value.asIntegerValue().asInt();
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The 24 byte nonce that prefixes every SaltyRTC signaling message.
+ *
+ * Layout: cookie (16 bytes), source (1), destination (1), overflow number (2)
+ * and sequence number (4), all big endian.
+ */
+final class SignalingNonce {
+
+	static final int LENGTH = 24;
+	static final int COOKIE_LENGTH = 16;
+
+	/**
+	 * Offset and length of source, destination and combined sequence number.
+	 * Together they identify a message in a send-error.
+	 */
+	static final int ID_OFFSET = COOKIE_LENGTH;
+	static final int ID_LENGTH = 8;
+
+	final byte[] cookie;
+	final int source;
+	final int destination;
+	final long combinedSequence;
+
+	SignalingNonce(byte[] cookie, int source, int destination, long combinedSequence) {
+		this.cookie = cookie;
+		this.source = source;
+		this.destination = destination;
+		this.combinedSequence = combinedSequence;
+	}
+
+	/**
+	 * Read a nonce from the start of a message without changing its position.
+	 */
+	static SignalingNonce parse(ByteBuffer message) {
+		final ByteBuffer buffer = message.duplicate();
+		final byte[] cookie = new byte[COOKIE_LENGTH];
+		buffer.get(cookie);
+		final int source = buffer.get() & 0xff;
+		final int destination = buffer.get() & 0xff;
+		final long overflow = buffer.getShort() & 0xffffL;
+		final long sequence = buffer.getInt() & 0xffffffffL;
+		return new SignalingNonce(cookie, source, destination, (overflow << 32) | sequence);
+	}
+
+	byte[] toBytes() {
+		final ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+		buffer.put(this.cookie);
+		buffer.put((byte) this.source);
+		buffer.put((byte) this.destination);
+		buffer.putShort((short) (this.combinedSequence >>> 32));
+		buffer.putInt((int) this.combinedSequence);
+		return buffer.array();
+	}
+
+}
@@ -0,0 +1,328 @@
+package org.saltyrtc.demo.app;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.value.Value;
+import org.saltyrtc.client.exceptions.CryptoFailedException;
+import org.saltyrtc.client.keystore.Box;
+import org.saltyrtc.client.keystore.KeyStore;
+import org.saltyrtc.client.signaling.CloseCode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoopbackServerTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+
+	private final KeyStore serverKey = new KeyStore(LoopbackServer.DEFAULT_PRIVATE_KEY);
+	private final KeyStore initiatorKey = new KeyStore();
+	private LoopbackServer server;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		this.server = new LoopbackServer(new InetSocketAddress("127.0.0.1", 0), this.serverKey, null);
+		this.server.start();
+		assertTrue(this.server.awaitStart(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		this.server.stop(1000);
+	}
+
+	@Test
+	public void initiatorHandshake() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		final Map<String, Value> auth = initiator.authenticate();
+		assertEquals(0, auth.get("responders").asArrayValue().size());
+		assertEquals(1, initiator.id);
+		assertEquals(1, this.server.getHandshakes());
+	}
+
+	@Test
+	public void responderIsAnnounced() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.authenticate();
+		final Peer responder = this.connect(new KeyStore(), false);
+		final Map<String, Value> auth = responder.authenticate();
+		assertTrue(auth.get("initiator_connected").asBooleanValue().getBoolean());
+		assertEquals(2, responder.id);
+
+		final Map<String, Value> joined = initiator.receive();
+		assertEquals("new-responder", SignalingMessages.getString(joined, "type"));
+		assertEquals(2, SignalingMessages.getInt(joined, "id"));
+	}
+
+	@Test
+	public void relaysToResponder() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.authenticate();
+		final Peer responder = this.connect(new KeyStore(), false);
+		responder.authenticate();
+		initiator.receive();
+
+		final byte[] message = concat(initiator.nonce(2), new byte[]{1, 2, 3});
+		initiator.socket.send(message);
+		assertArrayEquals(message, responder.socket.next());
+		assertEquals(1, this.server.getRelayedMessages());
+	}
+
+	@Test
+	public void sendErrorForMissingResponder() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.authenticate();
+
+		final byte[] nonce = initiator.nonce(2);
+		initiator.socket.send(concat(nonce, new byte[]{1, 2, 3}));
+		final Map<String, Value> error = initiator.receive();
+		assertEquals("send-error", SignalingMessages.getString(error, "type"));
+		assertArrayEquals(Arrays.copyOfRange(nonce, SignalingNonce.ID_OFFSET, SignalingNonce.LENGTH),
+				SignalingMessages.getBinary(error, "id"));
+	}
+
+	@Test
+	public void rejectsInvalidPath() throws Exception {
+		final TestClient client = new TestClient("abc");
+		assertTrue(client.connectBlocking());
+		assertEquals(CloseCode.PROTOCOL_ERROR, client.awaitClose());
+	}
+
+	@Test
+	public void rejectsTextMessages() throws Exception {
+		final TestClient client = new TestClient(this.initiatorKey.getPublicKeyHex());
+		assertTrue(client.connectBlocking());
+		client.send("client-auth");
+		assertEquals(CloseCode.PROTOCOL_ERROR, client.awaitClose());
+	}
+
+	@Test
+	public void rejectsShortMessages() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.socket.send(initiator.nonce(0));
+		assertEquals(CloseCode.PROTOCOL_ERROR, initiator.socket.awaitClose());
+	}
+
+	@Test
+	public void rejectsRepeatedSequenceNumber() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.authenticate();
+		initiator.sequence--;
+		final Map<String, Object> drop = SignalingMessages.create("drop-responder");
+		drop.put("id", 2);
+		initiator.sendToServer(drop);
+		assertEquals(CloseCode.PROTOCOL_ERROR, initiator.socket.awaitClose());
+	}
+
+	@Test
+	public void rejectsServerCookie() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		initiator.cookie = initiator.serverCookie;
+		initiator.socket.send(concat(initiator.nonce(0), new byte[]{1}));
+		assertEquals(CloseCode.PROTOCOL_ERROR, initiator.socket.awaitClose());
+	}
+
+	@Test
+	public void rejectsCookieMismatch() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		final Map<String, Object> auth = SignalingMessages.create("client-auth");
+		auth.put("your_cookie", new byte[SignalingNonce.COOKIE_LENGTH]);
+		auth.put("subprotocols", Collections.singletonList(LoopbackServer.SUBPROTOCOL));
+		initiator.sendToServer(auth);
+		assertEquals(CloseCode.PROTOCOL_ERROR, initiator.socket.awaitClose());
+	}
+
+	@Test
+	public void rejectsUnknownServerKey() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		final Map<String, Object> auth = initiator.clientAuth();
+		auth.put("your_key", new KeyStore().getPublicKey());
+		initiator.sendToServer(auth);
+		assertEquals(CloseCode.INVALID_KEY, initiator.socket.awaitClose());
+	}
+
+	@Test
+	public void rejectsMissingSubprotocol() throws Exception {
+		final Peer initiator = this.connect(this.initiatorKey, true);
+		final Map<String, Object> auth = initiator.clientAuth();
+		auth.put("subprotocols", Collections.singletonList("v0.saltyrtc.org"));
+		initiator.sendToServer(auth);
+		assertEquals(CloseCode.PROTOCOL_ERROR, initiator.socket.awaitClose());
+	}
+
+	private Peer connect(KeyStore key, boolean initiator) throws Exception {
+		final TestClient socket = new TestClient(this.initiatorKey.getPublicKeyHex());
+		assertTrue(socket.connectBlocking());
+		final Peer peer = new Peer(socket, key, initiator);
+		final byte[] hello = socket.next();
+		final SignalingNonce nonce = SignalingNonce.parse(ByteBuffer.wrap(hello));
+		assertEquals(0, nonce.source);
+		assertEquals(0, nonce.destination);
+		final Map<String, Value> message = SignalingMessages.unpack(
+				Arrays.copyOfRange(hello, SignalingNonce.LENGTH, hello.length));
+		assertEquals("server-hello", SignalingMessages.getString(message, "type"));
+		peer.serverCookie = nonce.cookie;
+		peer.serverSessionKey = SignalingMessages.getBinary(message, "key");
+		return peer;
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		final byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	/**
+	 * Client side of the server handshake.
+	 */
+	private final class Peer {
+		final TestClient socket;
+		final KeyStore key;
+		final boolean initiator;
+		byte[] cookie = new byte[SignalingNonce.COOKIE_LENGTH];
+		long sequence;
+		int id;
+		byte[] serverCookie;
+		byte[] serverSessionKey;
+
+		Peer(TestClient socket, KeyStore key, boolean initiator) {
+			this.socket = socket;
+			this.key = key;
+			this.initiator = initiator;
+			Arrays.fill(this.cookie, (byte) (initiator ? 0x11 : 0x22));
+		}
+
+		byte[] nonce(int destination) {
+			return new SignalingNonce(this.cookie, this.id, destination, this.sequence++).toBytes();
+		}
+
+		Map<String, Object> clientAuth() {
+			final Map<String, Object> auth = SignalingMessages.create("client-auth");
+			auth.put("your_cookie", this.serverCookie);
+			auth.put("your_key", LoopbackServerTest.this.serverKey.getPublicKey());
+			auth.put("subprotocols", Collections.singletonList(LoopbackServer.SUBPROTOCOL));
+			return auth;
+		}
+
+		void sendToServer(Map<String, Object> message) throws IOException, CryptoFailedException {
+			final byte[] nonce = this.nonce(0);
+			final Box box = this.key.encrypt(SignalingMessages.pack(message), nonce, this.serverSessionKey);
+			this.socket.send(concat(nonce, box.getData()));
+		}
+
+		Map<String, Value> receive() throws Exception {
+			final byte[] message = this.socket.next();
+			final byte[] nonce = Arrays.copyOf(message, SignalingNonce.LENGTH);
+			final byte[] payload = Arrays.copyOfRange(message, SignalingNonce.LENGTH, message.length);
+			return SignalingMessages.unpack(this.key.decrypt(new Box(nonce, payload), this.serverSessionKey));
+		}
+
+		/**
+		 * Run the handshake and verify server-auth, including the signed keys.
+		 */
+		Map<String, Value> authenticate() throws Exception {
+			if (!this.initiator) {
+				final Map<String, Object> hello = SignalingMessages.create("client-hello");
+				hello.put("key", this.key.getPublicKey());
+				this.socket.send(concat(this.nonce(0), SignalingMessages.pack(hello)));
+			}
+			this.sendToServer(this.clientAuth());
+
+			final byte[] message = this.socket.peek();
+			final SignalingNonce nonce = SignalingNonce.parse(ByteBuffer.wrap(message));
+			final Map<String, Value> auth = this.receive();
+			assertEquals("server-auth", SignalingMessages.getString(auth, "type"));
+			assertArrayEquals(this.cookie, SignalingMessages.getBinary(auth, "your_cookie"));
+			final byte[] keys = this.key.decrypt(
+					new Box(nonce.toBytes(), SignalingMessages.getBinary(auth, "signed_keys")),
+					LoopbackServerTest.this.serverKey.getPublicKey());
+			assertArrayEquals(concat(this.serverSessionKey, this.key.getPublicKey()), keys);
+			this.id = nonce.destination;
+			return auth;
+		}
+	}
+
+	private final class TestClient extends WebSocketClient {
+		private final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private volatile int closeCode;
+		private byte[] last;
+
+		TestClient(String path) {
+			super(URI.create("ws://127.0.0.1:" + LoopbackServerTest.this.server.getPort() + "/" + path),
+					new Draft_6455(Collections.<IExtension>emptyList(),
+							Collections.<IProtocol>singletonList(new Protocol(LoopbackServer.SUBPROTOCOL))));
+		}
+
+		/**
+		 * Wait for the next binary message.
+		 */
+		byte[] next() throws InterruptedException {
+			if (this.last != null) {
+				final byte[] message = this.last;
+				this.last = null;
+				return message;
+			}
+			final byte[] message = this.messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			assertNotNull("No message received", message);
+			return message;
+		}
+
+		/**
+		 * Wait for the next binary message without consuming it.
+		 */
+		byte[] peek() throws InterruptedException {
+			this.last = this.next();
+			return this.last;
+		}
+
+		int awaitClose() throws InterruptedException {
+			assertTrue("Connection not closed", this.closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+			return this.closeCode;
+		}
+
+		@Override
+		public void onOpen(ServerHandshake handshake) {
+		}
+
+		@Override
+		public void onMessage(String message) {
+		}
+
+		@Override
+		public void onMessage(ByteBuffer message) {
+			final byte[] bytes = new byte[message.remaining()];
+			message.get(bytes);
+			this.messages.add(bytes);
+		}
+
+		@Override
+		public void onClose(int code, String reason, boolean remote) {
+			this.closeCode = code;
+			this.closed.countDown();
+		}
+
+		@Override
+		public void onError(Exception e) {
+		}
+	}
+
+}
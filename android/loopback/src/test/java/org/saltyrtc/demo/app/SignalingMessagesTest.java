@@ -0,0 +1,96 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SignalingMessagesTest {
+
+	@Test
+	public void roundTrip() throws IOException {
+		final Map<String, Object> message = SignalingMessages.create("client-auth");
+		message.put("your_cookie", new byte[]{1, 2, 3});
+		message.put("subprotocols", Arrays.asList(LoopbackServer.SUBPROTOCOL, "v0.saltyrtc.org"));
+		message.put("responders", Arrays.asList(2, 3));
+		message.put("id", 255);
+		message.put("initiator_connected", true);
+
+		final Map<String, Value> unpacked = SignalingMessages.unpack(SignalingMessages.pack(message));
+		assertEquals("client-auth", SignalingMessages.getString(unpacked, "type"));
+		assertArrayEquals(new byte[]{1, 2, 3}, SignalingMessages.getBinary(unpacked, "your_cookie"));
+		assertEquals(LoopbackServer.SUBPROTOCOL,
+				unpacked.get("subprotocols").asArrayValue().get(0).asStringValue().asString());
+		assertEquals(3, unpacked.get("responders").asArrayValue().get(1).asIntegerValue().asInt());
+		assertEquals(255, SignalingMessages.getInt(unpacked, "id"));
+		assertTrue(unpacked.get("initiator_connected").asBooleanValue().getBoolean());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void packRejectsUnsupportedValues() throws IOException {
+		final Map<String, Object> message = SignalingMessages.create("server-hello");
+		message.put("key", 1.5);
+		SignalingMessages.pack(message);
+	}
+
+	@Test(expected = IOException.class)
+	public void unpackRejectsGarbage() throws IOException {
+		SignalingMessages.unpack(new byte[]{(byte) 0xc1});
+	}
+
+	@Test(expected = IOException.class)
+	public void unpackRejectsTruncatedMessage() throws IOException {
+		final byte[] packed = SignalingMessages.pack(SignalingMessages.create("client-hello"));
+		SignalingMessages.unpack(Arrays.copyOf(packed, packed.length - 1));
+	}
+
+	@Test(expected = IOException.class)
+	public void unpackRejectsNonMap() throws IOException {
+		try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+			packer.packString("client-hello");
+			SignalingMessages.unpack(packer.toByteArray());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void unpackRejectsMissingType() throws IOException {
+		try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+			packer.packMapHeader(1);
+			packer.packString("key");
+			packer.packBinaryHeader(0);
+			SignalingMessages.unpack(packer.toByteArray());
+		}
+	}
+
+	@Test
+	public void gettersRejectWrongTypes() throws IOException {
+		final Map<String, Object> message = SignalingMessages.create("drop-responder");
+		message.put("id", "2");
+		final Map<String, Value> unpacked = SignalingMessages.unpack(SignalingMessages.pack(message));
+		try {
+			SignalingMessages.getInt(unpacked, "id");
+			fail("String accepted as integer");
+		} catch (final IOException e) {
+			// Expected
+		}
+		try {
+			SignalingMessages.getBinary(unpacked, "type");
+			fail("String accepted as binary");
+		} catch (final IOException e) {
+			// Expected
+		}
+		try {
+			SignalingMessages.getString(unpacked, "missing");
+			fail("Missing field accepted");
+		} catch (final IOException e) {
+			// Expected
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.saltyrtc.demo.app;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SignalingNonceTest {
+
+	private static byte[] cookie() {
+		final byte[] cookie = new byte[SignalingNonce.COOKIE_LENGTH];
+		for (int i = 0; i < cookie.length; i++) {
+			cookie[i] = (byte) (0xa0 + i);
+		}
+		return cookie;
+	}
+
+	@Test
+	public void roundTrip() {
+		final SignalingNonce nonce = new SignalingNonce(cookie(), 0x01, 0xff, (0xbeefL << 32) | 0xfffffffeL);
+		final byte[] bytes = nonce.toBytes();
+		assertEquals(SignalingNonce.LENGTH, bytes.length);
+
+		final SignalingNonce parsed = SignalingNonce.parse(ByteBuffer.wrap(bytes));
+		assertArrayEquals(cookie(), parsed.cookie);
+		assertEquals(0x01, parsed.source);
+		assertEquals(0xff, parsed.destination);
+		assertEquals((0xbeefL << 32) | 0xfffffffeL, parsed.combinedSequence);
+	}
+
+	@Test
+	public void layout() {
+		final byte[] bytes = new SignalingNonce(cookie(), 0x02, 0x00, (0x0102L << 32) | 0x03040506L).toBytes();
+		assertArrayEquals(cookie(), Arrays.copyOf(bytes, SignalingNonce.COOKIE_LENGTH));
+		assertArrayEquals(new byte[]{0x02, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06},
+				Arrays.copyOfRange(bytes, SignalingNonce.ID_OFFSET, SignalingNonce.ID_OFFSET + SignalingNonce.ID_LENGTH));
+	}
+
+	@Test
+	public void parseKeepsPositionAndIgnoresPayload() {
+		final ByteBuffer message = ByteBuffer.allocate(SignalingNonce.LENGTH + 3);
+		message.put(new SignalingNonce(cookie(), 0x00, 0x01, 42).toBytes()).put(new byte[]{7, 8, 9}).flip();
+		final SignalingNonce parsed = SignalingNonce.parse(message);
+		assertEquals(42, parsed.combinedSequence);
+		assertEquals(0, message.position());
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void parseRejectsTruncatedNonce() {
+		SignalingNonce.parse(ByteBuffer.wrap(new byte[SignalingNonce.LENGTH - 1]));
+	}
+
+}
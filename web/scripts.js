@@ -17,6 +17,49 @@ const TURN_SERVER = null;
 const TURN_USER = null;
 const TURN_PASS = null;
 const DC_LABEL = 'much-secure';
+const DC_LABEL_BULK = 'much-secure-bulk';
+
+// Bulk transfer flow control
+const CHUNK_SIZE = 64 * 1024;
+const HIGH_WATER_MARK = 1024 * 1024;
+const LOW_WATER_MARK = 256 * 1024;
+
+// Stream frame types on the bulk channel, see StreamFrames.java
+const FRAME_START = 0x01;
+const FRAME_DATA = 0x02;
+const FRAME_END = 0x03;
+const FRAME_ACK = 0x04;
+const FRAME_RESUME = 0x05;
+
+// Stream kinds, see StreamFrames.java. Only files are acknowledged and resumed.
+const STREAM_MESSAGE = 0x00;
+const STREAM_DATA = 0x01;
+const STREAM_FILE = 0x02;
+
+// Message streams up to this size are collected and handled like messages
+const STREAM_TEXT_MAX_SIZE = 256 * 1024;
+
+// Compress data channel messages of at least this size if the peer supports it,
+// see PayloadCompression.java
+const COMPRESSION = true;
+const COMPRESSION_MIN_SIZE = 128;
+
+// Send chat messages as binary records if the peer supports it, see RecordCodec.java
+const RECORDS = true;
+
+// Application message batching on the signaling channel, see ApplicationBatch.java
+const SIGNALING_BATCH_WINDOW_MS = 20;
+const SIGNALING_BATCH_MAX_COUNT = 64;
+const SIGNALING_BATCH_MAX_SIZE = 16 * 1024;
+const SIGNALING_BURST_COUNT = 100;
+
+// Ping/echo and throughput tests against the app, see EchoResponder.java.
+// Start one with the buttons, or with ?loadtest=ping or ?loadtest=throughput.
+const LOAD_TEST_PINGS = 1000;
+const LOAD_TEST_PING_INTERVAL_MS = 10;
+const LOAD_TEST_PING_SIZE = 64;
+const LOAD_TEST_THROUGHPUT_SIZE = 16 * 1024;
+const LOAD_TEST_DRAIN_MS = 5000;
 
 
 class TestClient {
@@ -36,9 +79,17 @@ class TestClient {
         this.client.on('connection-closed', this.onConnectionClosed.bind(this));
         this.client.connect();
 
+        this.signalingBatcher = new ApplicationBatcher(
+            (bytes) => this.client.sendApplicationMessage(bytes.buffer),
+            SIGNALING_BATCH_WINDOW_MS, SIGNALING_BATCH_MAX_COUNT, SIGNALING_BATCH_MAX_SIZE);
+
         document.querySelector('#sendSignaling').onclick = this.sendSignaling.bind(this);
+        document.querySelector('#sendSignalingBurst').onclick = this.sendSignalingBurst.bind(this);
         document.querySelector('#sendDc').onclick = this.sendDc.bind(this);
         document.querySelector('#sendData').onclick = this.sendData.bind(this);
+        document.querySelector('#pingTest').onclick = () => this.runLoadTest('ping');
+        document.querySelector('#throughputTest').onclick = () => this.runLoadTest('throughput');
+        this.pendingLoadTest = new URLSearchParams(window.location.search).get('loadtest');
     }
 
     onStateChange(newState) {
@@ -122,9 +173,14 @@ class TestClient {
             const dc = this.pc.createDataChannel(DC_LABEL);
             dc.binaryType = 'arraybuffer';
             this.sdc = this.task.wrapDataChannel(dc);
+            this.peerCapabilities = 0;
+            this.records = this.createRecordDispatcher();
+            this.chatSequence = 0;
+            this.chatSentAt = new Map();
             this.sdc.onopen = () => {
                 console.info('Custom secure data channel is open');
                 this.setState('dataChannel', this.sdc.readyState);
+                this.sdc.send(Capabilities.hello(this.localCapabilities()));
                 setInterval(() => {
                     if (this.sdc != null) {
                         this.setState('dataChannel', this.sdc.readyState);
@@ -140,13 +196,45 @@ class TestClient {
                 this.setState('dataChannel', this.sdc.readyState);
             };
             this.sdc.onmessage = (ev) => {
-                const messages = document.querySelector('textarea');
                 const bytes = new Uint8Array(ev.data);
-                const text = utf8aToString(bytes);
-                console.log(text);
+                const capabilities = Capabilities.parse(bytes);
+                if (capabilities !== undefined) {
+                    console.debug('Peer capabilities:', capabilities);
+                    this.peerCapabilities = capabilities;
+                    if (this.pendingLoadTest) {
+                        this.runLoadTest(this.pendingLoadTest);
+                        this.pendingLoadTest = null;
+                    }
+                    return;
+                }
                 console.debug('New incoming message:', bytes.length, 'bytes');
-                messages.value += `< ${text}\n`;
-                messages.scrollTop = messages.scrollHeight;
+                this.onPayload(bytes);
+            };
+
+            // Bulk transfers use a second channel so that they don't block chat messages
+            const bulkDc = this.pc.createDataChannel(DC_LABEL_BULK);
+            bulkDc.binaryType = 'arraybuffer';
+            this.bulkSdc = this.task.wrapDataChannel(bulkDc);
+            this.bulkSdc.onmessage = (ev) => this.onStreamFrame(new Uint8Array(ev.data));
+            this.bulkSdc.onopen = () => {
+                // Request the remainder of a file interrupted in a previous session
+                const partial = this.partialStream;
+                this.partialStream = undefined;
+                if (partial !== undefined) {
+                    const offset = partial.received;
+                    console.info('Requesting resume of file at offset', offset, '/', partial.total);
+                    const resume = new DataView(new ArrayBuffer(9));
+                    resume.setUint8(0, FRAME_RESUME);
+                    resume.setUint32(1, Math.floor(offset / 0x100000000));
+                    resume.setUint32(5, offset >>> 0);
+                    this.bulkSdc.send(new Uint8Array(resume.buffer));
+                }
+            };
+            this.bulkSdc.onclose = () => {
+                if (this.stream !== undefined && this.stream.kind === STREAM_FILE) {
+                    this.partialStream = this.stream;
+                    this.stream = undefined;
+                }
             };
 
             // Enable "Submit via DataChannel" button
@@ -154,6 +242,64 @@ class TestClient {
         });
     }
 
+    localCapabilities() {
+        return (COMPRESSION ? Capabilities.DEFLATE : 0) | (RECORDS ? Capabilities.RECORDS : 0);
+    }
+
+    /**
+     * Handle an incoming message: decompress it if needed, then dispatch its records or show it
+     * as text.
+     */
+    onPayload(bytes) {
+        try {
+            const payload = PayloadCompression.decompress(bytes);
+            if (RecordCodec.isFrame(payload)) {
+                this.records.dispatch(payload);
+            } else {
+                this.receivedMsg(utf8aToString(payload));
+            }
+        } catch (error) {
+            console.error('Dropping invalid message of', bytes.length, 'bytes:', error);
+        }
+    }
+
+    /**
+     * Show chat records and acknowledge them, log the latency of receipts, count the pongs of
+     * a running load test.
+     */
+    createRecordDispatcher() {
+        const records = new RecordDispatcher();
+        records.register(RecordCodec.TYPE_CHAT, (reader) => {
+            const sequence = RecordCodec.getVarint(reader);
+            RecordCodec.getVarint(reader); // Send time
+            this.receivedMsg(utf8aToString(reader.bytes.subarray(reader.offset, reader.end)));
+            this.sendDcBytes(RecordCodec.encode(RecordCodec.TYPE_RECEIPT, [sequence]));
+        });
+        records.register(RecordCodec.TYPE_RECEIPT, (reader) => {
+            const sequence = RecordCodec.getVarint(reader);
+            const sentAt = this.chatSentAt.get(sequence);
+            this.chatSentAt.delete(sequence);
+            if (sentAt !== undefined) {
+                console.debug('Message', sequence, 'delivered after', (performance.now() - sentAt).toFixed(1), 'ms');
+            }
+        });
+        records.register(RecordCodec.TYPE_PONG, (reader) => {
+            const sequence = RecordCodec.getVarint(reader);
+            const timestampUs = RecordCodec.getVarint(reader);
+            if (this.loadTest !== undefined) {
+                this.loadTest.onPong(sequence, timestampUs);
+            }
+        });
+        return records;
+    }
+
+    receivedMsg(text) {
+        const messages = document.querySelector('textarea');
+        console.log(text);
+        messages.value += `< ${text}\n`;
+        messages.scrollTop = messages.scrollHeight;
+    }
+
     setupIceCandidateHandling() {
         console.debug('Setting up ICE candidate handling...');
         this.pc.onicecandidate = (e) => {
@@ -205,6 +351,8 @@ class TestClient {
 
     enableDc() {
         document.querySelector('#sendDc').disabled = false;
+        document.querySelector('#pingTest').disabled = false;
+        document.querySelector('#throughputTest').disabled = false;
     }
 
     setState(type, value) {
@@ -225,17 +373,65 @@ class TestClient {
         const text = input.value;
         const bytes = stringToUtf8a(text);
         console.debug('Sending', bytes.length, 'bytes through signaling channel:', bytes);
-        this.client.sendApplicationMessage(bytes.buffer);
+        this.sendApplicationMessage(bytes);
         this.sentMsg(text);
     }
 
+    /**
+     * Send a burst of numbered messages through the signaling channel.
+     */
+    sendSignalingBurst() {
+        const input = document.querySelector('#chatText');
+        const text = input.value || 'Burst';
+        const start = performance.now();
+        for (let i = 1; i <= SIGNALING_BURST_COUNT; i++) {
+            this.sendApplicationMessage(stringToUtf8a(`${text} ${i}`));
+        }
+        this.signalingBatcher.flush();
+        const ms = performance.now() - start;
+        const mode = this.batchSignaling() ? 'batched' : 'unbatched';
+        this.sentMsg(`[sent ${SIGNALING_BURST_COUNT} messages via signaling, ${mode}, in ${ms.toFixed(1)} ms]`);
+    }
+
+    /**
+     * Send an application message, through the batcher if batching is enabled.
+     */
+    sendApplicationMessage(bytes) {
+        if (this.batchSignaling()) {
+            this.signalingBatcher.add(bytes);
+        } else {
+            this.client.sendApplicationMessage(bytes.buffer);
+        }
+    }
+
+    batchSignaling() {
+        return document.querySelector('#batchSignaling').checked;
+    }
+
     sendDc() {
         const input = document.querySelector('#chatText');
         const text = input.value;
-        const bytes = stringToUtf8a(text);
+        let bytes = stringToUtf8a(text);
+        if ((this.peerCapabilities & this.localCapabilities() & Capabilities.RECORDS) !== 0) {
+            const sequence = ++this.chatSequence;
+            this.chatSentAt.set(sequence, performance.now());
+            bytes = RecordCodec.encode(RecordCodec.TYPE_CHAT, [sequence, Date.now()], bytes);
+        }
+        this.sendDcBytes(bytes);
+        this.sentMsg(text);
+    }
+
+    /**
+     * Send a message through the data channel, compressed if the peer supports it.
+     */
+    sendDcBytes(bytes) {
+        if ((this.peerCapabilities & this.localCapabilities() & Capabilities.DEFLATE) !== 0) {
+            const length = bytes.length;
+            bytes = PayloadCompression.compress(bytes, COMPRESSION_MIN_SIZE);
+            console.debug('Compressed', length, 'to', bytes.length, 'bytes');
+        }
         console.debug('Sending', bytes.length, 'bytes through data channel:', bytes);
         this.sdc.send(bytes);
-        this.sentMsg(text);
     }
 
     sendData() {
@@ -243,8 +439,254 @@ class TestClient {
         for (let i = 0; i < 600; i++) {
             data[i] = Math.random() * 250;
         }
-        this.sdc.send(data);
-        this.sentMsg("[sent 600 KiB random data]");
+        this.sendChunked(data, STREAM_DATA, (mbps) => {
+            this.sentMsg(`[sent 600 KiB random data, ${mbps.toFixed(2)} MB/s]`);
+        });
+    }
+
+    /**
+     * Run a load test against the peer's echo responder.
+     *
+     * In ping mode, small pings are sent at a fixed interval and echoed with their payload. In
+     * throughput mode, large pings are sent as fast as the data channel accepts them, paused at
+     * the high water mark like a bulk transfer, and acknowledged without payload. Once all pongs
+     * arrived or the drain timeout elapsed, the result is shown and kept in `loadTestResult`.
+     */
+    runLoadTest(mode) {
+        if (mode !== 'ping' && mode !== 'throughput') {
+            console.error('Unknown load test mode:', mode);
+            return;
+        }
+        if (this.loadTest !== undefined) {
+            console.warn('A load test is already running');
+            return;
+        }
+        if ((this.peerCapabilities & this.localCapabilities() & Capabilities.RECORDS) === 0) {
+            console.error('The peer does not support records, cannot run a load test');
+            return;
+        }
+        const ping = mode === 'ping';
+        const size = ping ? LOAD_TEST_PING_SIZE : LOAD_TEST_THROUGHPUT_SIZE;
+        const flags = ping ? RecordCodec.FLAG_ECHO : 0;
+        const stats = new LoadTestStats(mode, LOAD_TEST_PINGS, size);
+        this.loadTest = stats;
+
+        // Random, so that the payload is not compressible. Pings are sent uncompressed.
+        const payload = new Uint8Array(size);
+        crypto.getRandomValues(payload);
+        const sdc = this.sdc;
+        const sendPing = () => {
+            const timestampUs = Math.round(performance.now() * 1000);
+            sdc.send(RecordCodec.encode(RecordCodec.TYPE_PING, [stats.sent, timestampUs, flags], payload));
+            stats.sent++;
+        };
+
+        const finish = () => {
+            this.loadTest = undefined;
+            const result = stats.report();
+            this.loadTestResult = result;
+            console.info('Load test result:', JSON.stringify(result));
+            const rtt = result.rttMs;
+            this.sentMsg(`[${mode} test: ${result.received}/${result.sent} pongs, ` +
+                `RTT p50=${rtt.p50.toFixed(1)} p90=${rtt.p90.toFixed(1)} p99=${rtt.p99.toFixed(1)} ` +
+                `max=${rtt.max.toFixed(1)} ms, ${result.goodputKiBs.toFixed(1)} KiB/s, ` +
+                `lost ${result.lost}, duplicated ${result.duplicates}, reordered ${result.reordered}]`);
+        };
+        const drain = () => {
+            const deadline = performance.now() + LOAD_TEST_DRAIN_MS;
+            const timer = setInterval(() => {
+                if (stats.isComplete() || performance.now() >= deadline) {
+                    clearInterval(timer);
+                    finish();
+                }
+            }, 50);
+        };
+
+        if (ping) {
+            const timer = setInterval(() => {
+                sendPing();
+                if (stats.sent === LOAD_TEST_PINGS) {
+                    clearInterval(timer);
+                    drain();
+                }
+            }, LOAD_TEST_PING_INTERVAL_MS);
+            return;
+        }
+        sdc.bufferedAmountLowThreshold = LOW_WATER_MARK;
+        const pump = () => {
+            while (stats.sent < LOAD_TEST_PINGS) {
+                if (sdc.bufferedAmount >= HIGH_WATER_MARK) {
+                    sdc.onbufferedamountlow = () => {
+                        sdc.onbufferedamountlow = null;
+                        pump();
+                    };
+                    return;
+                }
+                sendPing();
+            }
+            drain();
+        };
+        pump();
+    }
+
+    /**
+     * Stream a large payload in chunks via the bulk channel, starting at the given offset. Pause
+     * once the buffered amount reaches the high water mark and resume once it has dropped to the
+     * low water mark.
+     *
+     * For a file, `onComplete` is called with the end-to-end throughput once the peer acknowledges
+     * the stream. The payload is kept until then, so that the peer can request a resume. For other
+     * kinds, it is called with the throughput once the last frame has been handed to the channel.
+     */
+    sendChunked(data, kind, onComplete, offset = 0) {
+        const startedAt = performance.now();
+        if (kind === STREAM_FILE) {
+            this.outgoing = {data, onComplete, offset, startedAt};
+        }
+        const crc = new Crc32();
+        const sdc = this.bulkSdc;
+        sdc.bufferedAmountLowThreshold = LOW_WATER_MARK;
+
+        const start = new DataView(new ArrayBuffer(18));
+        start.setUint8(0, FRAME_START);
+        start.setUint8(1, kind);
+        start.setUint32(2, Math.floor(data.length / 0x100000000));
+        start.setUint32(6, data.length >>> 0);
+        start.setUint32(10, Math.floor(offset / 0x100000000));
+        start.setUint32(14, offset >>> 0);
+        sdc.send(new Uint8Array(start.buffer));
+
+        const pump = () => {
+            while (offset < data.length) {
+                if (sdc.bufferedAmount >= HIGH_WATER_MARK) {
+                    sdc.onbufferedamountlow = () => {
+                        sdc.onbufferedamountlow = null;
+                        pump();
+                    };
+                    return;
+                }
+                const end = Math.min(offset + CHUNK_SIZE, data.length);
+                const chunk = data.subarray(offset, end);
+                const frame = new Uint8Array(1 + chunk.length);
+                frame[0] = FRAME_DATA;
+                frame.set(chunk, 1);
+                crc.update(chunk);
+                sdc.send(frame);
+                offset = end;
+            }
+            const endFrame = new DataView(new ArrayBuffer(5));
+            endFrame.setUint8(0, FRAME_END);
+            endFrame.setUint32(1, crc.value());
+            sdc.send(new Uint8Array(endFrame.buffer));
+            const seconds = (performance.now() - startedAt) / 1000;
+            console.debug('Handed', data.length, 'bytes to the data channel in', seconds, 's');
+            if (kind !== STREAM_FILE) {
+                onComplete(seconds > 0 ? (data.length - offset) / 1e6 / seconds : 0);
+            }
+        };
+        pump();
+    }
+
+    /**
+     * Process an incoming stream frame. Message streams are handled like messages, other streams
+     * are only counted and checksummed. Files are acknowledged.
+     */
+    onStreamFrame(frame) {
+        const view = new DataView(frame.buffer, frame.byteOffset, frame.byteLength);
+        switch (frame[0]) {
+            case FRAME_START:
+                this.stream = {
+                    kind: frame[1],
+                    total: view.getUint32(2) * 0x100000000 + view.getUint32(6),
+                    offset: view.getUint32(10) * 0x100000000 + view.getUint32(14),
+                    received: view.getUint32(10) * 0x100000000 + view.getUint32(14),
+                    crc: new Crc32(),
+                    chunks: [],
+                    startedAt: performance.now(),
+                };
+                break;
+            case FRAME_DATA: {
+                const stream = this.stream;
+                if (stream === undefined) {
+                    console.error('Data frame outside of stream');
+                    return;
+                }
+                const chunk = frame.subarray(1);
+                stream.crc.update(chunk);
+                stream.received += chunk.length;
+                if (stream.kind === STREAM_MESSAGE && stream.total <= STREAM_TEXT_MAX_SIZE) {
+                    stream.chunks.push(chunk);
+                }
+                console.debug('Received', stream.received, '/', stream.total, 'bytes');
+                break;
+            }
+            case FRAME_END: {
+                const stream = this.stream;
+                this.stream = undefined;
+                if (stream === undefined) {
+                    console.error('End frame outside of stream');
+                    return;
+                }
+                const valid = stream.received === stream.total && view.getUint32(1) === stream.crc.value();
+                const seconds = (performance.now() - stream.startedAt) / 1000;
+                const mbps = seconds > 0 ? (stream.total - stream.offset) / 1e6 / seconds : 0;
+                if (stream.kind === STREAM_FILE) {
+                    const ack = new DataView(new ArrayBuffer(10));
+                    ack.setUint8(0, FRAME_ACK);
+                    ack.setUint32(1, Math.floor(stream.received / 0x100000000));
+                    ack.setUint32(5, stream.received >>> 0);
+                    ack.setUint8(9, valid ? 1 : 0);
+                    this.bulkSdc.send(new Uint8Array(ack.buffer));
+                }
+                let text;
+                if (!valid) {
+                    text = `[invalid stream, ${stream.received} of ${stream.total} bytes]`;
+                } else if (stream.kind === STREAM_MESSAGE && stream.total <= STREAM_TEXT_MAX_SIZE) {
+                    const bytes = new Uint8Array(stream.total);
+                    let offset = 0;
+                    for (const chunk of stream.chunks) {
+                        bytes.set(chunk, offset);
+                        offset += chunk.length;
+                    }
+                    this.onPayload(bytes);
+                    break;
+                } else {
+                    text = `[received ${Math.round(stream.total / 1024)} KiB, crc ok, ${mbps.toFixed(2)} MB/s]`;
+                }
+                const messages = document.querySelector('textarea');
+                messages.value += `< ${text}\n`;
+                messages.scrollTop = messages.scrollHeight;
+                break;
+            }
+            case FRAME_ACK: {
+                const outgoing = this.outgoing;
+                if (outgoing === undefined) {
+                    return;
+                }
+                this.outgoing = undefined;
+                const received = view.getUint32(1) * 0x100000000 + view.getUint32(5);
+                if (view.getUint8(9) !== 1) {
+                    console.error('Peer reported a checksum mismatch after', received, 'bytes');
+                    return;
+                }
+                const seconds = (performance.now() - outgoing.startedAt) / 1000;
+                outgoing.onComplete(seconds > 0 ? (received - outgoing.offset) / 1e6 / seconds : 0);
+                break;
+            }
+            case FRAME_RESUME: {
+                const outgoing = this.outgoing;
+                const offset = view.getUint32(1) * 0x100000000 + view.getUint32(5);
+                if (outgoing === undefined || offset > outgoing.data.length) {
+                    console.warn('Cannot resume stream at offset', offset);
+                    return;
+                }
+                console.info('Resuming file at offset', offset);
+                this.sendChunked(outgoing.data, STREAM_FILE, outgoing.onComplete, offset);
+                break;
+            }
+            default:
+                console.error('Unknown stream frame type:', frame[0]);
+        }
     }
 
 }
@@ -111,3 +111,379 @@ function utf8aToString(bytes) {
     }
     return out.join('');
 }
+
+
+/**
+ * Incrementally compute the CRC32 (IEEE) of byte arrays.
+ */
+class Crc32 {
+    constructor() {
+        if (Crc32.table === undefined) {
+            Crc32.table = new Uint32Array(256);
+            for (let n = 0; n < 256; n++) {
+                let c = n;
+                for (let k = 0; k < 8; k++) {
+                    c = (c & 1) ? (0xEDB88320 ^ (c >>> 1)) : (c >>> 1);
+                }
+                Crc32.table[n] = c >>> 0;
+            }
+        }
+        this.crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * @param {Uint8Array} bytes
+     */
+    update(bytes) {
+        const table = Crc32.table;
+        let crc = this.crc;
+        for (let i = 0; i < bytes.length; i++) {
+            crc = table[(crc ^ bytes[i]) & 0xFF] ^ (crc >>> 8);
+        }
+        this.crc = crc;
+    }
+
+    /**
+     * @return {number} the unsigned checksum
+     */
+    value() {
+        return (this.crc ^ 0xFFFFFFFF) >>> 0;
+    }
+}
+
+
+/**
+ * Capabilities announced by each side with a hello (0xff 0x48, capabilities) when the data
+ * channel opens, see Capabilities.java.
+ */
+const Capabilities = {
+    DEFLATE: 0x01,
+    RECORDS: 0x02,
+
+    /**
+     * @param {number} capabilities
+     * @return {Uint8Array}
+     */
+    hello(capabilities) {
+        return Uint8Array.of(0xff, 0x48, capabilities);
+    },
+
+    /**
+     * @param {Uint8Array} bytes
+     * @return {number|undefined} the announced capabilities, if the message is a hello
+     */
+    parse(bytes) {
+        if (bytes.length === 3 && bytes[0] === 0xff && bytes[1] === 0x48) {
+            return bytes[2];
+        }
+        return undefined;
+    },
+};
+
+
+/**
+ * Optional compression of data channel messages, see PayloadCompression.java.
+ *
+ * Messages starting with 0xfe are compressed with raw deflate, all others are sent as is.
+ */
+const PayloadCompression = {
+    /**
+     * Compress a message of at least `minSize` bytes, unless that does not make it smaller.
+     *
+     * @param {Uint8Array} bytes
+     * @param {number} minSize
+     * @return {Uint8Array}
+     */
+    compress(bytes, minSize) {
+        if (bytes.length < minSize) {
+            return bytes;
+        }
+        const deflated = pako.deflateRaw(bytes);
+        if (deflated.length + 1 >= bytes.length) {
+            return bytes;
+        }
+        const out = new Uint8Array(deflated.length + 1);
+        out[0] = 0xfe;
+        out.set(deflated, 1);
+        return out;
+    },
+
+    /**
+     * @param {Uint8Array} bytes
+     * @return {Uint8Array} the message, decompressed if needed
+     */
+    decompress(bytes) {
+        return bytes.length > 0 && bytes[0] === 0xfe ? pako.inflateRaw(bytes.subarray(1)) : bytes;
+    },
+};
+
+
+/**
+ * Frames of typed records, see RecordCodec.java and Records.java.
+ *
+ * A frame is 0xfd followed by records: type (varint), payload length (varint), payload.
+ * Varints are unsigned LEB128. Numbers up to 2^53 are supported.
+ */
+const RecordCodec = {
+    FRAME_MARKER: 0xfd,
+    TYPE_CHAT: 1,
+    TYPE_RECEIPT: 2,
+    TYPE_PING: 3,
+    TYPE_PONG: 4,
+
+    // Ping flag: return the payload in the pong
+    FLAG_ECHO: 1,
+
+    /**
+     * @param {number} value
+     * @param {Array<number>} out
+     */
+    putVarint(value, out) {
+        while (value >= 0x80) {
+            out.push((value % 0x80) | 0x80);
+            value = Math.floor(value / 0x80);
+        }
+        out.push(value);
+    },
+
+    /**
+     * @param {{bytes: Uint8Array, offset: number, end: number}} reader
+     * @return {number}
+     */
+    getVarint(reader) {
+        let value = 0;
+        let factor = 1;
+        while (reader.offset < reader.end) {
+            const b = reader.bytes[reader.offset++];
+            value += (b & 0x7f) * factor;
+            if (b < 0x80) {
+                return value;
+            }
+            factor *= 0x80;
+        }
+        throw new Error('Truncated varint');
+    },
+
+    /**
+     * Encode a frame with a single record.
+     *
+     * @param {number} type
+     * @param {Array<number>} header varint fields preceding the body
+     * @param {Uint8Array} body
+     * @return {Uint8Array}
+     */
+    encode(type, header, body = new Uint8Array(0)) {
+        const fields = [];
+        for (const value of header) {
+            RecordCodec.putVarint(value, fields);
+        }
+        const prefix = [RecordCodec.FRAME_MARKER];
+        RecordCodec.putVarint(type, prefix);
+        RecordCodec.putVarint(fields.length + body.length, prefix);
+        const frame = new Uint8Array(prefix.length + fields.length + body.length);
+        frame.set(prefix, 0);
+        frame.set(fields, prefix.length);
+        frame.set(body, prefix.length + fields.length);
+        return frame;
+    },
+
+    /**
+     * @param {Uint8Array} bytes
+     * @return {boolean}
+     */
+    isFrame(bytes) {
+        return bytes.length > 0 && bytes[0] === RecordCodec.FRAME_MARKER;
+    },
+};
+
+
+/**
+ * Hands every record of a frame to the handler registered for its type. Records of unknown
+ * types are skipped.
+ */
+class RecordDispatcher {
+    constructor() {
+        this.handlers = new Map();
+    }
+
+    /**
+     * @param {number} type
+     * @param {function({bytes: Uint8Array, offset: number, end: number})} handler called with a
+     *        reader positioned at the start of the payload
+     */
+    register(type, handler) {
+        this.handlers.set(type, handler);
+    }
+
+    /**
+     * @param {Uint8Array} frame
+     */
+    dispatch(frame) {
+        const reader = {bytes: frame, offset: 1, end: frame.length};
+        while (reader.offset < frame.length) {
+            reader.end = frame.length;
+            const type = RecordCodec.getVarint(reader);
+            const size = RecordCodec.getVarint(reader);
+            const end = reader.offset + size;
+            if (end > frame.length) {
+                throw new Error(`Record of type ${type} exceeds the frame`);
+            }
+            const handler = this.handlers.get(type);
+            if (handler !== undefined) {
+                reader.end = end;
+                handler(reader);
+            }
+            reader.offset = end;
+        }
+    }
+}
+
+
+/**
+ * Results of a ping/echo or throughput test, see EchoResponder.java.
+ *
+ * Pongs are matched to pings by their sequence number. The round trip time is
+ * measured with the send time echoed by the peer.
+ */
+class LoadTestStats {
+    /**
+     * @param {string} mode
+     * @param {number} count number of pings to send
+     * @param {number} payloadSize payload bytes per ping
+     */
+    constructor(mode, count, payloadSize) {
+        this.mode = mode;
+        this.count = count;
+        this.payloadSize = payloadSize;
+        this.sent = 0;
+        this.received = new Set();
+        this.highestSequence = -1;
+        this.duplicates = 0;
+        this.reordered = 0;
+        this.roundTripTimes = [];
+        this.startedAt = performance.now();
+        this.lastPongAt = this.startedAt;
+    }
+
+    /**
+     * @param {number} sequence
+     * @param {number} timestampUs send time of the ping
+     */
+    onPong(sequence, timestampUs) {
+        const now = performance.now();
+        if (this.received.has(sequence)) {
+            this.duplicates++;
+            return;
+        }
+        this.received.add(sequence);
+        if (sequence < this.highestSequence) {
+            this.reordered++;
+        } else {
+            this.highestSequence = sequence;
+        }
+        this.roundTripTimes.push(now - timestampUs / 1000);
+        this.lastPongAt = now;
+    }
+
+    /**
+     * @return {boolean} whether a pong arrived for every ping
+     */
+    isComplete() {
+        return this.sent === this.count && this.received.size === this.count;
+    }
+
+    /**
+     * @return {Object} round trip times in ms, goodput in KiB/s of acknowledged payload
+     */
+    report() {
+        const rtts = this.roundTripTimes.slice().sort((a, b) => a - b);
+        const percentile = (p) => rtts.length === 0 ? 0 : rtts[Math.max(Math.ceil(p / 100 * rtts.length) - 1, 0)];
+        const seconds = Math.max(this.lastPongAt - this.startedAt, 1) / 1000;
+        return {
+            mode: this.mode,
+            sent: this.sent,
+            received: this.received.size,
+            lost: this.sent - this.received.size,
+            duplicates: this.duplicates,
+            reordered: this.reordered,
+            rttMs: {p50: percentile(50), p90: percentile(90), p99: percentile(99), max: percentile(100)},
+            goodputKiBs: this.received.size * this.payloadSize / 1024 / seconds,
+        };
+    }
+}
+
+
+/**
+ * Coalesce small application messages into one envelope, see ApplicationBatch.java.
+ *
+ * Messages are held back until the batching window has elapsed or a batch limit is reached.
+ * A batch of a single message is sent as is.
+ */
+class ApplicationBatcher {
+    /**
+     * @param {function(Uint8Array)} send
+     * @param {number} windowMs
+     * @param {number} maxCount
+     * @param {number} maxSize
+     */
+    constructor(send, windowMs, maxCount, maxSize) {
+        this.send = send;
+        this.windowMs = windowMs;
+        this.maxCount = maxCount;
+        this.maxSize = maxSize;
+        this.pending = [];
+        this.pendingSize = ApplicationBatcher.HEADER_SIZE;
+        this.timer = null;
+    }
+
+    /**
+     * @param {Uint8Array} bytes
+     */
+    add(bytes) {
+        const entrySize = ApplicationBatcher.ENTRY_HEADER_SIZE + bytes.length;
+        if (this.pending.length > 0 && this.pendingSize + entrySize > this.maxSize) {
+            this.flush();
+        }
+        this.pending.push(bytes);
+        this.pendingSize += entrySize;
+        if (this.pending.length >= this.maxCount || this.pendingSize >= this.maxSize) {
+            this.flush();
+        } else if (this.timer === null) {
+            this.timer = setTimeout(() => this.flush(), this.windowMs);
+        }
+    }
+
+    /**
+     * Send all pending messages now.
+     */
+    flush() {
+        if (this.timer !== null) {
+            clearTimeout(this.timer);
+            this.timer = null;
+        }
+        const messages = this.pending;
+        const size = this.pendingSize;
+        this.pending = [];
+        this.pendingSize = ApplicationBatcher.HEADER_SIZE;
+        if (messages.length === 0) {
+            return;
+        } else if (messages.length === 1) {
+            this.send(messages[0]);
+            return;
+        }
+
+        const envelope = new Uint8Array(size);
+        const view = new DataView(envelope.buffer);
+        envelope[0] = 0xff;
+        envelope[1] = 0x42;
+        let offset = ApplicationBatcher.HEADER_SIZE;
+        for (const message of messages) {
+            view.setUint32(offset, message.length);
+            envelope.set(message, offset + ApplicationBatcher.ENTRY_HEADER_SIZE);
+            offset += ApplicationBatcher.ENTRY_HEADER_SIZE + message.length;
+        }
+        this.send(envelope);
+    }
+}
+ApplicationBatcher.HEADER_SIZE = 2;
+ApplicationBatcher.ENTRY_HEADER_SIZE = 4;